@@ -0,0 +1,87 @@
+package com.blade.aicoder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Request serialization and response parsing, without any network
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Daicoder.endpoints.healthCheckSeconds=0", "-Daicoder.cache=false" })
+public class OllamaClientBenchmark {
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  @Param({ "1000", "100000", "4000000" })
+  int size;
+
+  private String answer;
+  private List<ConversationSession.ChatMessage> conversation;
+  private byte[] generateStream;
+  private byte[] chatStream;
+  private byte[] singleResponse;
+
+  @Setup
+  public void setUp() {
+    answer = Payloads.codeAnswer(size);
+    conversation = Payloads.conversation(answer);
+    generateStream = Payloads.ndjson(answer, false).getBytes(StandardCharsets.UTF_8);
+    chatStream = Payloads.ndjson(answer, true).getBytes(StandardCharsets.UTF_8);
+    singleResponse = Payloads.singleResponse(answer).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public String serializeGenerateRequest() throws Exception {
+    return OllamaClient.generateRequestBody(answer, true);
+  }
+
+  // Four earlier turns carrying the answer each
+  @Benchmark
+  public String serializeChatRequest() throws Exception {
+    return OllamaClient.chatRequestBody(conversation, true);
+  }
+
+  @Benchmark
+  public String parseGenerateStream() throws Exception {
+    return parse(generateStream);
+  }
+
+  @Benchmark
+  public String parseChatStream() throws Exception {
+    return parse(chatStream);
+  }
+
+  // Non-streaming answer with its context array. Run with -prof gc to see
+  // the allocation per response next to the tree-based variant below.
+  @Benchmark
+  public String parseSingleResponse() throws Exception {
+    return parse(singleResponse);
+  }
+
+  // How the response used to be read: the body as a String, then a full tree
+  // including a node per context token
+  @Benchmark
+  public String parseSingleResponseAsTree() throws Exception {
+    return mapper.readTree(new String(singleResponse, StandardCharsets.UTF_8)).get("response").asText();
+  }
+
+  private static String parse(byte[] body) throws Exception {
+    return OllamaClient.readChunks(new ByteArrayInputStream(body), null, new GenerationStats(),
+        new CancellationToken());
+  }
+}
@@ -0,0 +1,112 @@
+package com.blade.aicoder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Deterministic model answers and Ollama responses of a given size for the
+// benchmarks: prose mixed with fenced code blocks in a few languages, with
+// some repeated lines as small models tend to produce.
+final class Payloads {
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final String[] LANGUAGES = { "java", "python", "javascript", "sql", "" };
+  private static final String[] PROSE = {
+      "Here is an implementation that keeps the original behaviour.",
+      "The loop below runs in linear time over the input.",
+      "Note that the method is not thread-safe on its own.",
+      "You can call it from the event dispatch thread.",
+  };
+  private static final String[] CODE = {
+      "public static int sum(int[] values) {",
+      "  int total = 0;",
+      "  for (int value : values) {",
+      "    total += value;",
+      "  }",
+      "  return total;",
+      "}",
+      "def parse(line):",
+      "    return [part.strip() for part in line.split(',')]",
+      "SELECT id, name FROM users WHERE active = 1 ORDER BY name;",
+      "const items = list.filter(item => item.enabled).map(item => item.id);",
+  };
+
+  private Payloads() {
+  }
+
+  static String codeAnswer(int chars) {
+    Random random = new Random(chars);
+    StringBuilder text = new StringBuilder(chars + 256);
+    while (text.length() < chars) {
+      text.append(PROSE[random.nextInt(PROSE.length)]).append('\n');
+      if (random.nextInt(4) == 0)
+        text.append(PROSE[random.nextInt(PROSE.length)]).append('\n'); // duplicate-looking line
+      text.append("```").append(LANGUAGES[random.nextInt(LANGUAGES.length)]).append('\n');
+      int lines = 3 + random.nextInt(40);
+      for (int i = 0; i < lines; i++) {
+        text.append(CODE[random.nextInt(CODE.length)]).append('\n');
+      }
+      text.append("```\n\n");
+    }
+    return text.toString();
+  }
+
+  // A streamed /api/generate or /api/chat response, a few characters per line
+  static String ndjson(String answer, boolean chat) {
+    StringBuilder lines = new StringBuilder(answer.length() * 8);
+    for (int i = 0; i < answer.length(); i += 4) {
+      ObjectNode chunk = chunk(answer.substring(i, Math.min(answer.length(), i + 4)), chat);
+      chunk.put("done", false);
+      lines.append(chunk).append('\n');
+    }
+    ObjectNode done = chunk("", chat);
+    done.put("done", true);
+    putStats(done);
+    return lines.append(done).append('\n').toString();
+  }
+
+  // A non-streaming /api/generate response, including the context array
+  static String singleResponse(String answer) {
+    ObjectNode response = chunk(answer, false);
+    response.put("done", true);
+    putStats(response);
+    ArrayNode context = response.putArray("context");
+    for (int i = 0; i < answer.length() / 4; i++) {
+      context.add(i * 31 % 100_000);
+    }
+    return response.toString();
+  }
+
+  static List<ConversationSession.ChatMessage> conversation(String answer) {
+    List<ConversationSession.ChatMessage> messages = new ArrayList<>();
+    for (int turn = 0; turn < 4; turn++) {
+      messages.add(new ConversationSession.ChatMessage("user", "Explain the code in step " + turn));
+      messages.add(new ConversationSession.ChatMessage("assistant", answer));
+    }
+    messages.add(new ConversationSession.ChatMessage("user", "Now write tests for it"));
+    return messages;
+  }
+
+  private static ObjectNode chunk(String text, boolean chat) {
+    ObjectNode chunk = mapper.createObjectNode();
+    chunk.put("model", "deepseek-coder-v2:16b");
+    chunk.put("created_at", "2024-06-01T12:00:00.000000Z");
+    if (chat) {
+      chunk.putObject("message").put("role", "assistant").put("content", text);
+    } else {
+      chunk.put("response", text);
+    }
+    return chunk;
+  }
+
+  private static void putStats(ObjectNode done) {
+    done.put("total_duration", 5_000_000_000L);
+    done.put("load_duration", 20_000_000L);
+    done.put("prompt_eval_count", 120);
+    done.put("prompt_eval_duration", 300_000_000L);
+    done.put("eval_count", 900);
+    done.put("eval_duration", 4_500_000_000L);
+  }
+}
@@ -0,0 +1,127 @@
+package com.blade.aicoder;
+
+import java.awt.Color;
+import java.util.concurrent.TimeUnit;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.Style;
+import javax.swing.text.StyleConstants;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Chat window hot paths on answers from 1 KB to 4 MB
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RenderingBenchmark {
+  @Param({ "1000", "100000", "4000000" })
+  int size;
+
+  private String answer;
+  private CodeBlockIndex renderedBlocks;
+
+  @Setup
+  public void setUp() {
+    answer = Payloads.codeAnswer(size);
+
+    // The answer followed by a short message, as in the chat window
+    DefaultStyledDocument doc = newDocument();
+    RenderBatcher renderer = new RenderBatcher(doc, null);
+    renderedBlocks = new CodeBlockIndex(doc);
+    for (String message : new String[] { "Write it", answer, "Done" }) {
+      RenderBatcher.Region region = renderer.newRegion();
+      renderer.append(region, "regular", "[12:00] AI:\n");
+      FloatingWindow.processMessageContent(renderer, region, null, renderedBlocks, message);
+    }
+    renderer.flush();
+  }
+
+  @Benchmark
+  public String cleanDuplicateContent() {
+    return FloatingWindow.cleanDuplicateContent(answer);
+  }
+
+  // What the Copy Code button does
+  @Benchmark
+  public String copyLastCodeBlock() {
+    return renderedBlocks.last().getCode();
+  }
+
+  // Fence parsing and styled insertion into a detached document, the whole
+  // cost of a message on both threads
+  @Benchmark
+  public int renderMessage() {
+    DefaultStyledDocument doc = newDocument();
+    RenderBatcher renderer = new RenderBatcher(doc, null);
+    FloatingWindow.processMessageContent(renderer, renderer.newRegion(), null, new CodeBlockIndex(doc), answer);
+    renderer.flush();
+    return doc.getLength();
+  }
+
+  // The part of rendering that runs on the EDT: applying the queued runs of
+  // one answer to the document. The runs are queued outside the measurement;
+  // the kilobytes counter reports the time per kilobyte of the answer.
+  @Benchmark
+  public int flush(PendingRender pending, Rendered rendered) {
+    pending.renderer.flush();
+    rendered.kilobytes += size / 1000;
+    return pending.doc.getLength();
+  }
+
+  // The runs of the answer queued for a fresh document, before every flush()
+  @State(Scope.Thread)
+  public static class PendingRender {
+    DefaultStyledDocument doc;
+    RenderBatcher renderer;
+
+    @Setup(Level.Invocation)
+    public void queue(RenderingBenchmark benchmark) {
+      doc = newDocument();
+      renderer = new RenderBatcher(doc, null);
+      FloatingWindow.processMessageContent(renderer, renderer.newRegion(), null, new CodeBlockIndex(doc),
+          benchmark.answer);
+    }
+  }
+
+  // Kilobytes flushed; JMH divides the measured time by it
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Rendered {
+    public long kilobytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      kilobytes = 0;
+    }
+  }
+
+  // Same styles as the chat window
+  private static DefaultStyledDocument newDocument() {
+    DefaultStyledDocument doc = new DefaultStyledDocument();
+    Style regular = doc.addStyle("regular", null);
+    StyleConstants.setFontFamily(regular, "Segoe UI");
+    StyleConstants.setFontSize(regular, 13);
+    Style code = doc.addStyle("code", regular);
+    StyleConstants.setBackground(code, new Color(45, 45, 50));
+    StyleConstants.setFontFamily(code, "JetBrains Mono");
+    StyleConstants.setFontSize(code, 12);
+    StyleConstants.setLeftIndent(code, 10.0f);
+    Style codeHeader = doc.addStyle("codeHeader", regular);
+    StyleConstants.setItalic(codeHeader, true);
+    StyleConstants.setBold(codeHeader, true);
+    return doc;
+  }
+}
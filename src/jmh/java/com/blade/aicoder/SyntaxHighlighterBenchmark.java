@@ -0,0 +1,79 @@
+package com.blade.aicoder;
+
+import java.util.concurrent.TimeUnit;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.SimpleAttributeSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Cost of highlighting per line of code: lexing, which runs on the
+// highlighter thread, and applying the spans, which runs on the EDT
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class SyntaxHighlighterBenchmark {
+  private static final int LINES = 1000;
+
+  private final CodeLexer lexer = CodeLexer.forLanguage("java");
+  private String code;
+
+  @Setup
+  public void setUp() {
+    StringBuilder builder = new StringBuilder();
+    while (builder.length() < 200_000) {
+      builder.append("  public static int sum(int[] values) { // adds them up\n")
+          .append("    String label = \"total\";\n")
+          .append("    int total = 0;\n")
+          .append("    for (int value : values) total += value * 31;\n")
+          .append("    return total;\n");
+    }
+    code = builder.toString();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LINES)
+  public int lexLines() {
+    int[] tokens = new int[1];
+    int state = CodeLexer.NORMAL;
+    int lineStart = 0;
+    for (int line = 0; line < LINES; line++) {
+      int lineEnd = code.indexOf('\n', lineStart);
+      state = lexer.tokenizeLine(code, lineStart, lineEnd, state, (start, end, type) -> tokens[0]++);
+      lineStart = lineEnd + 1;
+    }
+    return tokens[0];
+  }
+
+  // Lexes on the calling thread and then applies every queued line, as the
+  // EDT would
+  @Benchmark
+  @OperationsPerInvocation(LINES)
+  public int highlightLines() throws Exception {
+    int length = 0;
+    for (int line = 0; line < LINES; line++) {
+      length = code.indexOf('\n', length) + 1;
+    }
+    String block = code.substring(0, length);
+
+    DefaultStyledDocument doc = new DefaultStyledDocument();
+    doc.insertString(0, "AI:\n", null);
+    doc.insertString(doc.getLength(), block, SimpleAttributeSet.EMPTY);
+    SyntaxHighlighter highlighter = new SyntaxHighlighter(doc, Runnable::run, task -> {
+    });
+    highlighter.newBlock("java").inserted(4, block);
+    highlighter.drain();
+    return doc.getLength();
+  }
+}
@@ -1,9 +1,25 @@
 package com.blade.aicoder;
 
+import java.util.concurrent.CompletableFuture;
 import javax.swing.*;
 
 public class AICodingAssistant {
   public static void main(String[] args) {
+    // Headless: --batch prompts.jsonl [results.jsonl], see BatchRunner
+    if (args.length > 0 && args[0].equals("--batch")) {
+      System.exit(BatchRunner.run(args));
+    }
+    // Headless: sweep generation options and save the fastest as a profile
+    if (args.length > 0 && args[0].equals("--autotune")) {
+      System.exit(Autotuner.run(args));
+    }
+
+    // Headless: only the local API, for editors and scripts
+    if (args.length > 0 && args[0].equals("--server")) {
+      runServer();
+      return;
+    }
+
     // Set system look and feel
     try {
       UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
@@ -11,6 +27,12 @@ public class AICodingAssistant {
       e.printStackTrace();
     }
 
+    // Opt-in: report where the UI gets blocked
+    EdtWatchdog.startFromConfig();
+
+    // Warm up Ollama while the window is being built
+    CompletableFuture<String> warmUp = AssistantConfig.isWarmUpEnabled() ? startWarmUp() : null;
+
     // Run in EDT
     SwingUtilities.invokeLater(() -> {
       // Create system tray first
@@ -22,12 +44,56 @@ public class AICodingAssistant {
       // Create Ollama client
       OllamaClient ollamaClient = new OllamaClient(floatingWindow);
 
+      // Prompts run on a bounded pool and can be cancelled
+      RequestScheduler scheduler = RequestScheduler.fromConfig();
+
+      // Opt-in: the same client and queue over HTTP on the loopback port
+      LocalServer server = LocalServer.fromConfig(ollamaClient, scheduler);
+
       // Connect components
       floatingWindow.setOllamaClient(ollamaClient);
+      floatingWindow.setRequestScheduler(scheduler);
       trayManager.setFloatingWindow(floatingWindow);
 
       // Show initial message (ONLY ONCE)
       floatingWindow.addMessage("System", "AI Coding Assistant started! Make sure Ollama is running.", false);
+      if (server != null)
+        floatingWindow.addMessage("System", "Local API listening on " + server.getAddress(), false);
+      if (warmUp != null) {
+        warmUp.whenComplete((ready, error) -> floatingWindow.addMessage("System",
+            error == null ? ready : "Warm-up failed: " + error.getMessage(), false));
+      }
     });
   }
+
+  // The server's dispatcher thread keeps the JVM running
+  private static void runServer() {
+    int port = AssistantConfig.getServerPort();
+    LocalServer server = LocalServer.start(new OllamaClient(null), RequestScheduler.fromConfig(),
+        port > 0 ? port : LocalServer.DEFAULT_PORT);
+    if (server == null)
+      System.exit(2);
+    System.err.println("Local API listening on " + server.getAddress());
+    if (AssistantConfig.isWarmUpEnabled()) {
+      try {
+        System.err.println(OllamaClient.warmUp());
+      } catch (Exception e) {
+        System.err.println("Warm-up failed: " + e.getMessage());
+      }
+    }
+  }
+
+  private static CompletableFuture<String> startWarmUp() {
+    CompletableFuture<String> result = new CompletableFuture<>();
+    Thread thread = new Thread(() -> {
+      try {
+        result.complete(OllamaClient.warmUp());
+      } catch (Exception e) {
+        result.completeExceptionally(e);
+      }
+    }, "ollama-warmup");
+    thread.setDaemon(true);
+    thread.start();
+    return result;
+  }
 }
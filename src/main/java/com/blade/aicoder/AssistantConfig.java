@@ -0,0 +1,269 @@
+package com.blade.aicoder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+// Central place for tunable settings.
+// Every setting is read from a system property prefixed with "aicoder.",
+// e.g. java -Daicoder.stream=false -jar ai-coding-assistant-1.0.0.jar
+public final class AssistantConfig {
+  private static final String PREFIX = "aicoder.";
+
+  private AssistantConfig() {
+  }
+
+  public static String getString(String key, String defaultValue) {
+    String value = System.getProperty(PREFIX + key);
+    return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+  }
+
+  public static boolean getBoolean(String key, boolean defaultValue) {
+    String value = System.getProperty(PREFIX + key);
+    return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+  }
+
+  public static int getInt(String key, int defaultValue) {
+    String value = System.getProperty(PREFIX + key);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      System.err.println("Invalid value for " + PREFIX + key + ": " + value + ", using " + defaultValue);
+      return defaultValue;
+    }
+  }
+
+  // Streaming token mode (falls back to the blocking call when it fails)
+  public static boolean isStreamingEnabled() {
+    return getBoolean("stream", true);
+  }
+
+  // Messages kept in the chat document, older ones are spilled to disk
+  public static int getTranscriptMaxMessages() {
+    return getInt("transcript.maxMessages", 200);
+  }
+
+  public static int getTranscriptMaxChars() {
+    return getInt("transcript.maxChars", 1_000_000);
+  }
+
+  // Ollama hosts, comma separated; an entry may pin its models with
+  // =model|model, e.g. http://gpu1:11434=deepseek-coder-v2:16b
+  public static List<String> getEndpoints() {
+    List<String> endpoints = new ArrayList<>();
+    for (String entry : getString("endpoints", "http://localhost:11434").split(",")) {
+      if (!entry.trim().isEmpty())
+        endpoints.add(entry.trim());
+    }
+    return endpoints;
+  }
+
+  // How often every endpoint is asked for its models, 0 to never check
+  public static int getHealthCheckSeconds() {
+    return getInt("endpoints.healthCheckSeconds", 15);
+  }
+
+  // Multi-turn conversations on /api/chat instead of standalone prompts
+  public static boolean isConversationEnabled() {
+    return getBoolean("conversation", true);
+  }
+
+  // Context window the model is run with (num_ctx), and how much of it is
+  // kept free for the answer; prompts are cut to fit the rest
+  public static int getContextTokens() {
+    return Math.max(256, getInt("numCtx", 4096));
+  }
+
+  public static int getAnswerTokens() {
+    return Math.max(0, getInt("answerTokens", 1024));
+  }
+
+  // Small model that answers every prompt at the same time as the main one;
+  // its answer is shown until the main model's replaces it. null when off.
+  public static String getDraftModel() {
+    return getString("draftModel", null);
+  }
+
+  // How long Ollama keeps the model loaded after a request, e.g. "30m"
+  public static String getKeepAlive() {
+    return getString("keepAlive", "30m");
+  }
+
+  // Generation options used unless a request picks others, see
+  // GenerationProfile
+  public static String getProfile() {
+    return getString("profile", GenerationProfile.DEFAULT);
+  }
+
+  // Timings of the last request shown above the input area
+  public static boolean isStatusLineEnabled() {
+    return getBoolean("statusLine", false);
+  }
+
+  // Colors keywords, strings, comments and numbers in code blocks
+  public static boolean isHighlightingEnabled() {
+    return getBoolean("highlight", true);
+  }
+
+  // Logs the EDT stack whenever the UI is blocked longer than the threshold
+  public static boolean isEdtWatchdogEnabled() {
+    return getBoolean("edtWatchdog", false);
+  }
+
+  public static int getEdtStallMillis() {
+    return getInt("edtWatchdog.thresholdMillis", 200);
+  }
+
+  // Load the model in the background at startup
+  public static boolean isWarmUpEnabled() {
+    return getBoolean("warmUp", true);
+  }
+
+  // Keep every conversation on disk and make it searchable from the window
+  public static boolean isHistoryEnabled() {
+    return getBoolean("history", true);
+  }
+
+  // Where persistent data (cache, history, ...) is kept
+  public static File getDataDirectory() {
+    return new File(getString("dataDir", System.getProperty("user.home") + File.separator + ".ai-coding-assistant"));
+  }
+
+  // Response cache in front of Ollama
+  public static boolean isCacheEnabled() {
+    return getBoolean("cache", true);
+  }
+
+  public static long getCacheMemoryChars() {
+    return getInt("cache.memoryChars", 8_000_000);
+  }
+
+  public static long getCacheDiskBytes() {
+    return getInt("cache.diskMB", 256) * 1024L * 1024L;
+  }
+
+  // Source tree whose most relevant code is put in front of prompts, null
+  // when none is configured
+  public static String getProjectRoot() {
+    return getString("project.root", null);
+  }
+
+  // File extensions that are indexed, comma separated
+  public static Set<String> getProjectExtensions() {
+    Set<String> extensions = new HashSet<>();
+    for (String extension : getString("project.extensions", "java,kt,scala,groovy,gradle,py,js,jsx,ts,tsx,go,rs,"
+        + "c,h,cc,cpp,hpp,cs,swift,rb,php,sql,sh,xml,json,yml,yaml,toml,properties,md,txt,html,css").split(",")) {
+      if (!extension.trim().isEmpty())
+        extensions.add(extension.trim().toLowerCase(Locale.ROOT));
+    }
+    return extensions;
+  }
+
+  public static int getProjectMaxFileKB() {
+    return getInt("project.maxFileKB", 512);
+  }
+
+  public static int getProjectMaxFiles() {
+    return getInt("project.maxFiles", 200_000);
+  }
+
+  // How many snippets, and how many tokens of them, a prompt gets at most
+  public static int getProjectSnippets() {
+    return getInt("project.snippets", 4);
+  }
+
+  public static int getProjectContextTokens() {
+    return getInt("project.contextTokens", 1500);
+  }
+
+  // Earlier exchanges recalled by embedding similarity and put in front of
+  // prompts; needs the embedding model pulled in Ollama
+  public static boolean isMemoryEnabled() {
+    return getBoolean("memory", false);
+  }
+
+  public static String getMemoryModel() {
+    return getString("memory.model", "nomic-embed-text");
+  }
+
+  // How many exchanges a prompt gets at most, and how similar (cosine, 0 to
+  // 100) they have to be
+  public static int getMemoryMatches() {
+    return getInt("memory.matches", 3);
+  }
+
+  public static float getMemoryMinScore() {
+    return getInt("memory.minScore", 55) / 100f;
+  }
+
+  public static int getRequestThreads() {
+    return Math.max(1, getInt("requests.threads", 1));
+  }
+
+  public static int getRequestQueueSize() {
+    return getInt("requests.queue", 16);
+  }
+
+  // Headless batch mode (--batch): prompts sent at the same time, and
+  // whether results are written in input order or as they complete
+  public static int getBatchParallelism() {
+    return Math.max(1, getInt("batch.parallelism", 4));
+  }
+
+  public static boolean isBatchOrdered() {
+    return getBoolean("batch.ordered", true);
+  }
+
+  // Parts of an attached file asked about at the same time (FileMapReduce)
+  public static int getAttachParallelism() {
+    return Math.max(1, getInt("attach.parallelism", 2));
+  }
+
+  // Loopback port of the local HTTP API (LocalServer), 0 to leave it off
+  public static int getServerPort() {
+    return getInt("server.port", 0);
+  }
+
+  // Conversations the local API keeps, and how long an unused one is kept
+  public static int getServerMaxSessions() {
+    return Math.max(1, getInt("server.maxSessions", 64));
+  }
+
+  public static int getServerSessionIdleMinutes() {
+    return getInt("server.sessionIdleMinutes", 60);
+  }
+
+  // Adaptive limit on the requests in flight to each Ollama host, see
+  // ConcurrencyLimiter
+  public static boolean isLimiterEnabled() {
+    return getBoolean("limiter", true);
+  }
+
+  public static int getLimiterInitial() {
+    return getInt("limiter.initial", 2);
+  }
+
+  public static int getLimiterMax() {
+    return getInt("limiter.max", 16);
+  }
+
+  // Requests that may wait for a slot, and for how long
+  public static int getLimiterQueue() {
+    return getInt("limiter.queue", 64);
+  }
+
+  public static int getLimiterTimeoutSeconds() {
+    return getInt("limiter.timeoutSeconds", 120);
+  }
+
+  // What happens to a request that cannot wait: fail, or send it anyway
+  public static boolean isLimiterSendOnTimeout() {
+    return getString("limiter.onTimeout", "fail").equalsIgnoreCase("send");
+  }
+}
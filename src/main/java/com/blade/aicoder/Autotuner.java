@@ -0,0 +1,183 @@
+package com.blade.aicoder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// Finds the generation options that run fastest on this machine:
+//   java -jar ai-coding-assistant-1.0.0.jar --autotune [prompts.jsonl]
+//
+// num_batch and then num_thread are swept one at a time, each candidate with
+// the best values found so far for the others, starting from Ollama's own
+// choice. A candidate first sends a warm-up prompt of its own that has Ollama
+// load the model with the new options, then every prompt of the set (the "prompt" of each
+// JSONL line, or a few built-in coding prompts) with num_predict capped and
+// temperature 0, so that all candidates generate comparable answers.
+//
+// Candidates are compared by the time the whole set would take at the
+// prefill and decode rates Ollama reports for them, which leaves out model
+// loading; decode tokens/s and the time to the first token are shown next to
+// it. The fastest options are saved as the profile "tuned".
+public class Autotuner {
+  public static final String PROFILE = "tuned";
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final int MAX_TOKENS = 128;
+  private static final List<String> DEFAULT_PROMPTS = Arrays.asList(
+      "Write a Java method that reverses a singly linked list.",
+      "Explain the difference between a HashMap and a TreeMap in Java.",
+      "Find the bug: for (int i = 0; i <= list.size(); i++) sum += list.get(i);");
+  // Not one of the measured prompts, whose prefix Ollama would then have cached
+  static final String WARM_UP_PROMPT = "Name one Java keyword.";
+
+  // Result of one candidate over the prompt set
+  static class Trial {
+    final String label;
+    final GenerationProfile profile;
+    long promptTokens;
+    long promptNanos;
+    long evalTokens;
+    long evalNanos;
+    final RollingHistogram firstTokenMillis = new RollingHistogram(1000);
+    String error;
+
+    Trial(String label, GenerationProfile profile) {
+      this.label = label;
+      this.profile = profile;
+    }
+
+    // Seconds the reference workload takes at this candidate's rates
+    double seconds(Trial reference) {
+      if (error != null || promptNanos == 0 || evalNanos == 0)
+        return Double.MAX_VALUE;
+      return reference.promptTokens * (promptNanos / 1e9 / promptTokens)
+          + reference.evalTokens * (evalNanos / 1e9 / evalTokens);
+    }
+
+    String summary(Trial reference) {
+      if (error != null)
+        return String.format("%-22s failed: %s", label, error);
+      return String.format("%-22s %7.1f prompt tok/s %6.1f tok/s  first token %5.0f ms  set %.2f s", label,
+          promptTokens * 1e9 / promptNanos, evalTokens * 1e9 / evalNanos, firstTokenMillis.getP50(),
+          seconds(reference));
+    }
+  }
+
+  private final List<String> prompts;
+  private final CancellationToken cancellation = new CancellationToken();
+
+  public Autotuner(List<String> prompts) {
+    this.prompts = prompts;
+  }
+
+  // Entry point for --autotune; returns the exit code
+  public static int run(String[] args) {
+    List<String> prompts;
+    try {
+      prompts = args.length > 1 ? readPrompts(args[1]) : DEFAULT_PROMPTS;
+    } catch (IOException e) {
+      System.err.println("Cannot read " + args[1] + ": " + e.getMessage());
+      return 2;
+    }
+    if (prompts.isEmpty()) {
+      System.err.println("No prompts to tune with");
+      return 2;
+    }
+
+    GenerationProfile base = GenerationProfile.fromConfig();
+    GenerationProfile tuned = new Autotuner(prompts).tune(base);
+    if (tuned == null)
+      return 1;
+    try {
+      GenerationProfile.save(tuned);
+    } catch (IOException e) {
+      System.err.println("Could not save the profile: " + e.getMessage());
+      return 1;
+    }
+    System.out.println("Saved as profile \"" + PROFILE + "\" " + tuned.getOptions()
+        + "; use it with -Daicoder.profile=" + PROFILE + " or pick it in the window");
+    return 0;
+  }
+
+  // The base profile with the fastest num_batch and num_thread, named
+  // "tuned"; null when not even Ollama's defaults could be measured
+  public GenerationProfile tune(GenerationProfile base) {
+    int cores = Runtime.getRuntime().availableProcessors();
+    Set<Integer> threads = new LinkedHashSet<>();
+    for (int divisor : new int[] { 4, 2, 1 }) {
+      threads.add(Math.max(1, cores / divisor));
+    }
+
+    GenerationProfile best = base.with(PROFILE, "num_predict", MAX_TOKENS).with(PROFILE, "temperature", 0)
+        .with(PROFILE, "seed", 42);
+    Trial reference = run("Ollama's defaults", best);
+    System.out.println(reference.summary(reference));
+    if (reference.error != null)
+      return null;
+
+    Trial fastest = reference;
+    fastest = sweep("num_batch", Arrays.asList(128, 256, 512, 1024), fastest, reference);
+    fastest = sweep("num_thread", new ArrayList<>(threads), fastest, reference);
+
+    System.out.printf("Fastest: %s, %.0f%% of the time with Ollama's defaults%n", fastest.label,
+        100 * fastest.seconds(reference) / reference.seconds(reference));
+    GenerationProfile tuned = base.with(PROFILE, "num_batch", fastest.profile.getOptions().get("num_batch"));
+    return tuned.with(PROFILE, "num_thread", fastest.profile.getOptions().get("num_thread"));
+  }
+
+  private Trial sweep(String option, List<Integer> values, Trial fastest, Trial reference) {
+    Trial winner = fastest;
+    for (Integer value : values) {
+      GenerationProfile candidate = fastest.profile.with(PROFILE, option, value);
+      String label = fastest == reference ? option + "=" + value : fastest.label + ", " + option + "=" + value;
+      Trial trial = run(label, candidate);
+      System.out.println(trial.summary(reference));
+      if (trial.seconds(reference) < winner.seconds(reference))
+        winner = trial;
+    }
+    return winner;
+  }
+
+  private Trial run(String label, GenerationProfile profile) {
+    Trial trial = new Trial(label, profile);
+    try {
+      // Loads the model with these options; not counted
+      OllamaClient.measure(WARM_UP_PROMPT, profile, cancellation);
+      for (String prompt : prompts) {
+        GenerationStats stats = OllamaClient.measure(prompt, profile, cancellation);
+        trial.promptTokens += stats.promptEvalCount;
+        trial.promptNanos += stats.promptEvalDuration;
+        trial.evalTokens += stats.evalCount;
+        trial.evalNanos += stats.evalDuration;
+        trial.firstTokenMillis.record(stats.timeToFirstToken / 1e6);
+      }
+    } catch (Exception e) {
+      trial.error = e.getMessage() == null ? e.toString() : e.getMessage();
+    }
+    return trial;
+  }
+
+  private static List<String> readPrompts(String path) throws IOException {
+    List<String> prompts = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.trim().isEmpty())
+          continue;
+        JsonNode item = mapper.readTree(line);
+        if (item.path("prompt").isTextual())
+          prompts.add(item.get("prompt").asText());
+      }
+    }
+    return prompts;
+  }
+}
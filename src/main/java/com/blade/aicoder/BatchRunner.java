@@ -0,0 +1,349 @@
+package com.blade.aicoder;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Answers prompts without the window, for scripts and evaluation runs:
+//   java -jar ai-coding-assistant-1.0.0.jar --batch prompts.jsonl [results.jsonl]
+// Every input line is an object with "prompt" and optionally "id" (the line
+// number otherwise) and "profile" (see GenerationProfile); "-" or no input
+// file reads standard input. Every result is one line with the id and
+// "response" or "error", written and flushed as soon as it may be, to
+// results.jsonl or standard output.
+//
+// Up to aicoder.batch.parallelism prompts are sent at the same time. In
+// input order (aicoder.batch.ordered) a result that completes early waits
+// for the ones before it; the number of prompts that are read ahead is
+// bounded, so one slow prompt stalls reading rather than filling memory.
+// Results already in the output file are kept and their ids are skipped, so
+// an interrupted run continues where it stopped; failed prompts are tried
+// again. A report of throughput, latency and failures goes to standard error.
+public class BatchRunner {
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final long PROGRESS_INTERVAL_NANOS = 10_000_000_000L;
+  private static final int READ_AHEAD_PER_THREAD = 4;
+
+  private final OllamaClient client;
+  private final int parallelism;
+  private final boolean ordered;
+  private final ExecutorService workers;
+  private final Semaphore readAhead;
+  private final Set<CancellationToken> running = ConcurrentHashMap.newKeySet();
+  private final RollingHistogram latencyMillis = new RollingHistogram(100_000);
+  private final Map<String, Integer> failureCounts = new HashMap<>();
+  private final Map<Integer, String> pending = new HashMap<>(); // results waiting for earlier ones
+  private final AtomicInteger submitted = new AtomicInteger();
+  private final Map<String, GenerationProfile> profiles = GenerationProfile.all();
+  private Writer output;
+  private int nextToWrite = 0;
+  private int written = 0;
+  private int failed = 0;
+  private int cached = 0;
+  private long generatedTokens = 0;
+  private long startNanos;
+  private long lastProgressNanos;
+  private volatile boolean stopping = false;
+
+  public BatchRunner(OllamaClient client, int parallelism, boolean ordered) {
+    this.client = client;
+    this.parallelism = parallelism;
+    this.ordered = ordered;
+    this.readAhead = new Semaphore(parallelism * READ_AHEAD_PER_THREAD);
+    AtomicInteger threadNumber = new AtomicInteger();
+    this.workers = Executors.newFixedThreadPool(parallelism, runnable -> {
+      Thread thread = new Thread(runnable, "batch-worker-" + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  // Entry point for --batch; returns the exit code: 0 when every prompt was
+  // answered, 1 when some failed, 2 when the files could not be used
+  public static int run(String[] args) {
+    String inputPath = args.length > 1 ? args[1] : "-";
+    File outputFile = args.length > 2 ? new File(args[2]) : null;
+
+    Set<String> answered;
+    try {
+      answered = outputFile == null ? new HashSet<>() : answeredIds(outputFile);
+    } catch (IOException e) {
+      System.err.println("Cannot read " + outputFile + ": " + e.getMessage());
+      return 2;
+    }
+
+    if (AssistantConfig.isWarmUpEnabled()) {
+      try {
+        System.err.println(OllamaClient.warmUp());
+      } catch (Exception e) {
+        System.err.println("Warm-up failed: " + e.getMessage());
+      }
+    }
+
+    BatchRunner runner = new BatchRunner(new OllamaClient(null), AssistantConfig.getBatchParallelism(),
+        AssistantConfig.isBatchOrdered());
+    try (InputStream in = inputPath.equals("-") ? System.in : new FileInputStream(inputPath);
+        OutputStream out = outputFile == null ? System.out : new FileOutputStream(outputFile, true)) {
+      return runner.run(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)),
+          new OutputStreamWriter(out, StandardCharsets.UTF_8), answered);
+    } catch (IOException e) {
+      System.err.println("Batch failed: " + e.getMessage());
+      return 2;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return 2;
+    }
+  }
+
+  public int run(BufferedReader input, Writer output, Set<String> answered)
+      throws IOException, InterruptedException {
+    this.output = output;
+    startNanos = System.nanoTime();
+    lastProgressNanos = startNanos;
+    // On Ctrl-C the prompts in flight are cancelled, so Ollama stops
+    // generating them, and everything complete so far is already flushed
+    Thread stopHook = new Thread(this::stop, "batch-stop");
+    Runtime.getRuntime().addShutdownHook(stopHook);
+
+    int skipped = 0;
+    int lineNumber = 0;
+    String line;
+    while (!stopping && (line = input.readLine()) != null) {
+      lineNumber++;
+      if (line.trim().isEmpty())
+        continue;
+      String id = String.valueOf(lineNumber);
+      String prompt = null;
+      GenerationProfile profile = null;
+      String invalid = null;
+      try {
+        JsonNode item = mapper.readTree(line);
+        if (item.hasNonNull("id"))
+          id = item.get("id").asText();
+        prompt = item.path("prompt").isTextual() ? item.get("prompt").asText() : null;
+        if (prompt == null)
+          invalid = "Line has no \"prompt\"";
+        if (item.hasNonNull("profile")) {
+          profile = profiles.get(item.get("profile").asText());
+          if (profile == null)
+            invalid = "No profile " + item.get("profile").asText();
+        }
+      } catch (JsonProcessingException e) {
+        invalid = "Line is not JSON: " + e.getOriginalMessage();
+      }
+      if (answered.contains(id)) {
+        skipped++;
+        continue;
+      }
+
+      int sequence = submitted.getAndIncrement();
+      readAhead.acquire();
+      String itemId = id;
+      int itemLine = lineNumber;
+      if (invalid != null) {
+        complete(sequence, failure(itemId, itemLine, invalid, 0), 0, invalid);
+      } else {
+        String itemPrompt = prompt;
+        GenerationProfile itemProfile = profile;
+        workers.execute(() -> answer(sequence, itemId, itemLine, itemPrompt, itemProfile));
+      }
+    }
+
+    // Every permit is back once the last result is written
+    readAhead.acquire(parallelism * READ_AHEAD_PER_THREAD);
+    workers.shutdown();
+    if (stopping)
+      return 2;
+    Runtime.getRuntime().removeShutdownHook(stopHook);
+    report(skipped);
+    return failed == 0 ? 0 : 1;
+  }
+
+  private void answer(int sequence, String id, int line, String prompt, GenerationProfile profile) {
+    CancellationToken cancellation = new CancellationToken();
+    running.add(cancellation);
+    GenerationStats[] stats = new GenerationStats[1];
+    long start = System.nanoTime();
+    try {
+      String response = client.sendMessage(prompt, RequestOptions.defaults()
+          .cancellation(cancellation)
+          .profile(profile)
+          .onStats(completed -> stats[0] = completed));
+      long millis = (System.nanoTime() - start) / 1_000_000;
+      ObjectNode result = mapper.createObjectNode();
+      result.put("id", id);
+      result.put("line", line);
+      result.put("response", response);
+      result.put("latencyMillis", millis);
+      if (stats[0] == null) {
+        result.put("cached", true);
+      } else {
+        result.put("promptTokens", stats[0].promptEvalCount);
+        result.put("evalTokens", stats[0].evalCount);
+        if (stats[0].trimming != null)
+          result.put("trimmed", stats[0].trimming);
+      }
+      complete(sequence, result, millis, null);
+    } catch (Exception e) {
+      if (stopping)
+        return;
+      String error = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+      long millis = (System.nanoTime() - start) / 1_000_000;
+      complete(sequence, failure(id, line, error, millis), millis, error);
+    } finally {
+      running.remove(cancellation);
+    }
+  }
+
+  private static ObjectNode failure(String id, int line, String error, long millis) {
+    ObjectNode result = mapper.createObjectNode();
+    result.put("id", id);
+    result.put("line", line);
+    result.put("error", error);
+    result.put("latencyMillis", millis);
+    return result;
+  }
+
+  // Writes the result, or holds it until the results before it are written
+  private synchronized void complete(int sequence, ObjectNode result, long millis, String error) {
+    if (stopping)
+      return;
+    if (error == null) {
+      latencyMillis.record(millis);
+      if (result.has("cached"))
+        cached++;
+      else
+        generatedTokens += result.path("evalTokens").asLong();
+    } else {
+      failed++;
+      failureCounts.merge(error, 1, Integer::sum);
+    }
+
+    try {
+      if (!ordered) {
+        write(result.toString());
+      } else {
+        pending.put(sequence, result.toString());
+        String next;
+        while ((next = pending.remove(nextToWrite)) != null) {
+          write(next);
+          nextToWrite++;
+        }
+      }
+      output.flush();
+    } catch (IOException e) {
+      System.err.println("Cannot write result: " + e.getMessage());
+      stop();
+    }
+
+    long now = System.nanoTime();
+    if (now - lastProgressNanos >= PROGRESS_INTERVAL_NANOS) {
+      lastProgressNanos = now;
+      System.err.printf("Batch: %d of %d read prompts done, %d failed, %.2f prompts/s%n", written,
+          submitted.get(), failed, written / seconds(now - startNanos));
+    }
+  }
+
+  private void write(String line) throws IOException {
+    output.write(line);
+    output.write('\n');
+    written++;
+    readAhead.release();
+  }
+
+  private void stop() {
+    stopping = true;
+    for (CancellationToken cancellation : running) {
+      cancellation.cancel();
+    }
+    synchronized (this) {
+      try {
+        output.flush();
+      } catch (IOException e) {
+        // nothing more can be saved
+      }
+    }
+    // Lets run() return when it waits for results that will not come
+    readAhead.release(parallelism * READ_AHEAD_PER_THREAD);
+  }
+
+  private synchronized void report(int skipped) {
+    double seconds = seconds(System.nanoTime() - startNanos);
+    System.err.printf("Batch done: %d prompts in %.1f s, %.2f prompts/s, %.1f generated tokens/s%n", written,
+        seconds, written / seconds, generatedTokens / seconds);
+    if (latencyMillis.getCount() > 0) {
+      System.err.printf("Latency (ms): p50 %.0f, p95 %.0f, p99 %.0f, max %.0f%n", latencyMillis.getP50(),
+          latencyMillis.getP95(), latencyMillis.getP99(), latencyMillis.getMax());
+    }
+    if (cached > 0)
+      System.err.println("Answered from the cache: " + cached);
+    if (skipped > 0)
+      System.err.println("Skipped, answered in an earlier run: " + skipped);
+    if (failed > 0) {
+      System.err.println("Failed: " + failed);
+      failureCounts.entrySet().stream()
+          .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+          .limit(5)
+          .forEach(entry -> System.err.println("  " + entry.getValue() + " x " + entry.getKey()));
+    }
+  }
+
+  private static double seconds(long nanos) {
+    return Math.max(1e-3, nanos / 1e9);
+  }
+
+  // The ids answered in an earlier run. A last line cut off by an
+  // interruption is removed, so the results appended after it stay valid
+  // JSONL.
+  static Set<String> answeredIds(File outputFile) throws IOException {
+    Set<String> answered = new HashSet<>();
+    if (!outputFile.isFile())
+      return answered;
+    try (RandomAccessFile file = new RandomAccessFile(outputFile, "rw")) {
+      long end = file.length();
+      while (end > 0) {
+        file.seek(end - 1);
+        if (file.read() == '\n')
+          break;
+        end--;
+      }
+      file.setLength(end);
+    }
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(outputFile), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        try {
+          JsonNode result = mapper.readTree(line);
+          if (result.hasNonNull("id") && !result.has("error"))
+            answered.add(result.get("id").asText());
+        } catch (JsonProcessingException e) {
+          // not a result line
+        }
+      }
+    }
+    return answered;
+  }
+}
@@ -0,0 +1,65 @@
+package com.blade.aicoder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+// Lets a running request be stopped from another thread. Whoever owns a
+// resource that has to be torn down (an HTTP exchange, a response stream)
+// registers a hook; cancel() runs all hooks once. A token may outlive many
+// requests (e.g. all parts of an attached file), so a hook is removed again
+// once its resource is gone.
+public class CancellationToken {
+  private final List<Runnable> hooks = new ArrayList<>();
+  private volatile boolean cancelled = false;
+
+  // Removes the hook; closing it more than once does no harm
+  public interface Registration extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  // Runs the hook right away if the token is already cancelled
+  public Registration onCancel(Runnable hook) {
+    synchronized (this) {
+      if (!cancelled) {
+        hooks.add(hook);
+        return () -> remove(hook);
+      }
+    }
+    hook.run();
+    return () -> {
+    };
+  }
+
+  private synchronized void remove(Runnable hook) {
+    hooks.remove(hook);
+  }
+
+  public void cancel() {
+    List<Runnable> toRun;
+    synchronized (this) {
+      if (cancelled)
+        return;
+      cancelled = true;
+      toRun = new ArrayList<>(hooks);
+      hooks.clear();
+    }
+    for (Runnable hook : toRun) {
+      try {
+        hook.run();
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  public void throwIfCancelled() {
+    if (cancelled)
+      throw new CancellationException("Request cancelled");
+  }
+}
@@ -0,0 +1,194 @@
+package com.blade.aicoder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+// Keeps the chat document bounded. Only the newest messages stay in the
+// document; older ones are removed from it and written to an append-only
+// spill file, from where they can be loaded back a page at a time when the
+// user scrolls to the top. Loaded pages are pinned: nothing is trimmed while
+// the user reads them, and the limits apply again once unpin() is called
+// when the user is back at the newest messages.
+public class ChatTranscript {
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  // A message as it is stored in the spill file
+  public static class Entry {
+    public String timestamp;
+    public String sender;
+    public String text;
+
+    public Entry() {
+    }
+
+    public Entry(String timestamp, String sender, String text) {
+      this.timestamp = timestamp;
+      this.sender = sender;
+      this.text = text;
+    }
+  }
+
+  private static class Resident {
+    final Entry entry;
+    final RenderBatcher.Region region;
+    final boolean onDisk; // loaded back from the spill file
+    boolean complete;
+
+    Resident(Entry entry, RenderBatcher.Region region, boolean onDisk, boolean complete) {
+      this.entry = entry;
+      this.region = region;
+      this.onDisk = onDisk;
+      this.complete = complete;
+    }
+  }
+
+  private final RenderBatcher renderer;
+  private final int maxMessages;
+  private final long maxChars;
+
+  // Guarded by this
+  private final Deque<Resident> resident = new ArrayDeque<>();
+  private long residentChars = 0;
+  private RandomAccessFile spillFile;
+  private long[] spillOffsets = new long[64];
+  private int spilledCount = 0;
+  private int loadedFrom = 0; // oldest spilled message that is back in the document
+  private boolean pinned = false;
+
+  public ChatTranscript(RenderBatcher renderer, int maxMessages, long maxChars) {
+    this.renderer = renderer;
+    this.maxMessages = Math.max(1, maxMessages);
+    this.maxChars = Math.max(1, maxChars);
+  }
+
+  // Registers a new message at the end of the transcript and trims the oldest
+  // ones if the limits are exceeded. Incomplete messages (still streaming)
+  // are never trimmed until complete() is called for them.
+  public synchronized void add(Entry entry, RenderBatcher.Region region, boolean complete) {
+    resident.addLast(new Resident(entry, region, false, complete));
+    residentChars += entry.text.length();
+    trim();
+  }
+
+  public synchronized void complete(RenderBatcher.Region region, String text) {
+    for (Resident r : resident) {
+      if (r.region == region) {
+        residentChars += text.length() - r.entry.text.length();
+        r.entry.text = text;
+        r.complete = true;
+        break;
+      }
+    }
+    trim();
+  }
+
+  public synchronized boolean hasOlder() {
+    return loadedFrom > 0;
+  }
+
+  // Renders a message that is loaded back from the spill file into a region
+  // placed at the start of the document
+  public interface Restorer {
+    RenderBatcher.Region restore(Entry entry);
+  }
+
+  // Brings back up to count messages that precede the oldest one in the
+  // document, newest first so that each lands in front of the previous one
+  public synchronized int restoreOlder(int count, Restorer restorer) throws IOException {
+    int from = Math.max(0, loadedFrom - count);
+    int restored = 0;
+    for (int i = loadedFrom - 1; i >= from; i--) {
+      spillFile.seek(spillOffsets[i]);
+      byte[] record = new byte[spillFile.readInt()];
+      spillFile.readFully(record);
+      Entry entry = mapper.readValue(record, Entry.class);
+
+      RenderBatcher.Region region = restorer.restore(entry);
+      resident.addFirst(new Resident(entry, region, true, true));
+      residentChars += entry.text.length();
+      restored++;
+    }
+    loadedFrom = from;
+    pinned = true;
+    return restored;
+  }
+
+  public synchronized boolean isPinned() {
+    return pinned;
+  }
+
+  // The user is done with the loaded pages, trims back to the limits
+  public synchronized void unpin() {
+    pinned = false;
+    trim();
+  }
+
+  public synchronized void clear() {
+    resident.clear();
+    residentChars = 0;
+    spilledCount = 0;
+    loadedFrom = 0;
+    pinned = false;
+    if (spillFile != null) {
+      try {
+        spillFile.setLength(0);
+      } catch (IOException e) {
+        System.err.println("Could not clear the transcript spill file: " + e.getMessage());
+      }
+    }
+  }
+
+  private void trim() {
+    if (pinned)
+      return;
+    Resident lastRemoved = null;
+    while (resident.size() > 1 && (resident.size() > maxMessages || residentChars > maxChars)) {
+      Resident oldest = resident.peekFirst();
+      if (!oldest.complete)
+        break;
+
+      if (oldest.onDisk) {
+        loadedFrom++;
+      } else {
+        try {
+          spill(oldest.entry);
+        } catch (IOException e) {
+          // Keep it in the document rather than lose it
+          System.err.println("Could not spill the transcript: " + e.getMessage());
+          break;
+        }
+      }
+      resident.removeFirst();
+      residentChars -= oldest.entry.text.length();
+      lastRemoved = oldest;
+    }
+
+    if (lastRemoved != null)
+      renderer.removeThrough(lastRemoved.region);
+  }
+
+  private void spill(Entry entry) throws IOException {
+    if (spillFile == null) {
+      File file = File.createTempFile("ai-assistant-transcript", ".log");
+      file.deleteOnExit();
+      spillFile = new RandomAccessFile(file, "rw");
+    }
+
+    byte[] record = mapper.writeValueAsString(entry).getBytes(StandardCharsets.UTF_8);
+    long offset = spillFile.length();
+    spillFile.seek(offset);
+    spillFile.writeInt(record.length);
+    spillFile.write(record);
+
+    if (spilledCount == spillOffsets.length)
+      spillOffsets = Arrays.copyOf(spillOffsets, spilledCount * 2);
+    spillOffsets[spilledCount++] = offset;
+    loadedFrom = spilledCount;
+  }
+}
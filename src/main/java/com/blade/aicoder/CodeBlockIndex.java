@@ -0,0 +1,151 @@
+package com.blade.aicoder;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Position;
+
+// Where the code blocks of the chat document are, in document order.
+//
+// A block is recorded when its first text is inserted, as a pair of document
+// Positions, so it keeps pointing at the right text while messages are added
+// after it or loaded back in front of it. Text removed when the transcript
+// is trimmed or cleared collapses to offset 0, which no block can start at
+// (a message header always precedes it); such blocks are dropped from the
+// front of the index the next time it is used. Must be used on the EDT.
+public class CodeBlockIndex {
+  public class Block implements RenderBatcher.InsertListener {
+    private final String language;
+    private Position start; // first character
+    private Position end; // last character
+
+    private Block(String language) {
+      this.language = language;
+    }
+
+    public String getLanguage() {
+      return language;
+    }
+
+    public int getStartOffset() {
+      return start == null ? 0 : start.getOffset();
+    }
+
+    // Exclusive
+    public int getEndOffset() {
+      return end == null ? 0 : end.getOffset() + 1;
+    }
+
+    public int getLineCount() {
+      String code = getCode();
+      return code.isEmpty() ? 0 : code.split("\n", -1).length;
+    }
+
+    // The code as it was in the message, without the rendering indent
+    public String getCode() {
+      int offset = getStartOffset();
+      if (offset == 0)
+        return "";
+      try {
+        return CodeFenceParser.codeOf(doc.getText(offset, getEndOffset() - offset));
+      } catch (BadLocationException e) {
+        return "";
+      }
+    }
+
+    @Override
+    public void inserted(int offset, String text) {
+      try {
+        if (start == null) {
+          start = doc.createPosition(offset);
+          add(this);
+        }
+        end = doc.createPosition(offset + text.length() - 1);
+      } catch (BadLocationException e) {
+        e.printStackTrace();
+      }
+    }
+
+    private boolean isRemoved() {
+      return start.getOffset() == 0;
+    }
+  }
+
+  private final Document doc;
+  private final List<Block> blocks = new ArrayList<>();
+  private int removed = 0; // blocks at the front of the list that are gone
+
+  public CodeBlockIndex(Document doc) {
+    this.doc = doc;
+  }
+
+  // Listener that records the block once RenderBatcher inserts its text
+  public Block newBlock(String language) {
+    return new Block(language == null ? "" : language);
+  }
+
+  public int size() {
+    prune();
+    return blocks.size() - removed;
+  }
+
+  // 0 is the oldest block in the document
+  public Block get(int index) {
+    prune();
+    return blocks.get(removed + index);
+  }
+
+  // The newest block, or null
+  public Block last() {
+    prune();
+    return blocks.size() > removed ? blocks.get(blocks.size() - 1) : null;
+  }
+
+  // The block that contains the document offset, or null
+  public Block blockAt(int offset) {
+    prune();
+    int low = removed;
+    int high = blocks.size() - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      Block block = blocks.get(middle);
+      if (offset < block.getStartOffset()) {
+        high = middle - 1;
+      } else if (offset >= block.getEndOffset()) {
+        low = middle + 1;
+      } else {
+        return block;
+      }
+    }
+    return null;
+  }
+
+  public void clear() {
+    blocks.clear();
+    removed = 0;
+  }
+
+  // Blocks of new messages go to the end; blocks of messages loaded back
+  // from the spill file are placed before the ones that follow them
+  private void add(Block block) {
+    prune();
+    int offset = block.getStartOffset();
+    int index = blocks.size();
+    while (index > removed && blocks.get(index - 1).getStartOffset() > offset) {
+      index--;
+    }
+    blocks.add(index, block);
+  }
+
+  // Trimmed messages are always the oldest, so their blocks are at the front
+  private void prune() {
+    while (removed < blocks.size() && blocks.get(removed).isRemoved()) {
+      removed++;
+    }
+    if (removed > 0 && removed >= blocks.size() / 2) {
+      blocks.subList(0, removed).clear();
+      removed = 0;
+    }
+  }
+}
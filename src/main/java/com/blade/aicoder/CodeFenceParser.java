@@ -0,0 +1,316 @@
+package com.blade.aicoder;
+
+import java.util.Locale;
+
+// Incremental replacement for splitting a message on ``` fences.
+// Text can be fed in arbitrary chunks (e.g. streamed tokens); only the style
+// runs produced by the new characters are emitted, so the cost of a call
+// depends on the chunk size and not on the length of the message so far.
+//
+// On a complete message the output is identical to the old split/trim
+// rendering: regular text is trimmed and loses its blank lines, a code block
+// gets a "▸ LANG CODE" header when its first line looks like a language tag,
+// and every code line is indented by four spaces.
+public class CodeFenceParser {
+  public static final String REGULAR = "regular";
+  public static final String CODE = "code";
+  public static final String CODE_HEADER = "codeHeader";
+
+  private static final String CODE_INDENT = "    ";
+  private static final int MAX_LANGUAGE_LENGTH = 20;
+
+  // Code blocks: first line is held back until we know if it is a language tag
+  private static final int SKIP_LEADING = 0;
+  private static final int FIRST_LINE = 1;
+  private static final int AFTER_FIRST_LINE = 2;
+  private static final int BODY = 3;
+
+  public interface StyleRunSink {
+    void append(String styleName, String text);
+
+    // Brackets the code runs of one block; language is "" when there is no tag
+    default void codeBlockStarted(String language) {
+    }
+
+    default void codeBlockEnded() {
+    }
+  }
+
+  private final StyleRunSink sink;
+
+  // Fence state
+  private int partIndex = 0;
+  private int pendingTicks = 0;
+
+  // State of the current part (text between two fences)
+  private boolean started = false;
+  private final StringBuilder pendingWhitespace = new StringBuilder();
+  private int codePhase = SKIP_LEADING;
+  private final StringBuilder firstLine = new StringBuilder();
+  private int firstLineTrimmedLength = 0;
+  private boolean firstLineHasSpace = false;
+  private boolean notLanguage = false;
+  private String language = "";
+
+  // Output coalescing: adjacent characters of the same style form one run
+  private final StringBuilder run = new StringBuilder();
+  private String runStyle;
+
+  public CodeFenceParser(StyleRunSink sink) {
+    this.sink = sink;
+  }
+
+  public boolean isInCode() {
+    return partIndex % 2 == 1;
+  }
+
+  public void feed(CharSequence chunk) {
+    for (int i = 0; i < chunk.length(); i++) {
+      char c = chunk.charAt(i);
+      if (c == '`') {
+        if (++pendingTicks == 3) {
+          pendingTicks = 0;
+          endPart();
+        }
+      } else {
+        flushTicks();
+        accept(c);
+      }
+    }
+    flushRun();
+  }
+
+  // Call once the message is complete
+  public void finish() {
+    flushTicks();
+    endPart();
+    flushRun();
+  }
+
+  private void flushTicks() {
+    for (; pendingTicks > 0; pendingTicks--) {
+      accept('`');
+    }
+  }
+
+  private void accept(char c) {
+    if (isInCode()) {
+      acceptCode(c);
+    } else {
+      acceptRegular(c);
+    }
+  }
+
+  private void acceptRegular(char c) {
+    if (isWhitespace(c)) {
+      if (started)
+        pendingWhitespace.append(c);
+      return;
+    }
+
+    if (!started) {
+      started = true;
+      if (partIndex > 0)
+        emit(REGULAR, "\n");
+    } else if (pendingWhitespace.length() > 0) {
+      // Blank lines in between collapse into a single line break
+      int first = indexOf(pendingWhitespace, '\n');
+      if (first < 0) {
+        emit(REGULAR, pendingWhitespace);
+      } else {
+        int last = lastIndexOf(pendingWhitespace, '\n');
+        emit(REGULAR, pendingWhitespace.subSequence(0, first));
+        emit(REGULAR, "\n");
+        emit(REGULAR, pendingWhitespace.subSequence(last + 1, pendingWhitespace.length()));
+      }
+      pendingWhitespace.setLength(0);
+    }
+    emit(REGULAR, c);
+  }
+
+  private void acceptCode(char c) {
+    switch (codePhase) {
+      case SKIP_LEADING:
+        if (!isWhitespace(c)) {
+          codePhase = FIRST_LINE;
+          acceptFirstLine(c);
+        }
+        break;
+      case FIRST_LINE:
+        if (c == '\n') {
+          codePhase = AFTER_FIRST_LINE;
+        } else {
+          acceptFirstLine(c);
+        }
+        break;
+      case AFTER_FIRST_LINE:
+        // Language tag only if more code follows the first line
+        if (!isWhitespace(c)) {
+          language = firstLine.substring(0, firstLineTrimmedLength);
+          emit(REGULAR, "\n");
+          emit(CODE_HEADER, "▸ " + language.toUpperCase(Locale.ROOT) + " CODE\n");
+          codePhase = BODY;
+          acceptCodeBody(c);
+        }
+        break;
+      default:
+        acceptCodeBody(c);
+        break;
+    }
+  }
+
+  private void acceptFirstLine(char c) {
+    firstLine.append(c);
+    if (c == ' ') {
+      firstLineHasSpace = true;
+    } else if (!isWhitespace(c)) {
+      firstLineTrimmedLength = firstLine.length();
+      if (firstLineHasSpace || firstLineTrimmedLength >= MAX_LANGUAGE_LENGTH) {
+        notLanguage = true;
+      }
+    }
+
+    if (notLanguage) {
+      // Not a language tag: the buffered line is ordinary code
+      codePhase = BODY;
+      replayFirstLine(firstLine.length());
+    }
+  }
+
+  private void replayFirstLine(int length) {
+    for (int i = 0; i < length; i++) {
+      acceptCodeBody(firstLine.charAt(i));
+    }
+    firstLine.setLength(0);
+  }
+
+  private void acceptCodeBody(char c) {
+    if (isWhitespace(c)) {
+      if (started)
+        pendingWhitespace.append(c);
+      return;
+    }
+
+    if (!started) {
+      started = true;
+      flushRun();
+      sink.codeBlockStarted(language);
+      emit(CODE, "\n");
+      emit(CODE, CODE_INDENT);
+    } else if (pendingWhitespace.length() > 0) {
+      int first = indexOf(pendingWhitespace, '\n');
+      if (first < 0) {
+        emit(CODE, pendingWhitespace);
+      } else {
+        // Blank lines inside code are kept, reduced to the indent
+        int last = lastIndexOf(pendingWhitespace, '\n');
+        emit(CODE, pendingWhitespace.subSequence(0, first + 1));
+        for (int i = first + 1; i <= last; i++) {
+          if (pendingWhitespace.charAt(i) == '\n') {
+            emit(CODE, CODE_INDENT);
+            emit(CODE, "\n");
+          }
+        }
+        emit(CODE, CODE_INDENT);
+        emit(CODE, pendingWhitespace.subSequence(last + 1, pendingWhitespace.length()));
+      }
+      pendingWhitespace.setLength(0);
+    }
+    emit(CODE, c);
+  }
+
+  private void endPart() {
+    if (isInCode()) {
+      if (codePhase == FIRST_LINE || codePhase == AFTER_FIRST_LINE) {
+        // Single line block, never a language tag
+        codePhase = BODY;
+        replayFirstLine(firstLineTrimmedLength);
+      }
+      if (started) {
+        emit(CODE, "\n");
+        flushRun();
+        sink.codeBlockEnded();
+      }
+    }
+
+    // Trailing whitespace of a part is dropped, like trim()
+    partIndex++;
+    started = false;
+    pendingWhitespace.setLength(0);
+    codePhase = SKIP_LEADING;
+    firstLine.setLength(0);
+    firstLineTrimmedLength = 0;
+    firstLineHasSpace = false;
+    notLanguage = false;
+    language = "";
+  }
+
+  private void emit(String style, CharSequence text) {
+    if (text.length() == 0)
+      return;
+    if (!style.equals(runStyle))
+      flushRun();
+    runStyle = style;
+    run.append(text);
+  }
+
+  private void emit(String style, char c) {
+    if (!style.equals(runStyle))
+      flushRun();
+    runStyle = style;
+    run.append(c);
+  }
+
+  private void flushRun() {
+    if (run.length() > 0) {
+      sink.append(runStyle, run.toString());
+      run.setLength(0);
+    }
+  }
+
+  // The code of a block as it was rendered: without the line breaks around
+  // it and the indent of every line
+  public static String codeOf(CharSequence rendered) {
+    StringBuilder code = new StringBuilder(rendered.length());
+    int from = 0;
+    int to = rendered.length();
+    if (from < to && rendered.charAt(from) == '\n')
+      from++;
+    if (to > from && rendered.charAt(to - 1) == '\n')
+      to--;
+    boolean lineStart = true;
+    for (int i = from; i < to; i++) {
+      if (lineStart && i + CODE_INDENT.length() <= to
+          && rendered.subSequence(i, i + CODE_INDENT.length()).toString().equals(CODE_INDENT)) {
+        i += CODE_INDENT.length() - 1;
+        lineStart = false;
+        continue;
+      }
+      char c = rendered.charAt(i);
+      code.append(c);
+      lineStart = c == '\n';
+    }
+    return code.toString();
+  }
+
+  // Same definition of whitespace as String.trim()
+  private static boolean isWhitespace(char c) {
+    return c <= ' ';
+  }
+
+  private static int indexOf(CharSequence text, char c) {
+    for (int i = 0; i < text.length(); i++) {
+      if (text.charAt(i) == c)
+        return i;
+    }
+    return -1;
+  }
+
+  private static int lastIndexOf(CharSequence text, char c) {
+    for (int i = text.length() - 1; i >= 0; i--) {
+      if (text.charAt(i) == c)
+        return i;
+    }
+    return -1;
+  }
+}
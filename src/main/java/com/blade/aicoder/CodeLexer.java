@@ -0,0 +1,231 @@
+package com.blade.aicoder;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+// Small hand-written lexer for syntax highlighting, one line at a time.
+// It only knows keywords, strings, comments and numbers, which is enough to
+// color code answers. Constructs that span lines (block comments, triple
+// quoted and template strings) are carried over as the state returned for
+// the end of a line, so a block can be re-tokenized starting at any line.
+public final class CodeLexer {
+  public static final int KEYWORD = 0;
+  public static final int STRING = 1;
+  public static final int COMMENT = 2;
+  public static final int NUMBER = 3;
+
+  // Line states
+  public static final int NORMAL = 0;
+  private static final int IN_BLOCK_COMMENT = 1;
+  private static final int IN_TRIPLE_DOUBLE = 2;
+  private static final int IN_TRIPLE_SINGLE = 3;
+  private static final int IN_TEMPLATE = 4;
+
+  public interface TokenSink {
+    void token(int start, int end, int type);
+  }
+
+  private static final Set<String> JAVA_KEYWORDS = words("abstract assert boolean break byte case catch char "
+      + "class const continue default do double else enum extends final finally float for goto if implements "
+      + "import instanceof int interface long native new package private protected public return short static "
+      + "strictfp super switch synchronized this throw throws transient try void volatile while var record "
+      + "true false null fun val when object companion data sealed override open internal lateinit def");
+  private static final Set<String> C_KEYWORDS = words("auto break case char const continue default do double "
+      + "else enum extern float for goto if inline int long register return short signed sizeof static struct "
+      + "switch typedef union unsigned void volatile while class namespace template typename public private "
+      + "protected virtual override new delete this using nullptr true false bool include define fn let mut "
+      + "impl trait pub use mod match loop crate self func package import go defer chan map range type var "
+      + "interface select string guard");
+  private static final Set<String> JS_KEYWORDS = words("async await break case catch class const continue "
+      + "debugger default delete do else export extends finally for from function if import in instanceof let "
+      + "new of return static super switch this throw try typeof var void while yield true false null undefined "
+      + "interface type enum implements private public protected readonly as");
+  private static final Set<String> PYTHON_KEYWORDS = words("and as assert async await break class continue def "
+      + "del elif else except finally for from global if import in is lambda nonlocal not or pass raise return "
+      + "try while with yield True False None self");
+  private static final Set<String> SHELL_KEYWORDS = words("if then else elif fi case esac for while until do "
+      + "done in function return local export echo exit set unset source");
+  private static final Set<String> SQL_KEYWORDS = words("select from where and or not insert into values update "
+      + "set delete create table alter drop index view join inner left right outer full on group by order having "
+      + "limit offset as distinct union all null is in like between primary key foreign references default case "
+      + "when then else end exists count sum avg min max asc desc");
+  private static final Set<String> JSON_KEYWORDS = words("true false null");
+
+  private final Set<String> keywords;
+  private final boolean ignoreCase;
+  private final String lineComment; // null when the language has none
+  private final boolean blockComments;
+  private final boolean tripleQuotes;
+  private final boolean templates;
+
+  private CodeLexer(Set<String> keywords, boolean ignoreCase, String lineComment, boolean blockComments,
+      boolean tripleQuotes, boolean templates) {
+    this.keywords = keywords;
+    this.ignoreCase = ignoreCase;
+    this.lineComment = lineComment;
+    this.blockComments = blockComments;
+    this.tripleQuotes = tripleQuotes;
+    this.templates = templates;
+  }
+
+  // Picks the lexer for a code fence language tag. Unknown or missing tags
+  // get strings and numbers only.
+  public static CodeLexer forLanguage(String language) {
+    switch (language == null ? "" : language.toLowerCase(Locale.ROOT)) {
+      case "java":
+      case "kotlin":
+      case "kt":
+      case "scala":
+      case "groovy":
+        return new CodeLexer(JAVA_KEYWORDS, false, "//", true, false, false);
+      case "c":
+      case "h":
+      case "cpp":
+      case "c++":
+      case "hpp":
+      case "cs":
+      case "csharp":
+      case "go":
+      case "rust":
+      case "rs":
+      case "swift":
+        return new CodeLexer(C_KEYWORDS, false, "//", true, false, false);
+      case "javascript":
+      case "js":
+      case "jsx":
+      case "typescript":
+      case "ts":
+      case "tsx":
+        return new CodeLexer(JS_KEYWORDS, false, "//", true, false, true);
+      case "python":
+      case "py":
+        return new CodeLexer(PYTHON_KEYWORDS, false, "#", false, true, false);
+      case "bash":
+      case "sh":
+      case "shell":
+      case "zsh":
+        return new CodeLexer(SHELL_KEYWORDS, false, "#", false, false, false);
+      case "sql":
+        return new CodeLexer(SQL_KEYWORDS, true, "--", true, false, false);
+      case "json":
+        return new CodeLexer(JSON_KEYWORDS, false, null, false, false, false);
+      default:
+        return new CodeLexer(new HashSet<>(), false, null, false, false, false);
+    }
+  }
+
+  // Tokenizes text[from, to), which holds no line break, starting in the
+  // given state; returns the state at the end of the line
+  public int tokenizeLine(CharSequence text, int from, int to, int state, TokenSink sink) {
+    int i = from;
+    if (state != NORMAL) {
+      int end = findClose(text, i, to, state);
+      sink.token(i, end < 0 ? to : end, state == IN_BLOCK_COMMENT ? COMMENT : STRING);
+      if (end < 0)
+        return state;
+      i = end;
+    }
+
+    while (i < to) {
+      char c = text.charAt(i);
+      if (lineComment != null && startsWith(text, i, to, lineComment)) {
+        sink.token(i, to, COMMENT);
+        return NORMAL;
+      }
+      if (blockComments && startsWith(text, i, to, "/*")) {
+        int end = findClose(text, i + 2, to, IN_BLOCK_COMMENT);
+        sink.token(i, end < 0 ? to : end, COMMENT);
+        if (end < 0)
+          return IN_BLOCK_COMMENT;
+        i = end;
+      } else if (tripleQuotes && (startsWith(text, i, to, "\"\"\"") || startsWith(text, i, to, "'''"))) {
+        int tripleState = c == '"' ? IN_TRIPLE_DOUBLE : IN_TRIPLE_SINGLE;
+        int end = findClose(text, i + 3, to, tripleState);
+        sink.token(i, end < 0 ? to : end, STRING);
+        if (end < 0)
+          return tripleState;
+        i = end;
+      } else if (templates && c == '`') {
+        int end = findClose(text, i + 1, to, IN_TEMPLATE);
+        sink.token(i, end < 0 ? to : end, STRING);
+        if (end < 0)
+          return IN_TEMPLATE;
+        i = end;
+      } else if (c == '"' || c == '\'') {
+        int end = i + 1;
+        while (end < to && text.charAt(end) != c) {
+          end += text.charAt(end) == '\\' ? 2 : 1;
+        }
+        end = Math.min(end + 1, to);
+        sink.token(i, end, STRING);
+        i = end;
+      } else if (Character.isDigit(c)) {
+        int end = i + 1;
+        while (end < to && (Character.isLetterOrDigit(text.charAt(end)) || text.charAt(end) == '.'
+            || text.charAt(end) == '_')) {
+          end++;
+        }
+        sink.token(i, end, NUMBER);
+        i = end;
+      } else if (Character.isJavaIdentifierStart(c)) {
+        int end = i + 1;
+        while (end < to && Character.isJavaIdentifierPart(text.charAt(end))) {
+          end++;
+        }
+        String word = text.subSequence(i, end).toString();
+        if (keywords.contains(ignoreCase ? word.toLowerCase(Locale.ROOT) : word))
+          sink.token(i, end, KEYWORD);
+        i = end;
+      } else {
+        i++;
+      }
+    }
+    return NORMAL;
+  }
+
+  // End of the construct that state is in, or -1 when it goes past the line
+  private static int findClose(CharSequence text, int from, int to, int state) {
+    switch (state) {
+      case IN_BLOCK_COMMENT:
+        return indexOf(text, from, to, "*/");
+      case IN_TRIPLE_DOUBLE:
+        return indexOf(text, from, to, "\"\"\"");
+      case IN_TRIPLE_SINGLE:
+        return indexOf(text, from, to, "'''");
+      default:
+        for (int i = from; i < to; i++) {
+          if (text.charAt(i) == '\\') {
+            i++;
+          } else if (text.charAt(i) == '`') {
+            return i + 1;
+          }
+        }
+        return -1;
+    }
+  }
+
+  // Position after the match
+  private static int indexOf(CharSequence text, int from, int to, String match) {
+    for (int i = from; i <= to - match.length(); i++) {
+      if (startsWith(text, i, to, match))
+        return i + match.length();
+    }
+    return -1;
+  }
+
+  private static boolean startsWith(CharSequence text, int at, int to, String prefix) {
+    if (to - at < prefix.length())
+      return false;
+    for (int i = 0; i < prefix.length(); i++) {
+      if (text.charAt(at + i) != prefix.charAt(i))
+        return false;
+    }
+    return true;
+  }
+
+  private static Set<String> words(String list) {
+    return new HashSet<>(Arrays.asList(list.split(" ")));
+  }
+}
@@ -0,0 +1,216 @@
+package com.blade.aicoder;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+// Bounds the requests in flight to one Ollama host, at a limit that follows
+// how the host copes. Ollama runs a few generations in parallel and queues
+// the rest; past its optimum every answer gets slower without more tokens
+// per second overall, and requests queued inside Ollama can no longer be
+// reordered or given up on. Here they wait in line instead, first come first
+// served.
+//
+// The limit moves by the gradient of latency against a baseline. Every
+// completed generation gives the wall time per unit of work (a generated
+// token, or PREFILL_TOKENS_PER_UNIT prompt tokens), which is compared with a
+// slowly moving baseline for its model, so a small draft model and a large
+// main model can share a host. While latency stays within TOLERANCE of the
+// baseline the limit grows by about its square root, as long as it is
+// actually used; beyond that it shrinks in proportion to the excess. A 503, which Ollama
+// answers when its own queue is full, halves it.
+//
+// A request that waits longer than the queue timeout, or finds the queue
+// full, fails or is sent anyway, depending on the policy.
+public class ConcurrencyLimiter implements ConcurrencyLimiterMXBean {
+  private static final double MIN_LIMIT = 1;
+  private static final double TOLERANCE = 1.5;
+  private static final double SMOOTHING = 0.2;
+  private static final double SHORT_ALPHA = 0.3;
+  private static final double BASELINE_FALL = 0.3;
+  private static final double BASELINE_RISE = 0.01;
+  private static final double BASELINE_DRIFT = 0.001; // baseline movement while overloaded
+  private static final int PREFILL_TOKENS_PER_UNIT = 20;
+
+  private final String name;
+  private final double maxLimit;
+  private final int maxQueue;
+  private final long timeoutNanos;
+  private final boolean sendOnTimeout;
+  private final ArrayDeque<Object> waiters = new ArrayDeque<>();
+  private final Map<String, Double> baselines = new HashMap<>(); // millis per unit of work, per model
+  private double limit;
+  private double inflation = 1; // recent latency over the baseline
+  private int inFlight = 0;
+  private long rejected = 0;
+
+  public ConcurrencyLimiter(String name, int initialLimit, int maxLimit, int maxQueue, long timeoutMillis,
+      boolean sendOnTimeout) {
+    this.name = name;
+    this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+    this.limit = Math.max(MIN_LIMIT, Math.min(this.maxLimit, initialLimit));
+    this.maxQueue = maxQueue;
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    this.sendOnTimeout = sendOnTimeout;
+  }
+
+  // Null when the limiter is turned off
+  public static ConcurrencyLimiter fromConfig(String name) {
+    if (!AssistantConfig.isLimiterEnabled())
+      return null;
+    return new ConcurrencyLimiter(name, AssistantConfig.getLimiterInitial(), AssistantConfig.getLimiterMax(),
+        AssistantConfig.getLimiterQueue(), AssistantConfig.getLimiterTimeoutSeconds() * 1000L,
+        AssistantConfig.isLimiterSendOnTimeout());
+  }
+
+  // Waits for a permit, in arrival order. Throws RejectedExecutionException
+  // when the queue is full or the wait timed out, unless the policy is to
+  // send anyway; every return has to be paired with release().
+  public void acquire(CancellationToken cancellation) throws InterruptedException {
+    Object waiter = new Object();
+    synchronized (this) {
+      if (waiters.isEmpty() && inFlight < permits()) {
+        inFlight++;
+        return;
+      }
+      if (waiters.size() >= maxQueue) {
+        overflow(waiters.size() + " requests are already waiting");
+        return;
+      }
+      waiters.addLast(waiter);
+    }
+
+    CancellationToken.Registration hook = cancellation.onCancel(() -> {
+      synchronized (this) {
+        notifyAll();
+      }
+    });
+    long deadline = System.nanoTime() + timeoutNanos;
+    synchronized (this) {
+      try {
+        while (waiters.peekFirst() != waiter || inFlight >= permits()) {
+          if (cancellation.isCancelled())
+            throw new CancellationException("Request cancelled");
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            overflow("waited " + TimeUnit.NANOSECONDS.toSeconds(timeoutNanos) + " s for a free slot");
+            return;
+          }
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        inFlight++;
+      } finally {
+        waiters.remove(waiter);
+        notifyAll();
+        hook.close();
+      }
+    }
+  }
+
+  private void overflow(String reason) {
+    rejected++;
+    if (!sendOnTimeout)
+      throw new RejectedExecutionException("Ollama at " + name + " is busy: " + reason);
+    inFlight++;
+  }
+
+  public synchronized void release() {
+    inFlight--;
+    notifyAll();
+  }
+
+  // A generation completed; adjusts the limit by how long it took at the
+  // host, not counting the wait for a permit
+  public synchronized void record(String model, GenerationStats stats, long queuedNanos) {
+    double units = stats.evalCount + (double) stats.promptEvalCount / PREFILL_TOKENS_PER_UNIT;
+    long hostNanos = stats.wallTime - queuedNanos;
+    if (units < 1 || hostNanos <= 0)
+      return;
+    double sample = hostNanos / 1e6 / units;
+    Double baseline = baselines.get(model);
+    if (baseline == null) {
+      baselines.put(model, sample);
+      return;
+    }
+
+    double ratio = sample / baseline;
+    inflation += (ratio - inflation) * SHORT_ALPHA;
+    // The baseline follows faster samples quickly, as the first ones may have
+    // been taken under load. An overloaded host should not become the new
+    // normal, but a host that stays slower for good eventually does.
+    double alpha = ratio < 1 ? BASELINE_FALL : ratio <= TOLERANCE ? BASELINE_RISE : BASELINE_DRIFT;
+    baselines.put(model, baseline + (sample - baseline) * alpha);
+
+    double target;
+    if (inflation > TOLERANCE)
+      target = limit * Math.max(0.5, TOLERANCE / inflation);
+    else if (inFlight >= limit / 2)
+      target = limit + Math.sqrt(limit);
+    else
+      return; // not using the limit says nothing about raising it
+    setLimit(limit * (1 - SMOOTHING) + target * SMOOTHING);
+  }
+
+  // Ollama refused the request because it is overloaded
+  public synchronized void dropped() {
+    setLimit(limit / 2);
+  }
+
+  private void setLimit(double newLimit) {
+    double old = limit;
+    limit = Math.max(MIN_LIMIT, Math.min(maxLimit, newLimit));
+    if (permits() > (int) old)
+      notifyAll();
+  }
+
+  private int permits() {
+    return (int) limit;
+  }
+
+  @Override
+  public synchronized int getLimit() {
+    return permits();
+  }
+
+  @Override
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  @Override
+  public synchronized int getQueued() {
+    return waiters.size();
+  }
+
+  @Override
+  public synchronized long getRejected() {
+    return rejected;
+  }
+
+  @Override
+  public synchronized double getLatencyInflation() {
+    return inflation;
+  }
+
+  // Published as com.blade.aicoder:type=ConcurrencyLimiter,endpoint=<url>
+  public void register() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+          new StandardMBean(this, ConcurrencyLimiterMXBean.class, true),
+          new ObjectName("com.blade.aicoder:type=ConcurrencyLimiter,endpoint=" + ObjectName.quote(name)));
+    } catch (Exception e) {
+      System.err.println("Could not register limiter MBean: " + e);
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("limit %d, %d in flight, %d queued", permits(), inFlight, waiters.size());
+  }
+}
@@ -0,0 +1,16 @@
+package com.blade.aicoder;
+
+// State of one host's ConcurrencyLimiter as read through JMX
+public interface ConcurrencyLimiterMXBean {
+  int getLimit();
+
+  int getInFlight();
+
+  int getQueued();
+
+  // Requests that found the queue full or waited too long
+  long getRejected();
+
+  // Recent latency over the baseline, 1 when the host is not contended
+  double getLatencyInflation();
+}
@@ -0,0 +1,229 @@
+package com.blade.aicoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Searchable history of past conversations: a ConversationLog plus the
+// HistoryIndex over it.
+//
+// All work happens on one background thread that owns the log and the index,
+// so recording and searching never block the caller. At startup the saved
+// index is loaded and only messages logged after it was saved are indexed,
+// in batches so that searches get a turn in between. The index is saved
+// again every SAVE_EVERY messages and at exit.
+//
+// Message ids are positions in the log and the saved index refers to them,
+// so the directory belongs to one process at a time: the history holds a
+// lock on its lock file while it is open and is disabled in a process that
+// finds the lock held.
+public class ConversationHistory {
+  private static final int INDEX_BATCH = 500;
+  private static final int SAVE_EVERY = 200;
+
+  // Called on the history thread
+  public interface SearchListener {
+    void found(String query, List<ConversationLog.Message> messages);
+  }
+
+  public interface MessagesListener {
+    void loaded(List<ConversationLog.Message> messages);
+  }
+
+  private final File directory;
+  private final File indexFile;
+  private final ExecutorService worker;
+  private final AtomicLong latestSearch = new AtomicLong();
+  private volatile long conversation = System.currentTimeMillis();
+
+  // History thread only
+  private ConversationLog log;
+  private HistoryIndex index;
+  private int unsaved = 0;
+  private FileChannel lockChannel;
+  private FileLock lock;
+
+  public ConversationHistory(File directory) {
+    this.directory = directory;
+    this.indexFile = new File(directory, "index.bin");
+    this.worker = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "history-indexer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    worker.execute(this::open);
+    Runtime.getRuntime().addShutdownHook(new Thread(this::close, "history-save"));
+  }
+
+  // Null when history is turned off
+  public static ConversationHistory fromConfig() {
+    if (!AssistantConfig.isHistoryEnabled())
+      return null;
+    return new ConversationHistory(new File(AssistantConfig.getDataDirectory(), "history"));
+  }
+
+  // Messages recorded from now on belong to a new conversation
+  public void newConversation() {
+    conversation = System.currentTimeMillis();
+  }
+
+  // Can be called from any thread
+  public void record(String sender, String text) {
+    ConversationLog.Message message = new ConversationLog.Message(System.currentTimeMillis(), conversation,
+        sender, text);
+    worker.execute(() -> {
+      if (log == null)
+        return;
+      try {
+        int id = log.append(message);
+        if (index.size() == id)
+          index.add(id, message.text);
+        if (++unsaved >= SAVE_EVERY)
+          save();
+      } catch (IOException e) {
+        System.err.println("Could not record message in history: " + e.getMessage());
+      }
+    });
+  }
+
+  // Finds the newest messages containing every word of the query. A search
+  // that was overtaken by a newer one before it ran is skipped.
+  public void search(String query, int limit, SearchListener listener) {
+    long sequence = latestSearch.incrementAndGet();
+    worker.execute(() -> {
+      if (sequence != latestSearch.get())
+        return;
+      List<ConversationLog.Message> messages = new ArrayList<>();
+      if (log != null) {
+        for (int id : index.search(query, limit)) {
+          try {
+            messages.add(log.read(id));
+          } catch (IOException e) {
+            System.err.println("Could not read message " + id + " from history: " + e.getMessage());
+          }
+        }
+      }
+      listener.found(query, messages);
+    });
+  }
+
+  // The question and the answer a message belongs to, in order
+  public void loadExchange(ConversationLog.Message message, MessagesListener listener) {
+    worker.execute(() -> {
+      List<ConversationLog.Message> exchange = new ArrayList<>();
+      try {
+        boolean question = "You".equals(message.sender);
+        int otherId = question ? message.id + 1 : message.id - 1;
+        ConversationLog.Message other = log != null && otherId >= 0 && otherId < log.size() ? log.read(otherId)
+            : null;
+        if (other != null && (other.conversation != message.conversation || "You".equals(other.sender) == question))
+          other = null;
+        if (other != null && !question)
+          exchange.add(other);
+        exchange.add(message);
+        if (other != null && question)
+          exchange.add(other);
+      } catch (IOException e) {
+        exchange.add(message);
+      }
+      listener.loaded(exchange);
+    });
+  }
+
+  private void open() {
+    try {
+      if (!lock())
+        return;
+      log = new ConversationLog(directory);
+      index = HistoryIndex.load(indexFile);
+      if (index.size() > log.size())
+        index = new HistoryIndex(); // the log was replaced or cut short
+      worker.execute(this::indexBatch);
+    } catch (IOException e) {
+      System.err.println("Conversation history disabled: " + e.getMessage());
+      log = null;
+    }
+  }
+
+  private boolean lock() throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Cannot create history directory " + directory);
+    lockChannel = FileChannel.open(new File(directory, "lock").toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+    try {
+      lock = lockChannel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      lock = null; // held by another history in this process
+    }
+    if (lock == null) {
+      lockChannel.close();
+      System.err.println("Conversation history disabled: " + directory + " is in use by another process");
+    }
+    return lock != null;
+  }
+
+  // Indexes messages that are in the log but not in the saved index
+  private void indexBatch() {
+    try {
+      int end = Math.min(log.size(), index.size() + INDEX_BATCH);
+      for (int id = index.size(); id < end; id++) {
+        index.add(id, log.read(id).text);
+        unsaved++;
+      }
+      if (index.size() < log.size()) {
+        if (!worker.isShutdown())
+          worker.execute(this::indexBatch);
+      } else if (unsaved > 0) {
+        save();
+      }
+    } catch (IOException e) {
+      System.err.println("Could not index history: " + e.getMessage());
+    }
+  }
+
+  private void save() {
+    try {
+      index.save(indexFile);
+      unsaved = 0;
+    } catch (IOException e) {
+      System.err.println("Could not save history index: " + e.getMessage());
+    }
+  }
+
+  // Saves the index once the queued messages are recorded, then lets other
+  // processes have the directory
+  public void close() {
+    if (worker.isShutdown())
+      return;
+    worker.execute(() -> {
+      if (log != null && unsaved > 0)
+        save();
+      try {
+        if (log != null)
+          log.close();
+        if (lock != null) {
+          lock.release();
+          lockChannel.close();
+        }
+      } catch (IOException e) {
+        System.err.println("Could not close history: " + e.getMessage());
+      }
+      log = null;
+    });
+    worker.shutdown();
+    try {
+      worker.awaitTermination(2, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package com.blade.aicoder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Every message of every conversation, kept across restarts.
+//
+// Messages are appended to segment files of at most SEGMENT_BYTES; each
+// record is [int length][JSON]. A message's id is its position in the log, so
+// ids are dense and increasing and the location of every message is kept in
+// one long[] (segment number and offset). The locations are rebuilt at
+// startup by reading the record headers only. An incomplete record at the
+// end of the last segment, left by a crash, is cut off.
+public class ConversationLog {
+  private static final long SEGMENT_BYTES = 8L * 1024 * 1024;
+  private static final int OFFSET_BITS = 40;
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  public static class Message {
+    public int id;
+    public long time; // epoch millis
+    public long conversation; // start time of the conversation
+    public String sender;
+    public String text;
+
+    public Message() {
+    }
+
+    public Message(long time, long conversation, String sender, String text) {
+      this.time = time;
+      this.conversation = conversation;
+      this.sender = sender;
+      this.text = text;
+    }
+  }
+
+  private final File directory;
+  private final List<RandomAccessFile> segments = new ArrayList<>();
+  private long[] locations = new long[1024];
+  private int count = 0;
+
+  public ConversationLog(File directory) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create history directory " + directory);
+    }
+    this.directory = directory;
+
+    for (int segment = 0; segmentFile(segment).isFile(); segment++) {
+      RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw");
+      segments.add(file);
+      scan(segment, file);
+    }
+  }
+
+  public synchronized int size() {
+    return count;
+  }
+
+  // Stores the message and assigns its id
+  public synchronized int append(Message message) throws IOException {
+    message.id = count;
+    byte[] record = mapper.writeValueAsBytes(message);
+
+    RandomAccessFile file = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    if (file == null || (file.length() > 0 && file.length() + 4 + record.length > SEGMENT_BYTES)) {
+      file = new RandomAccessFile(segmentFile(segments.size()), "rw");
+      segments.add(file);
+    }
+    long offset = file.length();
+    file.seek(offset);
+    file.writeInt(record.length);
+    file.write(record);
+
+    addLocation(segments.size() - 1, offset);
+    return message.id;
+  }
+
+  public synchronized Message read(int id) throws IOException {
+    if (id < 0 || id >= count)
+      throw new IllegalArgumentException("No message " + id);
+    long location = locations[id];
+    RandomAccessFile file = segments.get((int) (location >>> OFFSET_BITS));
+    file.seek(location & ((1L << OFFSET_BITS) - 1));
+    byte[] record = new byte[file.readInt()];
+    file.readFully(record);
+    return mapper.readValue(record, Message.class);
+  }
+
+  public synchronized void close() throws IOException {
+    for (RandomAccessFile file : segments) {
+      file.close();
+    }
+    segments.clear();
+  }
+
+  private void scan(int segment, RandomAccessFile file) throws IOException {
+    long size = file.length();
+    long offset = 0;
+    while (offset + 4 <= size) {
+      file.seek(offset);
+      int length = file.readInt();
+      if (length < 0 || offset + 4 + length > size)
+        break;
+      addLocation(segment, offset);
+      offset += 4 + length;
+    }
+    if (offset < size) {
+      file.setLength(offset);
+    }
+  }
+
+  private void addLocation(int segment, long offset) {
+    if (count == locations.length)
+      locations = Arrays.copyOf(locations, count * 2);
+    locations[count++] = (long) segment << OFFSET_BITS | offset;
+  }
+
+  private File segmentFile(int segment) {
+    return new File(directory, String.format("segment-%06d.log", segment));
+  }
+}
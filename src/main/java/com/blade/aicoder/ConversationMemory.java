@@ -0,0 +1,207 @@
+package com.blade.aicoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Earlier exchanges recalled by meaning: every question and its answer are
+// embedded by Ollama and kept in a VectorStore, and the exchanges closest to
+// a new prompt are put in front of it.
+//
+// The texts go to a ConversationLog of their own, so an exchange's id in the
+// log is its id in the store. An exchange is logged before it is embedded;
+// exchanges that are logged but not in the store, because embedding failed
+// or the app stopped in between, are embedded again when the memory opens.
+// The store is created once the first embedding tells its size. All writing
+// happens on one background thread; recall runs on the caller's thread.
+//
+// The store's graph is updated in place through the mapping, so the directory
+// belongs to one process at a time (the window, --batch or --server): the
+// memory holds a lock on its lock file while it is open and is disabled in a
+// process that finds the lock held.
+public class ConversationMemory {
+  private static final int MAX_EMBED_CHARS = 2000;
+  private static final int MAX_RECALL_CHARS = 1500;
+
+  private final File directory;
+  private final String model;
+  private final ExecutorService worker;
+  private final CancellationToken cancellation = new CancellationToken();
+  private volatile ConversationLog log;
+  private volatile VectorStore store;
+  private volatile String reportedFailure; // last failure printed, null after a success
+  private FileChannel lockChannel;
+  private FileLock lock;
+
+  public ConversationMemory(File directory, String model) {
+    this.directory = directory;
+    this.model = model;
+    this.worker = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "memory-indexer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    worker.execute(this::open);
+    Runtime.getRuntime().addShutdownHook(new Thread(this::close, "memory-close"));
+  }
+
+  // Null when memory is turned off
+  public static ConversationMemory fromConfig() {
+    if (!AssistantConfig.isMemoryEnabled())
+      return null;
+    return new ConversationMemory(new File(AssistantConfig.getDataDirectory(), "memory"),
+        AssistantConfig.getMemoryModel());
+  }
+
+  // Can be called from any thread
+  public void remember(String question, String answer) {
+    String text = "Q: " + question.trim() + "\nA: " + answer.trim();
+    worker.execute(() -> {
+      if (log == null)
+        return;
+      try {
+        log.append(new ConversationLog.Message(System.currentTimeMillis(), 0, "Memory", text));
+        embedMissing();
+      } catch (IOException e) {
+        System.err.println("Could not remember exchange: " + e.getMessage());
+      }
+    });
+  }
+
+  // The remembered exchanges most similar to the prompt, most similar first.
+  // Empty when nothing is similar enough or the embedding model fails.
+  public List<String> recall(String prompt, int limit, float minScore, CancellationToken requestCancellation) {
+    List<String> exchanges = new ArrayList<>();
+    VectorStore current = store;
+    if (current == null || current.size() == 0 || limit <= 0)
+      return exchanges;
+    try {
+      float[] query = OllamaClient.embed(model, truncate(prompt, MAX_EMBED_CHARS), requestCancellation);
+      if (query.length != current.getDimensions())
+        return exchanges;
+      for (VectorStore.Match match : current.search(query, limit)) {
+        if (match.score < minScore)
+          break;
+        exchanges.add(truncate(log.read(match.id).text, MAX_RECALL_CHARS));
+      }
+      reportedFailure = null;
+    } catch (Exception e) {
+      requestCancellation.throwIfCancelled();
+      reportFailure(e);
+    }
+    return exchanges;
+  }
+
+  // Exchanges that can be recalled
+  public int size() {
+    VectorStore current = store;
+    return current == null ? 0 : current.size();
+  }
+
+  public static final String CONTEXT_HEADER = "Earlier exchanges that may be relevant:\n";
+
+  // One exchange of the context that follows CONTEXT_HEADER
+  public static String formatExchange(String exchange) {
+    return "\n---\n" + exchange + "\n";
+  }
+
+  private void open() {
+    try {
+      if (!lock())
+        return;
+      log = new ConversationLog(directory);
+      int dimensions = VectorStore.storedDimensions(directory);
+      if (dimensions > 0)
+        store = new VectorStore(directory, dimensions);
+      embedMissing();
+    } catch (IOException e) {
+      System.err.println("Conversation memory disabled: " + e.getMessage());
+      log = null;
+    }
+  }
+
+  private boolean lock() throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Cannot create memory directory " + directory);
+    lockChannel = FileChannel.open(new File(directory, "lock").toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+    try {
+      lock = lockChannel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      lock = null; // held by another memory in this process
+    }
+    if (lock == null) {
+      lockChannel.close();
+      System.err.println("Conversation memory disabled: " + directory + " is in use by another process");
+    }
+    return lock != null;
+  }
+
+  // Embeds the logged exchanges the store does not have yet, in id order.
+  // Stops at the first failure; the next exchange remembered tries again.
+  private void embedMissing() throws IOException {
+    while (!cancellation.isCancelled()) {
+      int id = store == null ? 0 : store.size();
+      if (id >= log.size())
+        return;
+      float[] vector;
+      try {
+        vector = OllamaClient.embed(model, truncate(log.read(id).text, MAX_EMBED_CHARS), cancellation);
+      } catch (Exception e) {
+        reportFailure(e);
+        return;
+      }
+      reportedFailure = null;
+      if (store == null || store.getDimensions() != vector.length) {
+        // A new store, or the embedding model was changed and the old
+        // vectors cannot be compared with the new ones
+        store = new VectorStore(directory, vector.length);
+        if (store.size() != id)
+          continue;
+      }
+      store.add(vector);
+    }
+  }
+
+  // Prints a failure unless it repeats the last one, so a failure that comes
+  // back after embedding has worked again is reported again
+  private void reportFailure(Exception e) {
+    String message = String.valueOf(e.getMessage());
+    if (message.equals(reportedFailure))
+      return;
+    reportedFailure = message;
+    System.err.println("Embedding with " + model + " failed, earlier exchanges are not recalled: " + message);
+  }
+
+  private static String truncate(String text, int maxChars) {
+    return text.length() <= maxChars ? text : text.substring(0, maxChars);
+  }
+
+  public void close() {
+    if (worker.isShutdown())
+      return;
+    cancellation.cancel();
+    worker.shutdown();
+    try {
+      worker.awaitTermination(2, TimeUnit.SECONDS);
+      if (log != null)
+        log.close();
+      if (lock != null) {
+        lock.release();
+        lockChannel.close();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      System.err.println("Could not close memory: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package com.blade.aicoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Message history of one multi-turn conversation, sent to /api/chat.
+// Ollama keeps the model (and its KV cache of the previous turns) loaded for
+// keep_alive, so a follow-up turn only pays prefill for the new tokens. The
+// prompt_eval_* numbers of each turn show how much prefill was actually done.
+public class ConversationSession {
+  // One entry of the /api/chat "messages" array
+  public static class ChatMessage {
+    public String role;
+    public String content;
+
+    public ChatMessage() {
+    }
+
+    public ChatMessage(String role, String content) {
+      this.role = role;
+      this.content = content;
+    }
+  }
+
+  private final List<ChatMessage> messages = new ArrayList<>();
+  private int turns = 0;
+  private GenerationStats lastTurnStats = new GenerationStats();
+
+  public synchronized List<ChatMessage> getMessages() {
+    return Collections.unmodifiableList(new ArrayList<>(messages));
+  }
+
+  // Only completed turns become part of the history
+  public synchronized void addTurn(String userMessage, String assistantMessage, GenerationStats stats) {
+    messages.add(new ChatMessage("user", userMessage));
+    messages.add(new ChatMessage("assistant", assistantMessage));
+    turns++;
+    lastTurnStats = stats;
+  }
+
+  public synchronized void reset() {
+    messages.clear();
+    turns = 0;
+    lastTurnStats = new GenerationStats();
+  }
+
+  public synchronized int getTurns() {
+    return turns;
+  }
+
+  // Shows how much prefill the last turn needed
+  public synchronized GenerationStats getLastTurnStats() {
+    return lastTurnStats;
+  }
+}
@@ -0,0 +1,341 @@
+package com.blade.aicoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Persistent tier of the response cache.
+//
+// values.log is append-only; every record is [32 byte key][int length][UTF-8
+// text]. index-<capacity>.bin is a memory-mapped open-addressing hash table
+// from key to record offset, so a lookup touches one or two slots of the
+// mapped file and then reads a single record. Growing the table writes a new
+// file instead of resizing the mapped one, which Windows does not allow. A
+// missing or damaged index is rebuilt from the log. When the log would
+// outgrow its limit it is compacted: the newest records that fill half of it
+// are copied to a new log and the older ones are evicted, as are the records
+// that were overwritten. A value too large for the limit is not stored.
+//
+// Offsets and the mapping are only valid for the process that wrote them, so
+// the directory belongs to one process at a time (the window, --batch or
+// --server): the store holds a lock on its lock file while it is open and
+// cannot be opened while another process holds it.
+public class DiskResponseStore {
+  public static final int KEY_BYTES = 32;
+
+  private static final int MAGIC = 0x41494331; // "AIC1"
+  private static final int HEADER_BYTES = 16; // magic, capacity, count, unused
+  private static final int SLOT_BYTES = KEY_BYTES + 8;
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final File directory;
+  private final long maxLogBytes;
+
+  private final FileChannel lockChannel;
+  private final FileLock lock;
+  private RandomAccessFile log;
+  private FileChannel logChannel;
+  private MappedByteBuffer index;
+  private int capacity;
+  private int count;
+
+  public DiskResponseStore(File directory, long maxLogBytes) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create cache directory " + directory);
+    }
+    this.directory = directory;
+    this.maxLogBytes = maxLogBytes;
+
+    lockChannel = FileChannel.open(new File(directory, "lock").toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+    FileLock acquired;
+    try {
+      acquired = lockChannel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      acquired = null; // held by another store in this process
+    }
+    if (acquired == null) {
+      lockChannel.close();
+      throw new IOException(directory + " is in use by another process");
+    }
+    lock = acquired;
+
+    try {
+      log = new RandomAccessFile(new File(directory, "values.log"), "rw");
+      logChannel = log.getChannel();
+      if (!openIndex()) {
+        rebuildIndex();
+      }
+    } catch (IOException e) {
+      if (log != null)
+        log.close();
+      lock.release();
+      lockChannel.close();
+      throw e;
+    }
+  }
+
+  public synchronized String get(byte[] key) throws IOException {
+    int slot = findSlot(index, capacity, key);
+    long offset = index.getLong(slotPosition(slot) + KEY_BYTES);
+    if (offset == 0)
+      return null;
+    return readValue(offset - 1);
+  }
+
+  // Returns how many entries were evicted to make room
+  public synchronized int put(byte[] key, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    long recordBytes = KEY_BYTES + 4L + bytes.length;
+    if (recordBytes > maxLogBytes)
+      return 0;
+    int evicted = 0;
+    if (logChannel.size() + recordBytes > maxLogBytes) {
+      evicted = compact(Math.min(maxLogBytes / 2, maxLogBytes - recordBytes));
+    }
+
+    long offset = logChannel.size();
+    ByteBuffer record = ByteBuffer.allocate(KEY_BYTES + 4 + bytes.length);
+    record.put(key).putInt(bytes.length).put(bytes).flip();
+    while (record.hasRemaining()) {
+      logChannel.write(record, offset + record.position());
+    }
+
+    if ((count + 1) * 10L > capacity * 7L) {
+      resizeIndex(capacity * 2);
+    }
+    insert(key, offset);
+    return evicted;
+  }
+
+  public synchronized int size() {
+    return count;
+  }
+
+  // Copies the newest entries that fit in keepBytes to a new log and indexes
+  // them; returns how many older entries were left behind
+  private int compact(long keepBytes) throws IOException {
+    long[] records = new long[count]; // offsets of the live records, oldest first once sorted
+    int live = 0;
+    for (int slot = 0; slot < capacity; slot++) {
+      long offset = index.getLong(slotPosition(slot) + KEY_BYTES);
+      if (offset != 0)
+        records[live++] = offset - 1;
+    }
+    Arrays.sort(records, 0, live);
+
+    int first = live;
+    long kept = 0;
+    while (first > 0 && kept + recordBytes(records[first - 1]) <= keepBytes) {
+      kept += recordBytes(records[--first]);
+    }
+
+    File compacted = new File(directory, "values.log.tmp");
+    try (FileChannel out = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      for (int i = first; i < live; i++) {
+        long size = recordBytes(records[i]);
+        for (long copied = 0; copied < size;) {
+          copied += logChannel.transferTo(records[i] + copied, size - copied, out);
+        }
+      }
+      out.force(true);
+    }
+
+    // From here until the new index is written a crash leaves an index that
+    // is not valid, so the next start rebuilds it from whichever log is there
+    index.putInt(0, 0);
+    index.force();
+    log.close();
+    Files.move(compacted.toPath(), new File(directory, "values.log").toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    log = new RandomAccessFile(new File(directory, "values.log"), "rw");
+    logChannel = log.getChannel();
+    int previousCapacity = capacity;
+    rebuildIndex();
+    if (previousCapacity != capacity)
+      delete(indexFile(previousCapacity));
+    return live - count;
+  }
+
+  private long recordBytes(long offset) throws IOException {
+    ByteBuffer length = ByteBuffer.allocate(4);
+    readFully(length, offset + KEY_BYTES);
+    return KEY_BYTES + 4L + length.getInt(0);
+  }
+
+  public synchronized void close() throws IOException {
+    if (!lock.isValid())
+      return;
+    try {
+      index.force();
+      log.close();
+    } finally {
+      lock.release();
+      lockChannel.close();
+    }
+  }
+
+  private String readValue(long offset) throws IOException {
+    ByteBuffer length = ByteBuffer.allocate(4);
+    readFully(length, offset + KEY_BYTES);
+    ByteBuffer bytes = ByteBuffer.allocate(length.getInt(0));
+    readFully(bytes, offset + KEY_BYTES + 4);
+    return new String(bytes.array(), StandardCharsets.UTF_8);
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (logChannel.read(buffer, position + buffer.position()) < 0)
+        throw new IOException("Truncated cache record at " + position);
+    }
+  }
+
+  private void insert(byte[] key, long offset) {
+    int slot = findSlot(index, capacity, key);
+    int position = slotPosition(slot);
+    if (index.getLong(position + KEY_BYTES) == 0) {
+      count++;
+      index.putInt(8, count);
+    }
+    for (int i = 0; i < KEY_BYTES; i++) {
+      index.put(position + i, key[i]);
+    }
+    index.putLong(position + KEY_BYTES, offset + 1);
+  }
+
+  // Slot holding the key, or the empty slot where it belongs
+  private static int findSlot(ByteBuffer table, int capacity, byte[] key) {
+    int slot = (int) (ByteBuffer.wrap(key).getLong() & (capacity - 1));
+    while (true) {
+      int position = slotPosition(slot);
+      if (table.getLong(position + KEY_BYTES) == 0 || keyEquals(table, position, key))
+        return slot;
+      slot = (slot + 1) & (capacity - 1);
+    }
+  }
+
+  private static boolean keyEquals(ByteBuffer table, int position, byte[] key) {
+    for (int i = 0; i < KEY_BYTES; i++) {
+      if (table.get(position + i) != key[i])
+        return false;
+    }
+    return true;
+  }
+
+  private static int slotPosition(int slot) {
+    return HEADER_BYTES + slot * SLOT_BYTES;
+  }
+
+  private File indexFile(int tableCapacity) {
+    return new File(directory, "index-" + tableCapacity + ".bin");
+  }
+
+  // Uses the largest valid index file and removes the others
+  private boolean openIndex() throws IOException {
+    File[] files = directory.listFiles((dir, name) -> name.matches("index-\\d+\\.bin"));
+    if (files == null)
+      return false;
+
+    for (File file : files) {
+      MappedByteBuffer mapped = file.length() >= HEADER_BYTES ? map(file, file.length()) : null;
+      int storedCapacity = mapped == null ? 0 : mapped.getInt(4);
+      boolean valid = mapped != null && mapped.getInt(0) == MAGIC && Integer.bitCount(storedCapacity) == 1
+          && file.length() == HEADER_BYTES + (long) storedCapacity * SLOT_BYTES;
+      if (valid && storedCapacity > capacity) {
+        if (index != null)
+          delete(indexFile(capacity));
+        index = mapped;
+        capacity = storedCapacity;
+        count = mapped.getInt(8);
+      } else if (!valid || storedCapacity < capacity) {
+        delete(file);
+      }
+    }
+    return index != null;
+  }
+
+  private void createIndex(int newCapacity) throws IOException {
+    int oldCapacity = capacity;
+    File file = indexFile(newCapacity);
+    Files.deleteIfExists(file.toPath());
+    MappedByteBuffer mapped = map(file, HEADER_BYTES + (long) newCapacity * SLOT_BYTES);
+    mapped.putInt(0, MAGIC);
+    mapped.putInt(4, newCapacity);
+    mapped.putInt(8, 0);
+
+    index = mapped;
+    capacity = newCapacity;
+    count = 0;
+    if (oldCapacity != 0 && oldCapacity != newCapacity)
+      delete(indexFile(oldCapacity));
+  }
+
+  // A file that is still mapped cannot be deleted on Windows
+  private static void delete(File file) {
+    if (!file.delete())
+      file.deleteOnExit();
+  }
+
+  private void resizeIndex(int newCapacity) throws IOException {
+    MappedByteBuffer old = index;
+    int oldCapacity = capacity;
+    createIndex(newCapacity);
+
+    byte[] key = new byte[KEY_BYTES];
+    for (int slot = 0; slot < oldCapacity; slot++) {
+      int position = slotPosition(slot);
+      long offset = old.getLong(position + KEY_BYTES);
+      if (offset != 0) {
+        for (int i = 0; i < KEY_BYTES; i++) {
+          key[i] = old.get(position + i);
+        }
+        insert(key, offset - 1);
+      }
+    }
+  }
+
+  // Replays the log; later records for the same key win
+  private void rebuildIndex() throws IOException {
+    capacity = 0;
+    createIndex(INITIAL_CAPACITY);
+    long size = logChannel.size();
+    long offset = 0;
+    byte[] key = new byte[KEY_BYTES];
+    ByteBuffer header = ByteBuffer.allocate(KEY_BYTES + 4);
+    while (offset + KEY_BYTES + 4 <= size) {
+      header.clear();
+      readFully(header, offset);
+      int length = header.getInt(KEY_BYTES);
+      if (length < 0 || offset + KEY_BYTES + 4 + length > size)
+        break; // incomplete last record
+      System.arraycopy(header.array(), 0, key, 0, KEY_BYTES);
+
+      if ((count + 1) * 10L > capacity * 7L) {
+        resizeIndex(capacity * 2);
+      }
+      insert(key, offset);
+      offset += KEY_BYTES + 4 + length;
+    }
+    if (offset < size) {
+      logChannel.truncate(offset);
+    }
+  }
+
+  private static MappedByteBuffer map(File file, long size) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      // The mapping stays valid after the channel is closed
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+}
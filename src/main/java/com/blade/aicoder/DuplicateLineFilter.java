@@ -0,0 +1,96 @@
+package com.blade.aicoder;
+
+// Streaming counterpart of FloatingWindow.cleanDuplicateContent: drops a line
+// when its trimmed text equals the previous kept line. A line is only held
+// back while it can still turn out to be a duplicate; as soon as it differs
+// from the previous line its characters are passed straight through.
+public class DuplicateLineFilter {
+  public interface Output {
+    void write(CharSequence text);
+  }
+
+  private final Output output;
+  private String previousLine = "";
+  private final StringBuilder line = new StringBuilder();
+  private int matched = 0; // characters of previousLine matched so far
+  private boolean seenText = false;
+  private boolean mismatch = false;
+
+  public DuplicateLineFilter(Output output) {
+    this.output = output;
+  }
+
+  public void feed(CharSequence chunk) {
+    int passStart = -1;
+    for (int i = 0; i < chunk.length(); i++) {
+      char c = chunk.charAt(i);
+      if (c == '\n') {
+        if (passStart >= 0) {
+          output.write(chunk.subSequence(passStart, i));
+          passStart = -1;
+        }
+        endLine(true);
+        continue;
+      }
+
+      line.append(c);
+      if (mismatch) {
+        if (passStart < 0)
+          passStart = i;
+        continue;
+      }
+
+      if (c <= ' ') {
+        // Leading or trailing whitespace is ignored by the comparison,
+        // interior whitespace is checked with the next visible character
+        continue;
+      }
+
+      int from = line.length() - 1;
+      if (seenText)
+        from -= trailingWhitespace();
+      seenText = true;
+      for (int j = from; j < line.length() && !mismatch; j++) {
+        if (matched < previousLine.length() && previousLine.charAt(matched) == line.charAt(j)) {
+          matched++;
+        } else {
+          mismatch = true;
+        }
+      }
+
+      if (mismatch)
+        output.write(line);
+    }
+
+    if (passStart >= 0)
+      output.write(chunk.subSequence(passStart, chunk.length()));
+  }
+
+  // Call once the text is complete
+  public void finish() {
+    endLine(false);
+  }
+
+  private int trailingWhitespace() {
+    int count = 0;
+    for (int i = line.length() - 2; i >= 0 && line.charAt(i) <= ' '; i--)
+      count++;
+    return count;
+  }
+
+  private void endLine(boolean newline) {
+    boolean duplicate = !mismatch && matched == previousLine.length();
+    if (!duplicate) {
+      if (!mismatch)
+        output.write(line);
+      if (newline)
+        output.write("\n");
+      previousLine = line.toString().trim();
+    }
+
+    line.setLength(0);
+    matched = 0;
+    seenText = false;
+    mismatch = false;
+  }
+}
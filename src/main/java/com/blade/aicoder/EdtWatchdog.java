@@ -0,0 +1,111 @@
+package com.blade.aicoder;
+
+import java.awt.EventQueue;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+// Measures how long events wait on the event dispatch thread. A probe event
+// is posted every PROBE_INTERVAL_MILLIS and timed until it runs. When it has
+// not run after the threshold, the EDT is blocked: its stack is logged right
+// away (so a hang that never ends is still visible), and the duration of the
+// stall is logged once it is over, with the percentiles of all stalls so far.
+//
+// Dispatch latency and stall durations are also published over JMX as
+// com.blade.aicoder:type=EdtWatchdog,histogram=...
+public class EdtWatchdog {
+  private static final long PROBE_INTERVAL_MILLIS = 100;
+
+  private final long thresholdMillis;
+  private final RollingHistogram latency = new RollingHistogram(1000);
+  private final RollingHistogram stalls = new RollingHistogram(1000);
+  private volatile Thread edt;
+
+  public EdtWatchdog(long thresholdMillis) {
+    this.thresholdMillis = Math.max(1, thresholdMillis);
+  }
+
+  // Does nothing unless aicoder.edtWatchdog is set
+  public static void startFromConfig() {
+    if (AssistantConfig.isEdtWatchdogEnabled()) {
+      new EdtWatchdog(AssistantConfig.getEdtStallMillis()).start();
+    }
+  }
+
+  public void start() {
+    register();
+    Thread thread = new Thread(this::run, "edt-watchdog");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void run() {
+    try {
+      while (true) {
+        probe();
+        Thread.sleep(PROBE_INTERVAL_MILLIS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void probe() throws InterruptedException {
+    CountDownLatch dispatched = new CountDownLatch(1);
+    long posted = System.nanoTime();
+    EventQueue.invokeLater(() -> {
+      edt = Thread.currentThread();
+      dispatched.countDown();
+    });
+
+    boolean stalled = !dispatched.await(thresholdMillis, TimeUnit.MILLISECONDS);
+    if (stalled) {
+      logStack();
+      dispatched.await();
+    }
+
+    double millis = (System.nanoTime() - posted) / 1e6;
+    latency.record(millis);
+    if (stalled) {
+      stalls.record(millis);
+      System.err.printf("EDT stall of %.0f ms; stalls so far: %s%n", millis, stalls);
+    }
+  }
+
+  private void logStack() {
+    Thread thread = edt != null ? edt : findEventDispatchThread();
+    StringBuilder message = new StringBuilder("EDT blocked for more than " + thresholdMillis + " ms");
+    if (thread != null) {
+      message.append(", ").append(thread.getName()).append(" is at:");
+      for (StackTraceElement element : thread.getStackTrace()) {
+        message.append("\n\tat ").append(element);
+      }
+    }
+    System.err.println(message);
+  }
+
+  // Before the first probe ran the thread is only known by its name
+  private static Thread findEventDispatchThread() {
+    for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+      if (entry.getKey().getName().startsWith("AWT-EventQueue"))
+        return entry.getKey();
+    }
+    return null;
+  }
+
+  private void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(new StandardMBean(latency, RollingHistogramMXBean.class, true),
+          new ObjectName("com.blade.aicoder:type=EdtWatchdog,histogram=dispatchLatencyMillis"));
+      server.registerMBean(new StandardMBean(stalls, RollingHistogramMXBean.class, true),
+          new ObjectName("com.blade.aicoder:type=EdtWatchdog,histogram=stallMillis"));
+    } catch (Exception e) {
+      System.err.println("Could not register EDT watchdog MBeans: " + e);
+    }
+  }
+}
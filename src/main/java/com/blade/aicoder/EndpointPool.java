@@ -0,0 +1,256 @@
+package com.blade.aicoder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The Ollama hosts requests can be sent to.
+//
+// A request goes to the endpoint with the fewest requests in flight that has
+// the model, ties are broken by the lower recent latency. Endpoints that fail
+// are ejected for a while, growing with every further failure, and a periodic
+// /api/tags check brings them back and refreshes the models they have. When
+// every endpoint is ejected the ejected ones are still tried, so a single
+// host behaves as before. Each endpoint has its own ConcurrencyLimiter.
+public class EndpointPool {
+  private static final long MIN_EJECT_MILLIS = 5_000;
+  private static final long MAX_EJECT_MILLIS = 120_000;
+
+  public static class Endpoint {
+    private final URI baseUri;
+    private final Set<String> pinnedModels; // null to use what /api/tags reports
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile Set<String> models; // null until the first health check
+    private final Set<String> missing = ConcurrentHashMap.newKeySet(); // answered 404 since the last check
+    private volatile double latencyMillis = 0; // moving average, time to response headers
+    private volatile long ejectedUntil = 0;
+    private int failures = 0; // consecutive, guarded by this
+    private ConcurrencyLimiter limiter; // null when requests are not limited
+
+    private Endpoint(URI baseUri, Set<String> pinnedModels) {
+      this.baseUri = baseUri;
+      this.pinnedModels = pinnedModels;
+      this.models = pinnedModels;
+    }
+
+    public URI resolve(String path) {
+      return baseUri.resolve(path);
+    }
+
+    public URI getBaseUri() {
+      return baseUri;
+    }
+
+    public int getInFlight() {
+      return inFlight.get();
+    }
+
+    public double getLatencyMillis() {
+      return latencyMillis;
+    }
+
+    public ConcurrencyLimiter getLimiter() {
+      return limiter;
+    }
+
+    public boolean isEjected() {
+      return System.currentTimeMillis() < ejectedUntil;
+    }
+
+    public boolean hasModel(String model) {
+      String name = modelName(model);
+      Set<String> known = models;
+      return !missing.contains(name) && (known == null || known.contains(name));
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s (%d in flight, %.0f ms%s%s)", baseUri, inFlight.get(), latencyMillis,
+          limiter == null ? "" : ", " + limiter, isEjected() ? ", ejected" : "");
+    }
+  }
+
+  private final List<Endpoint> endpoints;
+  private final ObjectMapper mapper = new ObjectMapper();
+  private ScheduledExecutorService healthChecker;
+
+  // Each entry is a base URL, optionally followed by =model|model to pin the
+  // models served there, e.g. http://gpu1:11434=deepseek-coder-v2:16b
+  public EndpointPool(List<String> entries) {
+    List<Endpoint> parsed = new ArrayList<>();
+    for (String entry : entries) {
+      int separator = entry.indexOf('=');
+      String url = (separator < 0 ? entry : entry.substring(0, separator)).trim();
+      Set<String> pinned = null;
+      if (separator >= 0) {
+        pinned = new HashSet<>();
+        for (String model : entry.substring(separator + 1).trim().split("\\s*\\|\\s*")) {
+          pinned.add(modelName(model));
+        }
+      }
+      parsed.add(new Endpoint(URI.create(url.endsWith("/") ? url : url + "/"), pinned));
+    }
+    if (parsed.isEmpty()) {
+      throw new IllegalArgumentException("No Ollama endpoints configured");
+    }
+    endpoints = Collections.unmodifiableList(parsed);
+  }
+
+  // Ollama lists a model pulled without a tag as name:latest, and answers
+  // requests for either name
+  public static String modelName(String model) {
+    int slash = model.lastIndexOf('/');
+    return model.indexOf(':', slash + 1) < 0 ? model + ":latest" : model;
+  }
+
+  public static EndpointPool fromConfig() {
+    EndpointPool pool = new EndpointPool(AssistantConfig.getEndpoints());
+    for (Endpoint endpoint : pool.endpoints) {
+      endpoint.limiter = ConcurrencyLimiter.fromConfig(endpoint.baseUri.toString());
+      if (endpoint.limiter != null)
+        endpoint.limiter.register();
+    }
+    pool.startHealthChecks(AssistantConfig.getHealthCheckSeconds());
+    return pool;
+  }
+
+  public List<Endpoint> getEndpoints() {
+    return endpoints;
+  }
+
+  // Picks an endpoint for the model and counts the request as in flight until
+  // release(). Endpoints in tried are skipped; returns null once every
+  // endpoint that has the model was tried.
+  public Endpoint acquire(String model, Collection<Endpoint> tried) {
+    Endpoint best = null;
+    for (boolean includeEjected : new boolean[] { false, true }) {
+      for (Endpoint endpoint : endpoints) {
+        if (tried.contains(endpoint) || !endpoint.hasModel(model) || (!includeEjected && endpoint.isEjected()))
+          continue;
+        if (best == null || endpoint.inFlight.get() < best.inFlight.get()
+            || (endpoint.inFlight.get() == best.inFlight.get() && endpoint.latencyMillis < best.latencyMillis))
+          best = endpoint;
+      }
+      if (best != null)
+        break;
+    }
+    if (best != null)
+      best.inFlight.incrementAndGet();
+    return best;
+  }
+
+  // Whether acquire() would still find an endpoint
+  public boolean hasAlternative(String model, Collection<Endpoint> tried) {
+    for (Endpoint endpoint : endpoints) {
+      if (!tried.contains(endpoint) && endpoint.hasModel(model))
+        return true;
+    }
+    return false;
+  }
+
+  public void release(Endpoint endpoint) {
+    endpoint.inFlight.decrementAndGet();
+  }
+
+  public void succeeded(Endpoint endpoint, long latencyNanos) {
+    double millis = latencyNanos / 1e6;
+    endpoint.latencyMillis = endpoint.latencyMillis == 0 ? millis : endpoint.latencyMillis * 0.8 + millis * 0.2;
+    recovered(endpoint);
+  }
+
+  private void recovered(Endpoint endpoint) {
+    synchronized (endpoint) {
+      endpoint.failures = 0;
+      endpoint.ejectedUntil = 0;
+    }
+  }
+
+  public void failed(Endpoint endpoint) {
+    synchronized (endpoint) {
+      long millis = Math.min(MAX_EJECT_MILLIS, MIN_EJECT_MILLIS << Math.min(endpoint.failures, 10));
+      endpoint.failures++;
+      endpoint.ejectedUntil = System.currentTimeMillis() + millis;
+    }
+  }
+
+  // The endpoint answered that it does not have the model. Only that model
+  // is left out, until the next health check lists the endpoint's models;
+  // pinned models stay as configured.
+  public void modelMissing(Endpoint endpoint, String model) {
+    if (endpoint.pinnedModels == null)
+      endpoint.missing.add(modelName(model));
+  }
+
+  public synchronized void startHealthChecks(int intervalSeconds) {
+    if (healthChecker != null || intervalSeconds <= 0)
+      return;
+    healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "ollama-health-check");
+      thread.setDaemon(true);
+      return thread;
+    });
+    healthChecker.scheduleWithFixedDelay(this::checkAll, 0, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  public synchronized void shutdown() {
+    if (healthChecker != null)
+      healthChecker.shutdownNow();
+    healthChecker = null;
+  }
+
+  // Asks every endpoint for its models; answering brings an ejected one back
+  public void checkAll() {
+    HttpClient client = OllamaClient.getHttpClient();
+    for (Endpoint endpoint : endpoints) {
+      HttpRequest request = HttpRequest.newBuilder()
+          .uri(endpoint.resolve("api/tags"))
+          .timeout(Duration.ofSeconds(5))
+          .GET()
+          .build();
+      try {
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+          failed(endpoint);
+          continue;
+        }
+        if (endpoint.pinnedModels == null) {
+          Set<String> models = new HashSet<>();
+          for (JsonNode model : mapper.readTree(response.body()).path("models")) {
+            if (model.path("name").isTextual())
+              models.add(modelName(model.path("name").asText()));
+            if (model.path("model").isTextual())
+              models.add(modelName(model.path("model").asText()));
+          }
+          endpoint.models = models;
+          endpoint.missing.clear();
+        }
+        recovered(endpoint);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (Exception e) {
+        failed(endpoint);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return endpoints.toString();
+  }
+}
@@ -0,0 +1,369 @@
+package com.blade.aicoder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Answers a question about a file that does not fit into the context window,
+// e.g. a large log or source file, without ever holding the file in memory.
+//
+// A first pass over the file plans parts of at most the prompt budget, cut at
+// line boundaries and preferably where a blank line or a line at the left
+// margin starts something new, so a function or a log entry is not split
+// when it can be helped. The second pass reads the parts one after another
+// and asks about each as soon as it is read (map), with a few in flight at a
+// time and at most that many parts in memory. The notes taken on each part
+// are then combined into the answer (reduce); when they do not fit into one
+// prompt, neighbouring notes are combined first.
+//
+// Files that fit are asked about in one prompt. Lines longer than
+// MAX_LINE_CHARS are cut.
+public class FileMapReduce {
+  private static final int NOTE_TOKENS = 300; // num_predict of the notes on a part
+  private static final int MAX_LINE_CHARS = 20_000;
+  private static final int PROMPT_MARGIN = 64; // tokens for the estimate being off
+  private static final int BINARY_PROBE_BYTES = 8192;
+  private static final String NOTHING = "NOTHING RELEVANT";
+
+  // Progress, called on the threads doing the work
+  public interface Listener {
+    void started(int parts);
+
+    // In completion order; notes are null when the part had nothing relevant
+    void partDone(Part part, String notes, int partsDone);
+
+    // Once, when all parts are done and their notes are being combined
+    void reducing(int notes);
+  }
+
+  public static class Part {
+    public final int index; // from 1
+    public final long firstLine; // from 1, inclusive
+    public final long lastLine;
+
+    Part(int index, long firstLine, long lastLine) {
+      this.index = index;
+      this.firstLine = firstLine;
+      this.lastLine = lastLine;
+    }
+
+    @Override
+    public String toString() {
+      return firstLine == lastLine ? "line " + firstLine : "lines " + firstLine + " to " + lastLine;
+    }
+  }
+
+  private final OllamaClient client;
+  private final File file;
+  private final String question;
+  private final RequestOptions options;
+  private final int parallelism;
+  private final String model = OllamaClient.getModelName();
+
+  public FileMapReduce(OllamaClient client, File file, String question, RequestOptions options, int parallelism) {
+    this.client = client;
+    this.file = file;
+    this.question = question;
+    this.options = options;
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  // Streams the answer to answerListener and returns it
+  public String run(Listener listener, OllamaClient.TokenListener answerListener) throws Exception {
+    checkText();
+    GenerationProfile profile = options.getProfile() != null ? options.getProfile() : GenerationProfile.fromConfig();
+    int contextTokens = AssistantConfig.getContextTokens();
+
+    int partBudget = contextTokens - NOTE_TOKENS - tokens(partPrompt("", new Part(1, 1, 1), 1)) - PROMPT_MARGIN;
+    if (partBudget < NOTE_TOKENS)
+      throw new IOException("The context window of " + contextTokens + " tokens is too small to read files in parts");
+    List<Part> parts = plan(partBudget);
+    if (parts.isEmpty())
+      throw new IOException(file.getName() + " is empty");
+    if (parts.size() == 1) {
+      // Small enough to ask about in one prompt, unless the room kept for the
+      // answer makes the difference
+      int wholeBudget = contextTokens - AssistantConfig.getAnswerTokens() - tokens(wholePrompt("", null))
+          - PROMPT_MARGIN;
+      List<Part> whole = plan(wholeBudget);
+      if (whole.size() == 1) {
+        listener.started(1);
+        String text;
+        try (LineReader reader = new LineReader(file)) {
+          text = reader.read(whole.get(0), wholeBudget);
+        }
+        return client.generate(wholePrompt(text, null), answerListener, options);
+      }
+    }
+
+    listener.started(parts.size());
+    List<String> notes = map(parts, partBudget, profile.with(profile.getName(), "num_predict", NOTE_TOKENS),
+        listener);
+    if (notes.isEmpty()) {
+      String answer = "Nothing in " + file.getName() + " seems to be about this.";
+      answerListener.onToken(answer);
+      return answer;
+    }
+
+    // Neighbouring notes are combined until all of them fit into one prompt
+    int reduceBudget = contextTokens - AssistantConfig.getAnswerTokens()
+        - tokens(reducePrompt(new ArrayList<>(), true)) - PROMPT_MARGIN;
+    listener.reducing(notes.size());
+    while (notes.size() > 1 && tokens(String.join("", notes)) > reduceBudget) {
+      notes = combine(notes, reduceBudget, profile);
+    }
+    return client.generate(reducePrompt(notes, true), answerListener, options);
+  }
+
+  // The notes on every part that had something relevant, in file order, each
+  // with a header naming its lines. A part that could not be asked about
+  // leaves a note saying so; the run only fails when no part could be.
+  private List<String> map(List<Part> parts, int budget, GenerationProfile noteProfile, Listener listener)
+      throws Exception {
+    CancellationToken cancellation = options.getCancellation();
+    AtomicInteger threadNumber = new AtomicInteger(1);
+    ExecutorService workers = Executors.newFixedThreadPool(parallelism, runnable -> {
+      Thread thread = new Thread(runnable, "file-map-" + threadNumber.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    });
+    // Parts read but not yet answered; bounds the file text held in memory
+    Semaphore inFlight = new Semaphore(parallelism);
+    AtomicInteger done = new AtomicInteger();
+    AtomicInteger failed = new AtomicInteger();
+    List<Future<String>> results = new ArrayList<>();
+    try (LineReader reader = new LineReader(file)) {
+      for (Part part : parts) {
+        inFlight.acquire();
+        cancellation.throwIfCancelled();
+        String prompt = partPrompt(reader.read(part, budget), part, parts.size());
+        results.add(workers.submit(() -> {
+          String relevant;
+          try {
+            String answer = client.generate(prompt, null, RequestOptions.defaults()
+                .bypassCache(options.isBypassCache()).cancellation(cancellation).profile(noteProfile)).trim();
+            relevant = answer.isEmpty() || answer.toUpperCase(Locale.ROOT).startsWith(NOTHING) ? null : answer;
+          } catch (Exception e) {
+            cancellation.throwIfCancelled();
+            failed.incrementAndGet();
+            System.err.println("Could not ask about part " + part.index + " of " + file.getName() + ": " + e);
+            relevant = "(This part could not be read: " + e.getMessage() + ")";
+          } finally {
+            inFlight.release();
+          }
+          listener.partDone(part, relevant, done.incrementAndGet());
+          return relevant == null ? null : "\n--- Part " + part.index + ", " + part + "\n" + relevant + "\n";
+        }));
+      }
+
+      List<String> notes = new ArrayList<>();
+      for (Future<String> result : results) {
+        String note = result.get();
+        if (note != null)
+          notes.add(note);
+      }
+      if (failed.get() == parts.size())
+        throw new IOException("None of the " + parts.size() + " parts of " + file.getName()
+            + " could be asked about, see the log");
+      return notes;
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+    } finally {
+      workers.shutdownNow();
+    }
+  }
+
+  // One round of reduce: groups of neighbouring notes that fit into a prompt
+  // are combined into one note each
+  private List<String> combine(List<String> notes, int budget, GenerationProfile profile) throws Exception {
+    // Short enough that any two combined notes fit into the next round
+    GenerationProfile noteProfile = profile.with(profile.getName(), "num_predict",
+        Math.max(1, Math.min(NOTE_TOKENS * 2, budget / 2)));
+    List<String> combined = new ArrayList<>();
+    int start = 0;
+    while (start < notes.size()) {
+      int end = start + 1;
+      int groupTokens = tokens(notes.get(start));
+      while (end < notes.size() && groupTokens + tokens(notes.get(end)) <= budget) {
+        groupTokens += tokens(notes.get(end));
+        end++;
+      }
+      if (end - start == 1 && end < notes.size())
+        end++; // always make progress
+      List<String> group = notes.subList(start, end);
+      if (group.size() == 1) {
+        combined.add(group.get(0));
+      } else {
+        String answer = client.generate(reducePrompt(group, false), null, RequestOptions.defaults()
+            .bypassCache(options.isBypassCache()).cancellation(options.getCancellation()).profile(noteProfile));
+        combined.add("\n--- Notes " + (start + 1) + " to " + end + "\n" + answer.trim() + "\n");
+      }
+      start = end;
+    }
+    return combined;
+  }
+
+  private String wholePrompt(String text, Part part) {
+    return "The file " + file.getName() + (part == null ? "" : ", " + part) + ":\n<<<\n" + text + "\n>>>\n\n"
+        + "Question:\n" + question;
+  }
+
+  private String partPrompt(String text, Part part, int partCount) {
+    return "The file " + file.getName() + " is too long to read at once, so it is read in " + partCount
+        + " parts. This is part " + part.index + ", " + part + ":\n<<<\n" + text + "\n>>>\n\n"
+        + "Question:\n" + question + "\n\n"
+        + "Write short notes on everything in this part that helps to answer the question, with line numbers"
+        + " where they help. If nothing in this part is relevant, answer only: " + NOTHING;
+  }
+
+  private String reducePrompt(List<String> notes, boolean answer) {
+    StringBuilder prompt = new StringBuilder("The file ").append(file.getName())
+        .append(" was read in parts, and these notes were taken on them for the question below.\n");
+    for (String note : notes) {
+      prompt.append(note);
+    }
+    prompt.append("\nQuestion:\n").append(question).append("\n\n");
+    prompt.append(answer ? "Answer the question from these notes."
+        : "Combine these notes into one set of notes, keeping everything that helps to answer the question.");
+    return prompt.toString();
+  }
+
+  private int tokens(String text) {
+    return TokenEstimator.estimate(model, text);
+  }
+
+  private void checkText() throws IOException {
+    byte[] probe = new byte[BINARY_PROBE_BYTES];
+    try (InputStream in = new FileInputStream(file)) {
+      int read = in.readNBytes(probe, 0, probe.length);
+      for (int i = 0; i < read; i++) {
+        if (probe[i] == 0)
+          throw new IOException(file.getName() + " does not look like a text file");
+      }
+    }
+  }
+
+  // Parts of at most budget tokens. A part ends before a line that follows
+  // a blank line or starts at the left margin when that keeps it at least
+  // half full, otherwise before the line that does not fit any more.
+  List<Part> plan(int budget) throws IOException {
+    List<Part> parts = new ArrayList<>();
+    try (LineReader reader = new LineReader(file)) {
+      long first = 1;
+      long lineNumber = 0;
+      int partTokens = 0;
+      long breakLine = 0; // a good line to start the next part with, 0 for none
+      int tokensBeforeBreak = 0;
+      boolean previousBlank = false;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        int lineTokens = tokens(line) + 1;
+        boolean blank = line.trim().isEmpty();
+        if (lineNumber > first && (previousBlank || (!blank && !Character.isWhitespace(line.charAt(0))
+            && "})]".indexOf(line.charAt(0)) < 0))) {
+          breakLine = lineNumber;
+          tokensBeforeBreak = partTokens;
+        }
+        if (partTokens + lineTokens > budget && lineNumber > first) {
+          long next = breakLine > first && tokensBeforeBreak >= budget / 2 ? breakLine : lineNumber;
+          parts.add(new Part(parts.size() + 1, first, next - 1));
+          partTokens -= next == breakLine ? tokensBeforeBreak : partTokens;
+          first = next;
+          breakLine = 0;
+        }
+        partTokens += lineTokens;
+        previousBlank = blank;
+      }
+      if (lineNumber >= first)
+        parts.add(new Part(parts.size() + 1, first, lineNumber));
+    }
+    return parts;
+  }
+
+  // Reads the file line by line, strictly forward, cutting overlong lines
+  // so a file without line breaks does not become one huge String
+  private class LineReader implements AutoCloseable {
+    private final Reader in;
+    private final char[] buffer = new char[64 * 1024];
+    private int position = 0;
+    private int limit = 0;
+    private long lineNumber = 0; // of the last line read
+
+    LineReader(File file) throws IOException {
+      in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+    }
+
+    // Null at the end of the file
+    String readLine() throws IOException {
+      StringBuilder line = new StringBuilder();
+      boolean cut = false;
+      while (true) {
+        if (position == limit) {
+          limit = in.read(buffer);
+          position = 0;
+          if (limit <= 0) {
+            limit = 0;
+            if (line.length() == 0 && !cut)
+              return null;
+            break;
+          }
+        }
+        int start = position;
+        while (position < limit && buffer[position] != '\n') {
+          position++;
+        }
+        int room = MAX_LINE_CHARS - line.length();
+        int length = position - start;
+        line.append(buffer, start, Math.min(length, room));
+        cut |= length > room;
+        if (position < limit) {
+          position++; // the line break
+          break;
+        }
+      }
+      lineNumber++;
+      int end = line.length();
+      if (end > 0 && line.charAt(end - 1) == '\r')
+        line.setLength(end - 1);
+      if (cut)
+        line.append(" [... line cut ...]");
+      return line.toString();
+    }
+
+    // The lines of the part, which has to come after the last one read. A
+    // single line that is over the budget is cut to fit.
+    String read(Part part, int budget) throws IOException {
+      while (lineNumber < part.firstLine - 1 && readLine() != null) {
+        // skip to the part
+      }
+      StringBuilder text = new StringBuilder();
+      String line;
+      while (lineNumber < part.lastLine && (line = readLine()) != null) {
+        text.append(line).append('\n');
+      }
+      int textTokens = tokens(text.toString());
+      if (textTokens > budget)
+        text.setLength((int) ((long) text.length() * budget / textTokens));
+      return text.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
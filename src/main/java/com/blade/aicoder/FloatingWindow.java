@@ -6,6 +6,12 @@ import javax.swing.text.*;
 import java.awt.*;
 import java.awt.datatransfer.StringSelection;
 import java.awt.event.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 public class FloatingWindow {
   private JFrame frame;
@@ -15,7 +21,32 @@ public class FloatingWindow {
   private JButton minimizeButton;
   private JButton copyButton;
   private JButton clearButton;
+  private JButton stopButton;
+  private JButton keepDraftButton;
+  private JButton attachButton;
+  private JCheckBox cacheCheckBox;
+  private JComboBox<GenerationProfile> profileBox;
+  private JLabel queueLabel;
+  private JLabel metricsLabel;
+  private RenderBatcher renderer;
+  private SyntaxHighlighter highlighter; // null when highlighting is off
+  private CodeBlockIndex codeBlocks;
+  private ConversationHistory history; // null when history is off
+  private JTextField searchField;
+  private Timer searchTimer;
+  private ChatTranscript transcript;
+  private volatile boolean loadingOlder = false;
+  private final ExecutorService transcriptLoader = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "transcript-loader");
+    thread.setDaemon(true);
+    return thread;
+  });
   private OllamaClient ollamaClient;
+  private RequestScheduler scheduler;
+  private ExecutorService draftExecutor; // null when there is no draft model
+  private java.io.File attachedFile; // the next prompt is about this file, null for none
+  private volatile DraftAnswer pendingDraft; // shown while the main model is answering
+  private final ConversationSession session = new ConversationSession();
 
   // Color scheme - Modern dark theme
   private final Color BACKGROUND = new Color(30, 30, 35);
@@ -27,6 +58,13 @@ public class FloatingWindow {
   private final Color CODE_BACKGROUND = SURFACE; // Darker, more distinct background
   private final Color CODE_BORDER = new Color(60, 70, 80);
 
+  // Trimmed messages loaded back per scroll to the top
+  private static final int OLDER_PAGE_SIZE = 20;
+  private static final int MAX_CODE_BLOCK_ITEMS = 20;
+  private static final int SEARCH_DELAY_MILLIS = 150;
+  private static final int SEARCH_RESULTS = 15;
+  private static final int SNIPPET_CHARS = 90;
+
   public FloatingWindow() {
     createUI();
   }
@@ -59,6 +97,9 @@ public class FloatingWindow {
     frame.addMouseListener(draggable);
     frame.addMouseMotionListener(draggable);
 
+    // Before the title bar, which has the search field when there is history
+    history = ConversationHistory.fromConfig();
+
     // Create title bar
     JPanel titleBar = createTitleBar();
     frame.add(titleBar, BorderLayout.NORTH);
@@ -89,6 +130,22 @@ public class FloatingWindow {
     // Set styled document
     StyledDocument doc = chatArea.getStyledDocument();
     addStylesToDocument(doc);
+    renderer = new RenderBatcher(chatArea);
+    highlighter = AssistantConfig.isHighlightingEnabled() ? new SyntaxHighlighter(doc) : null;
+    codeBlocks = new CodeBlockIndex(doc);
+    chatArea.addMouseListener(new MouseAdapter() {
+      @Override
+      public void mousePressed(MouseEvent e) {
+        showCodeBlockMenu(e);
+      }
+
+      @Override
+      public void mouseReleased(MouseEvent e) {
+        showCodeBlockMenu(e);
+      }
+    });
+    transcript = new ChatTranscript(renderer, AssistantConfig.getTranscriptMaxMessages(),
+        AssistantConfig.getTranscriptMaxChars());
 
     JScrollPane chatScroll = new JScrollPane(chatArea);
     chatScroll.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
@@ -99,6 +156,20 @@ public class FloatingWindow {
     verticalScrollBar.setBackground(SURFACE);
     verticalScrollBar.setForeground(PRIMARY);
 
+    // Bring back trimmed messages when the user scrolls to the top, and let
+    // them go once the user scrolls down to the newest ones again
+    verticalScrollBar.addAdjustmentListener(e -> {
+      boolean scrollable = verticalScrollBar.getMaximum() - verticalScrollBar.getVisibleAmount()
+          > verticalScrollBar.getMinimum();
+      if (e.getValue() == verticalScrollBar.getMinimum() && !loadingOlder && transcript.hasOlder()) {
+        loadOlderMessages();
+      } else if (scrollable && !loadingOlder && transcript.isPinned()
+          && e.getValue() + verticalScrollBar.getVisibleAmount() >= verticalScrollBar.getMaximum()) {
+        renderer.setFollowing(true);
+        transcript.unpin();
+      }
+    });
+
     // Create input area
     inputArea = new JTextArea(3, 20) {
       @Override
@@ -159,19 +230,63 @@ public class FloatingWindow {
     minimizeButton = createStyledButton("Minimize", new Color(100, 100, 110));
     copyButton = createStyledButton("Copy Code", new Color(80, 180, 120));
     clearButton = createStyledButton("Clear", new Color(220, 100, 100));
+    stopButton = createStyledButton("Stop", new Color(230, 150, 70));
+    stopButton.setEnabled(false);
+    keepDraftButton = createStyledButton("Keep Draft", new Color(150, 120, 220));
+    keepDraftButton.setEnabled(false);
+    keepDraftButton.setVisible(AssistantConfig.getDraftModel() != null);
+    keepDraftButton.setToolTipText("Stops the main model and keeps the draft as the answer");
+    attachButton = createStyledButton("Attach", new Color(90, 140, 200));
+    attachButton.setToolTipText("Asks the next prompt about a file, however large");
 
     sendButton.addActionListener(e -> sendMessage());
     minimizeButton.addActionListener(e -> frame.setVisible(false));
     copyButton.addActionListener(e -> copyLastCodeBlock());
+    copyButton.setToolTipText("Copies the last code block; right-click a block in the chat for more");
     clearButton.addActionListener(e -> clearChat());
+    stopButton.addActionListener(e -> scheduler.cancelRunning());
+    attachButton.addActionListener(e -> attachFile());
+    keepDraftButton.addActionListener(e -> {
+      DraftAnswer draft = pendingDraft;
+      if (draft != null)
+        draft.keep();
+    });
+
+    // Pending prompts, listed in the tooltip
+    queueLabel = new JLabel();
+    queueLabel.setForeground(TEXT_SECONDARY);
+    queueLabel.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+
+    // Unchecked: ask the model again instead of reusing a cached answer
+    cacheCheckBox = new JCheckBox("Use cache", true);
+    cacheCheckBox.setBackground(BACKGROUND);
+    cacheCheckBox.setForeground(TEXT_SECONDARY);
+    cacheCheckBox.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+    cacheCheckBox.setFocusPainted(false);
+    cacheCheckBox.setVisible(AssistantConfig.isCacheEnabled());
+
+    // Generation options for the next prompt, e.g. short and fast or long
+    profileBox = new JComboBox<>(GenerationProfile.all().values().toArray(new GenerationProfile[0]));
+    for (int i = 0; i < profileBox.getItemCount(); i++) {
+      if (profileBox.getItemAt(i).getName().equals(AssistantConfig.getProfile()))
+        profileBox.setSelectedIndex(i);
+    }
+    profileBox.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+    profileBox.setToolTipText("Generation options: default, fast, deep, or those of profiles.properties");
 
     // Create button panel
     JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 8, 8));
     buttonPanel.setBackground(BACKGROUND);
     buttonPanel.setBorder(new EmptyBorder(5, 0, 0, 0));
+    buttonPanel.add(queueLabel);
+    buttonPanel.add(profileBox);
+    buttonPanel.add(cacheCheckBox);
+    buttonPanel.add(attachButton);
     buttonPanel.add(clearButton);
     buttonPanel.add(copyButton);
     buttonPanel.add(minimizeButton);
+    buttonPanel.add(keepDraftButton);
+    buttonPanel.add(stopButton);
     buttonPanel.add(sendButton);
 
     // Create input panel
@@ -181,6 +296,19 @@ public class FloatingWindow {
     inputPanel.add(inputScroll, BorderLayout.CENTER);
     inputPanel.add(buttonPanel, BorderLayout.SOUTH);
 
+    // Timings of the last request: where the time went
+    if (AssistantConfig.isStatusLineEnabled()) {
+      metricsLabel = new JLabel(" ");
+      metricsLabel.setForeground(TEXT_SECONDARY);
+      metricsLabel.setFont(new Font("Segoe UI", Font.PLAIN, 11));
+      inputPanel.add(metricsLabel, BorderLayout.NORTH);
+      InferenceMetrics metrics = InferenceMetrics.getInstance();
+      metrics.addListener(stats -> {
+        String status = metrics.statusLine(stats);
+        SwingUtilities.invokeLater(() -> metricsLabel.setText(status));
+      });
+    }
+
     // Add components to frame
     frame.add(chatScroll, BorderLayout.CENTER);
     frame.add(inputPanel, BorderLayout.SOUTH);
@@ -228,6 +356,10 @@ public class FloatingWindow {
     Style sender = doc.addStyle("sender", regular);
     StyleConstants.setBold(sender, true);
     StyleConstants.setForeground(sender, PRIMARY);
+
+    // Marks a draft answer that the main model's answer will replace
+    Style provisional = doc.addStyle("provisional", timestamp);
+    StyleConstants.setItalic(provisional, true);
   }
 
   private JPanel createTitleBar() {
@@ -269,10 +401,98 @@ public class FloatingWindow {
 
     titleBar.add(titleLabel, BorderLayout.WEST);
     titleBar.add(closeButton, BorderLayout.EAST);
+    if (history != null)
+      titleBar.add(createSearchField(), BorderLayout.CENTER);
 
     return titleBar;
   }
 
+  // Searches past conversations as the user types
+  private JComponent createSearchField() {
+    searchField = new JTextField();
+    searchField.setToolTipText("Search past conversations");
+    searchField.setBackground(BACKGROUND);
+    searchField.setForeground(TEXT_PRIMARY);
+    searchField.setCaretColor(PRIMARY);
+    searchField.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+    searchField.setBorder(BorderFactory.createCompoundBorder(
+        BorderFactory.createLineBorder(new Color(70, 70, 80)), new EmptyBorder(2, 6, 2, 6)));
+
+    searchTimer = new Timer(SEARCH_DELAY_MILLIS, e -> searchHistory());
+    searchTimer.setRepeats(false);
+    searchField.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+      public void insertUpdate(javax.swing.event.DocumentEvent e) {
+        searchTimer.restart();
+      }
+
+      public void removeUpdate(javax.swing.event.DocumentEvent e) {
+        searchTimer.restart();
+      }
+
+      public void changedUpdate(javax.swing.event.DocumentEvent e) {
+      }
+    });
+    searchField.addActionListener(e -> searchHistory());
+
+    JPanel panel = new JPanel(new BorderLayout());
+    panel.setOpaque(false);
+    panel.setBorder(new EmptyBorder(0, 40, 0, 20));
+    panel.add(searchField, BorderLayout.CENTER);
+    return panel;
+  }
+
+  private void searchHistory() {
+    String query = searchField.getText().trim();
+    if (query.isEmpty())
+      return;
+    history.search(query, SEARCH_RESULTS, (searched, messages) -> SwingUtilities.invokeLater(() -> {
+      if (searched.equals(searchField.getText().trim()))
+        showSearchResults(searched, messages);
+    }));
+  }
+
+  private void showSearchResults(String query, java.util.List<ConversationLog.Message> messages) {
+    JPopupMenu menu = new JPopupMenu();
+    if (messages.isEmpty()) {
+      JMenuItem none = new JMenuItem("No past messages match \"" + query + "\"");
+      none.setEnabled(false);
+      menu.add(none);
+    }
+    for (ConversationLog.Message message : messages) {
+      String label = String.format("%1$tF %1$tH:%1$tM  %2$s: %3$s", new java.util.Date(message.time),
+          message.sender, snippet(message.text, query));
+      JMenuItem item = new JMenuItem(label);
+      item.addActionListener(e -> history.loadExchange(message,
+          exchange -> SwingUtilities.invokeLater(() -> showPastExchange(exchange))));
+      menu.add(item);
+    }
+    menu.setFocusable(false); // keep typing in the search field
+    menu.show(searchField, 0, searchField.getHeight());
+  }
+
+  // One line of text around the first query word found in it
+  static String snippet(String text, String query) {
+    String lower = text.toLowerCase(java.util.Locale.ROOT);
+    int at = -1;
+    for (String term : HistoryIndex.terms(query)) {
+      at = lower.indexOf(term);
+      if (at >= 0)
+        break;
+    }
+    int start = Math.max(0, at - SNIPPET_CHARS / 3);
+    String snippet = text.substring(start, Math.min(text.length(), start + SNIPPET_CHARS))
+        .replaceAll("\\s+", " ").trim();
+    return (start > 0 ? "…" : "") + snippet + (start + SNIPPET_CHARS < text.length() ? "…" : "");
+  }
+
+  // Shown in the chat, not recorded again and not part of the conversation
+  private void showPastExchange(java.util.List<ConversationLog.Message> exchange) {
+    for (ConversationLog.Message message : exchange) {
+      String timestamp = String.format("[%1$tF %1$tH:%1$tM]", new java.util.Date(message.time));
+      showMessage(new ChatTranscript.Entry(timestamp, "History · " + message.sender, message.text));
+    }
+  }
+
   private JButton createStyledButton(String text, Color color) {
     JButton button = new JButton(text) {
       @Override
@@ -313,35 +533,291 @@ public class FloatingWindow {
   private void sendMessage() {
     String message = inputArea.getText().trim();
     if (!message.isEmpty() && !message.equals("Ask me anything about coding... (Ctrl+Enter to send)")
-        && ollamaClient != null) {
+        && ollamaClient != null && scheduler != null) {
+
+      RequestOptions options = RequestOptions.defaults().bypassCache(!cacheCheckBox.isSelected())
+          .profile((GenerationProfile) profileBox.getSelectedItem());
+      java.io.File file = attachedFile;
+      try {
+        scheduler.submit(message, cancellation -> {
+          options.cancellation(cancellation);
+          if (file != null) {
+            fileResponse(file, message, options);
+          } else if (draftExecutor != null) {
+            draftFirstResponse(message, options);
+          } else if (AssistantConfig.isStreamingEnabled()) {
+            streamResponse(message, options);
+          } else {
+            blockingResponse(message, options);
+          }
+          return null;
+        });
+      } catch (RejectedExecutionException e) {
+        addMessage("System", "Too many prompts are waiting, please try again when some have finished", false);
+        return;
+      }
 
-      addMessage("You", message, false);
+      addMessage("You", file == null ? message : message + "\n(about " + file.getName() + ")", false);
       inputArea.setText("");
+      if (file != null)
+        setAttachedFile(null);
+    }
+  }
+
+  // Picks the file for the next prompt; when one is attached, detaches it
+  private void attachFile() {
+    if (attachedFile != null) {
+      setAttachedFile(null);
+      return;
+    }
+    JFileChooser chooser = new JFileChooser();
+    if (chooser.showOpenDialog(frame) == JFileChooser.APPROVE_OPTION)
+      setAttachedFile(chooser.getSelectedFile());
+  }
 
-      sendButton.setEnabled(false);
-      sendButton.setText("Processing...");
-
-      new Thread(() -> {
-        try {
-          String response = ollamaClient.sendMessage(message);
-          SwingUtilities.invokeLater(() -> {
-            String cleanResponse = cleanDuplicateContent(response);
-            addMessage("AI", cleanResponse, true);
-            sendButton.setEnabled(true);
-            sendButton.setText("Send");
-          });
-        } catch (Exception e) {
-          SwingUtilities.invokeLater(() -> {
-            addMessage("System", "Error: " + e.getMessage(), true);
-            sendButton.setEnabled(true);
-            sendButton.setText("Send");
-          });
+  private void setAttachedFile(java.io.File file) {
+    attachedFile = file;
+    attachButton.setText(file == null ? "Attach" : "Detach " + file.getName());
+    attachButton.setToolTipText(file == null ? "Asks the next prompt about a file, however large"
+        : file.getPath() + " (click to detach)");
+  }
+
+  // The prompt is a question about the file. A large file is read in parts;
+  // the notes on each part are shown as they arrive, then the answer made of
+  // them streams in.
+  private void fileResponse(java.io.File file, String question, RequestOptions options) {
+    long start = System.nanoTime();
+    StreamingMessage notes = new StreamingMessage("Notes on " + file.getName());
+    StreamingMessage streaming = new StreamingMessage("AI");
+    GenerationStats[] stats = { new GenerationStats() };
+    boolean[] notesDone = { false }; // guarded by notes
+    options.onStats(finalStats -> stats[0] = finalStats);
+    FileMapReduce.Listener progress = new FileMapReduce.Listener() {
+      @Override
+      public void started(int parts) {
+        if (parts > 1)
+          addMessage("System", "Reading " + file.getName() + " in " + parts + " parts", false);
+      }
+
+      @Override
+      public void partDone(FileMapReduce.Part part, String partNotes, int partsDone) {
+        if (partNotes == null)
+          return;
+        synchronized (notes) {
+          notes.append("Part " + part.index + ", " + part + ":\n" + partNotes + "\n\n");
         }
-      }).start();
+      }
+
+      @Override
+      public void reducing(int noteCount) {
+        synchronized (notes) {
+          if (notes.hasTokens())
+            notes.complete();
+          notesDone[0] = true;
+        }
+      }
+    };
+
+    String answer = null;
+    Exception error = null;
+    try {
+      answer = new FileMapReduce(ollamaClient, file, question, options, AssistantConfig.getAttachParallelism())
+          .run(progress, streaming::append);
+    } catch (Exception e) {
+      error = e;
+    }
+
+    boolean stopped = options.getCancellation().isCancelled();
+    synchronized (notes) {
+      if (notes.hasTokens() && !notesDone[0])
+        notes.complete();
+    }
+    if (error == null || streaming.hasTokens())
+      streaming.complete();
+    if (error == null) {
+      InferenceMetrics.getInstance().recordAnswer(false, streaming.getFirstTokenTime() - start,
+          System.nanoTime() - start);
+      if (AssistantConfig.isConversationEnabled())
+        session.addTurn("About the file " + file.getName() + ": " + question, answer, stats[0]);
+    }
+    if (stopped) {
+      addMessage("System", "Generation stopped", false);
+    } else if (error != null) {
+      addMessage("System", "Error: " + error.getMessage(), true);
+    }
+  }
+
+  private void blockingResponse(String message, RequestOptions options) {
+    long start = System.nanoTime();
+    try {
+      String response = requestResponse(message, null, options);
+      addMessage("AI", cleanDuplicateContent(response), true);
+      long elapsed = System.nanoTime() - start;
+      InferenceMetrics.getInstance().recordAnswer(false, elapsed, elapsed);
+    } catch (CancellationException e) {
+      addMessage("System", "Generation stopped", false);
+    } catch (Exception e) {
+      addMessage("System", "Error: " + e.getMessage(), true);
     }
   }
 
-  private String cleanDuplicateContent(String text) {
+  // Runs on the worker thread: tokens are formatted and rendered as they arrive
+  private void streamResponse(String message, RequestOptions options) {
+    long start = System.nanoTime();
+    StreamingMessage streaming = new StreamingMessage("AI");
+    Exception error = null;
+    try {
+      requestResponse(message, streaming::append, options);
+    } catch (Exception e) {
+      error = e;
+    }
+
+    boolean stopped = options.getCancellation().isCancelled();
+    if (error != null && !stopped && !streaming.hasTokens()) {
+      // Nothing arrived yet, fall back to the blocking request
+      try {
+        streaming.append(requestResponse(message, null, options));
+        error = null;
+      } catch (Exception fallbackError) {
+        error = fallbackError;
+        stopped = options.getCancellation().isCancelled();
+      }
+    }
+
+    // Whatever was received so far stays in the chat
+    if (error == null || streaming.hasTokens())
+      streaming.complete();
+    if (error == null)
+      InferenceMetrics.getInstance().recordAnswer(false, streaming.getFirstTokenTime() - start,
+          System.nanoTime() - start);
+    if (stopped) {
+      addMessage("System", "Generation stopped", false);
+    } else if (error != null) {
+      addMessage("System", "Error: " + error.getMessage(), true);
+    }
+  }
+
+  // Draft-first mode: the prompt goes to the draft model and the main model at
+  // the same time. The draft streams into the chat marked as provisional
+  // while the main answer is collected; once that is complete it takes the
+  // draft's place. Keep Draft stops the main request and makes the draft the
+  // answer, Stop cancels both. Should the draft fail before it showed
+  // anything, the main answer streams as usual.
+  private void draftFirstResponse(String message, RequestOptions options) {
+    long start = System.nanoTime();
+    CancellationToken taskCancellation = options.getCancellation();
+    CancellationToken draftCancellation = new CancellationToken();
+    CancellationToken mainCancellation = new CancellationToken();
+    taskCancellation.onCancel(draftCancellation::cancel);
+    taskCancellation.onCancel(mainCancellation::cancel);
+
+    boolean conversation = AssistantConfig.isConversationEnabled();
+    java.util.List<ConversationSession.ChatMessage> history = conversation ? session.getMessages() : null;
+    DraftAnswer draft = new DraftAnswer(AssistantConfig.getDraftModel(), mainCancellation);
+    pendingDraft = draft;
+    CompletableFuture<String> draftResult = CompletableFuture.supplyAsync(() -> {
+      try {
+        return ollamaClient.draft(message, history, draft::append, draftCancellation);
+      } catch (Exception e) {
+        throw new CompletionException(e);
+      }
+    }, draftExecutor);
+
+    StringBuilder collected = new StringBuilder();
+    StreamingMessage[] streaming = new StreamingMessage[1];
+    long[] mainFirstToken = new long[1];
+    OllamaClient.TokenListener mainListener = token -> {
+      if (mainFirstToken[0] == 0)
+        mainFirstToken[0] = System.nanoTime();
+      if (streaming[0] == null && draftResult.isCompletedExceptionally() && !draft.hasTokens()) {
+        streaming[0] = new StreamingMessage("AI");
+        streaming[0].append(collected.toString());
+      }
+      if (streaming[0] != null) {
+        streaming[0].append(token);
+      } else {
+        collected.append(token);
+      }
+    };
+
+    String answer = null;
+    String sender = "AI";
+    Exception error = null;
+    try {
+      answer = requestResponse(message, mainListener, RequestOptions.defaults()
+          .bypassCache(options.isBypassCache()).profile(options.getProfile()).cancellation(mainCancellation));
+    } catch (Exception e) {
+      error = e;
+    }
+
+    if (error != null && !taskCancellation.isCancelled()) {
+      // Kept, or the main model failed: the finished draft is the answer
+      String drafted = draft.await(draftResult);
+      if (!drafted.isEmpty()) {
+        answer = drafted;
+        sender = "AI (" + draft.model + ")";
+        if (conversation)
+          session.addTurn(message, drafted, new GenerationStats());
+      }
+    }
+    draftCancellation.cancel();
+    pendingDraft = null;
+    draft.remove();
+
+    if (streaming[0] != null) {
+      streaming[0].complete();
+    } else if (answer != null) {
+      addMessage(sender, cleanDuplicateContent(answer), true);
+    } else if (draft.hasTokens()) {
+      // Stopped: what was read stays in the chat
+      addMessage("AI (" + draft.model + ")", cleanDuplicateContent(draft.getText()), true);
+    }
+
+    if (answer != null) {
+      long firstShown = draft.hasTokens() ? draft.getFirstTokenTime() : mainFirstToken[0];
+      if (mainFirstToken[0] != 0 && mainFirstToken[0] < firstShown)
+        firstShown = mainFirstToken[0];
+      InferenceMetrics.getInstance().recordAnswer(true, (firstShown == 0 ? System.nanoTime() : firstShown) - start,
+          System.nanoTime() - start);
+    }
+    if (taskCancellation.isCancelled()) {
+      addMessage("System", "Generation stopped", false);
+    } else if (error != null && !draft.isKept()) {
+      addMessage("System", "Error: " + error.getMessage() + (answer != null ? " (showing the draft)" : ""), true);
+    }
+  }
+
+  // Streams when a listener is given. In conversation mode the prompt is the
+  // next turn of the current session.
+  private String requestResponse(String message, OllamaClient.TokenListener listener, RequestOptions options)
+      throws Exception {
+    if (!AssistantConfig.isConversationEnabled()) {
+      return listener != null ? ollamaClient.streamMessage(message, listener, options)
+          : ollamaClient.sendMessage(message, options);
+    }
+
+    return ollamaClient.chat(session, message, listener, listener != null, options);
+  }
+
+  private void updateQueueStatus() {
+    int running = scheduler.count(RequestScheduler.State.RUNNING);
+    int queued = scheduler.count(RequestScheduler.State.QUEUED);
+
+    StringBuilder pending = new StringBuilder("<html>");
+    for (RequestScheduler.Task<?> task : scheduler.getTasks()) {
+      String label = task.getLabel().replace('\n', ' ');
+      if (label.length() > 60)
+        label = label.substring(0, 57) + "...";
+      pending.append(task.getState() == RequestScheduler.State.RUNNING ? "&#9654; " : "&#8226; ")
+          .append(label.replace("&", "&amp;").replace("<", "&lt;")).append("<br>");
+    }
+
+    queueLabel.setText(running == 0 ? "" : queued == 0 ? "Generating..." : "Generating, " + queued + " queued");
+    queueLabel.setToolTipText(running + queued == 0 ? null : pending.append("</html>").toString());
+    stopButton.setEnabled(running > 0);
+  }
+
+  static String cleanDuplicateContent(String text) {
     if (text == null || text.isEmpty())
       return text;
 
@@ -361,136 +837,173 @@ public class FloatingWindow {
   }
 
   private void copyLastCodeBlock() {
+    CodeBlockIndex.Block block = codeBlocks.last();
+    if (block == null) {
+      addMessage("System", "No code block found to copy", false);
+      return;
+    }
+    copyCodeBlock(block);
+  }
+
+  private void copyCodeBlock(CodeBlockIndex.Block block) {
     try {
-      String plainText = chatArea.getText();
-      if (!plainText.isEmpty()) {
-        String[] parts = plainText.split("```");
-        if (parts.length > 1) {
-          for (int i = parts.length - 1; i > 0; i--) {
-            if (i % 2 == 1) {
-              String codeBlock = parts[i].trim();
-              if (codeBlock.contains("\n")) {
-                String firstLine = codeBlock.substring(0, codeBlock.indexOf("\n")).trim();
-                if (firstLine.length() < 20 && !firstLine.contains(" ")) {
-                  codeBlock = codeBlock.substring(codeBlock.indexOf("\n") + 1);
-                }
-              }
-              StringSelection selection = new StringSelection(codeBlock.trim());
-              Toolkit.getDefaultToolkit().getSystemClipboard().setContents(selection, null);
-              addMessage("System", "Code copied to clipboard", false);
-              return;
-            }
-          }
-        }
-        addMessage("System", "No code block found to copy", false);
-      }
+      StringSelection selection = new StringSelection(block.getCode());
+      Toolkit.getDefaultToolkit().getSystemClipboard().setContents(selection, null);
+      addMessage("System", "Code copied to clipboard", false);
     } catch (Exception e) {
       addMessage("System", "Failed to copy code: " + e.getMessage(), false);
     }
   }
 
+  // Right-click menu: the block under the mouse and the most recent blocks
+  private void showCodeBlockMenu(MouseEvent e) {
+    if (!e.isPopupTrigger() || codeBlocks.size() == 0)
+      return;
+
+    JPopupMenu menu = new JPopupMenu();
+    CodeBlockIndex.Block clicked = codeBlocks.blockAt(chatArea.viewToModel2D(e.getPoint()));
+    if (clicked != null) {
+      JMenuItem copyClicked = new JMenuItem("Copy this code block");
+      copyClicked.addActionListener(event -> copyCodeBlock(clicked));
+      menu.add(copyClicked);
+    }
+
+    JMenu copyNumbered = new JMenu("Copy code block");
+    int count = codeBlocks.size();
+    for (int i = Math.max(0, count - MAX_CODE_BLOCK_ITEMS); i < count; i++) {
+      CodeBlockIndex.Block block = codeBlocks.get(i);
+      String language = block.getLanguage().isEmpty() ? ""
+          : " " + block.getLanguage().toUpperCase(java.util.Locale.ROOT);
+      JMenuItem item = new JMenuItem(String.format("#%d%s, %d lines", i + 1, language, block.getLineCount()));
+      item.addActionListener(event -> copyCodeBlock(block));
+      copyNumbered.add(item);
+    }
+    menu.add(copyNumbered);
+    menu.show(chatArea, e.getX(), e.getY());
+  }
+
   private void clearChat() {
+    renderer.clear();
+    if (highlighter != null)
+      highlighter.clear();
+    codeBlocks.clear();
+    if (history != null)
+      history.newConversation();
+    transcript.clear();
+    renderer.setFollowing(true);
+    session.reset();
     chatArea.setText("");
   }
 
+  // Can be called from any thread, the text is rendered with the next frame
   public void addMessage(String sender, String message, boolean isAI) {
-    SwingUtilities.invokeLater(() -> {
-      try {
-        StyledDocument doc = chatArea.getStyledDocument();
-        String timestamp = String.format("[%1$tH:%1$tM]", new java.util.Date());
+    ChatTranscript.Entry entry = new ChatTranscript.Entry(currentTimestamp(), sender,
+        message == null ? "" : message);
+    showMessage(entry);
+    if (history != null && !"System".equals(sender) && !entry.text.isEmpty())
+      history.record(sender, entry.text);
+  }
 
-        doc.insertString(doc.getLength(), timestamp + " ", doc.getStyle("timestamp"));
-        doc.insertString(doc.getLength(), sender + ":\n", doc.getStyle("sender"));
+  private void showMessage(ChatTranscript.Entry entry) {
+    RenderBatcher.Region region = renderer.newRegion();
+    renderEntry(region, entry);
+    transcript.add(entry, region, true);
+  }
 
-        processMessageContent(doc, message);
+  private void renderEntry(RenderBatcher.Region region, ChatTranscript.Entry entry) {
+    appendHeader(region, entry.timestamp, entry.sender);
+    processMessageContent(renderer, region, highlighter, codeBlocks, entry.text);
+    renderer.append(region, "regular", "\n\n");
+  }
 
-        doc.insertString(doc.getLength(), "\n\n", doc.getStyle("regular"));
-        chatArea.setCaretPosition(doc.getLength());
-      } catch (Exception e) {
-        e.printStackTrace();
+  private String currentTimestamp() {
+    return String.format("[%1$tH:%1$tM]", new java.util.Date());
+  }
+
+  private void appendHeader(RenderBatcher.Region region, String timestamp, String sender) {
+    renderer.append(region, "timestamp", timestamp + " ");
+    renderer.append(region, "sender", sender + ":\n");
+  }
+
+  // New answers do not scroll the loaded page out of view
+  private void loadOlderMessages() {
+    loadingOlder = true;
+    renderer.setFollowing(false);
+    transcriptLoader.execute(() -> {
+      try {
+        transcript.restoreOlder(OLDER_PAGE_SIZE, entry -> {
+          RenderBatcher.Region region = renderer.newRegionAtStart();
+          renderEntry(region, entry);
+          return region;
+        });
+      } catch (java.io.IOException | RuntimeException e) {
+        System.err.println("Could not load older messages: " + e.getMessage());
+      } finally {
+        loadingOlder = false;
       }
     });
   }
 
-  private void processMessageContent(StyledDocument doc, String message) throws BadLocationException {
+  static void processMessageContent(RenderBatcher renderer, RenderBatcher.Region region,
+      SyntaxHighlighter highlighter, CodeBlockIndex codeBlocks, String message) {
     if (message == null || message.trim().isEmpty())
       return;
 
-    if (message.contains("```")) {
-      String[] parts = message.split("```", -1);
-
-      for (int i = 0; i < parts.length; i++) {
-        if (i % 2 == 0) {
-          addFormattedText(doc, parts[i].trim(), "regular", i > 0);
-        } else {
-          String codeContent = parts[i].trim();
-          String language = "";
-          String actualCode = codeContent;
-
-          int firstNewline = codeContent.indexOf("\n");
-          if (firstNewline != -1) {
-            String firstLine = codeContent.substring(0, firstNewline).trim();
-            if (firstLine.length() > 0 && firstLine.length() < 20 && !firstLine.contains(" ")) {
-              language = firstLine;
-              actualCode = codeContent.substring(firstNewline + 1).trim();
-            }
-          }
-
-          if (!language.isEmpty()) {
-            doc.insertString(doc.getLength(), "\n", doc.getStyle("regular"));
-            doc.insertString(doc.getLength(), "▸ " + language.toUpperCase() + " CODE\n", doc.getStyle("codeHeader"));
-          }
-
-          addFormattedText(doc, actualCode, "code", true);
-        }
-      }
-    } else {
-      addFormattedText(doc, message.trim(), "regular", false);
-    }
+    CodeFenceParser parser = new CodeFenceParser(regionSink(renderer, region, highlighter, codeBlocks));
+    parser.feed(message);
+    parser.finish();
   }
 
-  private void addFormattedText(StyledDocument doc, String text, String styleName, boolean addNewline)
-      throws BadLocationException {
-    if (text.isEmpty())
-      return;
-
-    Style style = doc.getStyle(styleName);
+  // Sends style runs to a region; once the runs of a code block are in the
+  // document they are also recorded in the index and highlighted. The
+  // highlighter and the index may be null.
+  static CodeFenceParser.StyleRunSink regionSink(RenderBatcher renderer, RenderBatcher.Region region,
+      SyntaxHighlighter highlighter, CodeBlockIndex codeBlocks) {
+    return new CodeFenceParser.StyleRunSink() {
+      private RenderBatcher.InsertListener block;
 
-    if (addNewline) {
-      doc.insertString(doc.getLength(), "\n", style);
-    }
+      @Override
+      public void append(String styleName, String text) {
+        renderer.append(region, styleName, text, block);
+      }
 
-    if ("code".equals(styleName)) {
-      String[] lines = text.split("\n");
-      for (int i = 0; i < lines.length; i++) {
-        String line = lines[i];
-        if (!line.trim().isEmpty()) {
-          doc.insertString(doc.getLength(), "    " + line, style);
+      @Override
+      public void codeBlockStarted(String language) {
+        RenderBatcher.InsertListener indexed = codeBlocks == null ? null : codeBlocks.newBlock(language);
+        RenderBatcher.InsertListener colored = highlighter == null ? null : highlighter.newBlock(language);
+        if (indexed != null && colored != null) {
+          block = (offset, text) -> {
+            indexed.inserted(offset, text);
+            colored.inserted(offset, text);
+          };
         } else {
-          doc.insertString(doc.getLength(), "    ", style);
-        }
-        if (i < lines.length - 1) {
-          doc.insertString(doc.getLength(), "\n", style);
+          block = indexed != null ? indexed : colored;
         }
       }
-      doc.insertString(doc.getLength(), "\n", style);
-    } else {
-      String[] lines = text.split("\n");
-      for (int i = 0; i < lines.length; i++) {
-        if (!lines[i].trim().isEmpty()) {
-          doc.insertString(doc.getLength(), lines[i], style);
-          if (i < lines.length - 1) {
-            doc.insertString(doc.getLength(), "\n", style);
-          }
-        }
+
+      @Override
+      public void codeBlockEnded() {
+        block = null;
       }
-    }
+    };
   }
 
   public void setOllamaClient(OllamaClient ollamaClient) {
     this.ollamaClient = ollamaClient;
   }
 
+  public void setRequestScheduler(RequestScheduler scheduler) {
+    this.scheduler = scheduler;
+    if (AssistantConfig.getDraftModel() != null && draftExecutor == null) {
+      draftExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "draft-request");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    scheduler.addListener(() -> SwingUtilities.invokeLater(this::updateQueueStatus));
+  }
+
   public void showWindow() {
     frame.setVisible(true);
     frame.toFront();
@@ -505,6 +1018,129 @@ public class FloatingWindow {
     return frame.isVisible();
   }
 
+  // A message whose text arrives token by token. Tokens are de-duplicated and
+  // parsed on the calling thread; the resulting style runs go to the renderer,
+  // which keeps them together in this message's region.
+  private class StreamingMessage {
+    private final String sender;
+    private final RenderBatcher.Region region = renderer.newRegion();
+    private final StringBuilder text = new StringBuilder(); // de-duplicated text
+    private final CodeFenceParser parser = new CodeFenceParser(
+        regionSink(renderer, region, highlighter, codeBlocks));
+    private final DuplicateLineFilter filter = new DuplicateLineFilter(chunk -> {
+      text.append(chunk);
+      parser.feed(chunk);
+    });
+    private ChatTranscript.Entry entry;
+    private long firstTokenTime; // System.nanoTime()
+
+    StreamingMessage(String sender) {
+      this.sender = sender;
+    }
+
+    void append(String token) {
+      if (entry == null)
+        start();
+      filter.feed(token);
+    }
+
+    boolean hasTokens() {
+      return entry != null;
+    }
+
+    long getFirstTokenTime() {
+      return firstTokenTime;
+    }
+
+    void complete() {
+      if (entry == null)
+        start();
+      filter.finish();
+      parser.finish();
+      renderer.append(region, "regular", "\n\n");
+      transcript.complete(region, text.toString());
+      if (history != null && text.length() > 0)
+        history.record(sender, text.toString());
+    }
+
+    // The header is only shown once there is something to show
+    private void start() {
+      firstTokenTime = System.nanoTime();
+      entry = new ChatTranscript.Entry(currentTimestamp(), sender, "");
+      appendHeader(region, entry.timestamp, sender);
+      transcript.add(entry, region, false);
+    }
+  }
+
+  // The draft model's answer while the main model is still working on its
+  // own. It is not part of the transcript or the history: it is removed from
+  // the chat once the real answer is there, which may be this text again.
+  private class DraftAnswer {
+    private final String model;
+    private final CancellationToken mainCancellation;
+    private final RenderBatcher.Region region = renderer.newRegion();
+    private final CodeFenceParser parser = new CodeFenceParser(regionSink(renderer, region, null, null));
+    private final StringBuilder text = new StringBuilder(); // guarded by this
+    private volatile long firstTokenTime; // System.nanoTime(), 0 until a token arrived
+    private volatile boolean kept = false;
+
+    DraftAnswer(String model, CancellationToken mainCancellation) {
+      this.model = model;
+      this.mainCancellation = mainCancellation;
+    }
+
+    // Called on the draft thread
+    synchronized void append(String token) {
+      if (firstTokenTime == 0) {
+        firstTokenTime = System.nanoTime();
+        renderer.append(region, "timestamp", currentTimestamp() + " ");
+        renderer.append(region, "sender", "Draft");
+        renderer.append(region, "provisional", " (" + model + ", provisional):\n");
+        SwingUtilities.invokeLater(() -> keepDraftButton.setEnabled(pendingDraft == this));
+      }
+      text.append(token);
+      parser.feed(token);
+    }
+
+    boolean hasTokens() {
+      return firstTokenTime != 0;
+    }
+
+    long getFirstTokenTime() {
+      return firstTokenTime;
+    }
+
+    synchronized String getText() {
+      return text.toString();
+    }
+
+    boolean isKept() {
+      return kept;
+    }
+
+    // The draft becomes the answer once it is complete
+    void keep() {
+      kept = true;
+      mainCancellation.cancel();
+    }
+
+    // Waits for the draft to finish; what arrived is returned either way
+    String await(CompletableFuture<String> result) {
+      try {
+        result.join();
+      } catch (CompletionException | CancellationException e) {
+        // a partial draft is still worth showing
+      }
+      return getText();
+    }
+
+    synchronized void remove() {
+      parser.finish();
+      renderer.remove(region);
+      SwingUtilities.invokeLater(() -> keepDraftButton.setEnabled(pendingDraft != null && pendingDraft.hasTokens()));
+    }
+  }
+
   // Inner class for draggable window
   private static class DraggableWindow extends MouseAdapter {
     private final JFrame frame;
@@ -0,0 +1,181 @@
+package com.blade.aicoder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// A named set of Ollama generation options (num_predict, num_thread,
+// num_batch, temperature, ...) and keep_alive, chosen per request.
+//
+// "default" sends none of them, so Ollama uses the model's own settings;
+// "fast" and "deep" are built in. Profiles are defined, or options of the
+// built-in ones changed, in dataDir/profiles.properties as
+// name.option=value, e.g. fast.num_predict=200 or deep.keep_alive=1h. The autotuner saves the
+// options it found there as "tuned". num_ctx is not part of a profile: the
+// prompt budget depends on it (aicoder.numCtx), and Ollama would reload the
+// model whenever it changes.
+public class GenerationProfile {
+  public static final String DEFAULT = "default";
+  private static final String KEEP_ALIVE = "keep_alive";
+
+  private final String name;
+  private final Map<String, Object> options; // sorted, so equal profiles send equal requests
+  private final String keepAlive; // null to use aicoder.keepAlive
+
+  public GenerationProfile(String name, Map<String, Object> options, String keepAlive) {
+    this.name = name;
+    this.options = Collections.unmodifiableMap(new TreeMap<>(options));
+    this.keepAlive = keepAlive;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public Map<String, Object> getOptions() {
+    return options;
+  }
+
+  public String getKeepAlive() {
+    return keepAlive != null ? keepAlive : AssistantConfig.getKeepAlive();
+  }
+
+  // A copy with one option set, or removed when value is null
+  public GenerationProfile with(String name, String option, Object value) {
+    Map<String, Object> changed = new TreeMap<>(options);
+    if (value == null)
+      changed.remove(option);
+    else
+      changed.put(option, value);
+    return new GenerationProfile(name, changed, keepAlive);
+  }
+
+  // Part of the cache key: answers with other options are other answers
+  public String cacheTag() {
+    return options.isEmpty() ? "" : "|" + options;
+  }
+
+  // The built-in profiles followed by those of profiles.properties
+  public static Map<String, GenerationProfile> all() {
+    Map<String, Map<String, Object>> options = new LinkedHashMap<>();
+    Map<String, String> keepAlives = new LinkedHashMap<>();
+    options.put(DEFAULT, new TreeMap<>());
+    Map<String, Object> fast = new TreeMap<>();
+    fast.put("num_predict", 256);
+    fast.put("temperature", 0.2);
+    options.put("fast", fast);
+    Map<String, Object> deep = new TreeMap<>();
+    deep.put("num_predict", -1);
+    deep.put("temperature", 0.7);
+    options.put("deep", deep);
+
+    Properties properties = new Properties();
+    File file = profilesFile();
+    if (file.isFile()) {
+      try (InputStream in = new FileInputStream(file)) {
+        properties.load(in);
+      } catch (IOException e) {
+        System.err.println("Could not read profiles: " + e.getMessage());
+      }
+    }
+    for (String key : new TreeSet<>(properties.stringPropertyNames())) {
+      int dot = key.indexOf('.');
+      if (dot <= 0 || dot == key.length() - 1)
+        continue;
+      String profile = key.substring(0, dot);
+      String option = key.substring(dot + 1);
+      String value = properties.getProperty(key).trim();
+      if (option.equals("num_ctx")) {
+        System.err.println("Profile " + profile + ": num_ctx is set with aicoder.numCtx, not per profile");
+        continue;
+      }
+      options.computeIfAbsent(profile, name -> new TreeMap<>());
+      if (option.equals(KEEP_ALIVE))
+        keepAlives.put(profile, value);
+      else
+        options.get(profile).put(option, parse(value));
+    }
+
+    Map<String, GenerationProfile> profiles = new LinkedHashMap<>();
+    for (Map.Entry<String, Map<String, Object>> entry : options.entrySet()) {
+      profiles.put(entry.getKey(), new GenerationProfile(entry.getKey(), entry.getValue(),
+          keepAlives.get(entry.getKey())));
+    }
+    return profiles;
+  }
+
+  // The profile named by aicoder.profile
+  public static GenerationProfile fromConfig() {
+    return named(AssistantConfig.getProfile());
+  }
+
+  // Falls back to the default profile for a name that is not defined
+  public static GenerationProfile named(String name) {
+    Map<String, GenerationProfile> profiles = all();
+    GenerationProfile profile = profiles.get(name);
+    if (profile == null) {
+      System.err.println("No generation profile " + name + ", using " + DEFAULT);
+      return profiles.get(DEFAULT);
+    }
+    return profile;
+  }
+
+  // Writes the profile's options to profiles.properties, replacing what was
+  // there for its name
+  public static void save(GenerationProfile profile) throws IOException {
+    File file = profilesFile();
+    Properties properties = new Properties();
+    if (file.isFile()) {
+      try (InputStream in = new FileInputStream(file)) {
+        properties.load(in);
+      }
+    }
+    for (String key : properties.stringPropertyNames()) {
+      if (key.startsWith(profile.name + "."))
+        properties.remove(key);
+    }
+    for (Map.Entry<String, Object> option : profile.options.entrySet()) {
+      properties.setProperty(profile.name + "." + option.getKey(), String.valueOf(option.getValue()));
+    }
+    if (profile.keepAlive != null)
+      properties.setProperty(profile.name + "." + KEEP_ALIVE, profile.keepAlive);
+    file.getParentFile().mkdirs();
+    try (OutputStream out = new FileOutputStream(file)) {
+      properties.store(out, "Ollama generation options per profile, as profile.option=value");
+    }
+  }
+
+  private static File profilesFile() {
+    return new File(AssistantConfig.getDataDirectory(), "profiles.properties");
+  }
+
+  // Options are numbers or booleans, stop sequences and the like stay text
+  private static Object parse(String value) {
+    if (value.equals("true") || value.equals("false"))
+      return Boolean.parseBoolean(value);
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      // not an integer
+    }
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      return value;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
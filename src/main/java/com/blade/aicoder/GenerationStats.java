@@ -0,0 +1,57 @@
+package com.blade.aicoder;
+
+// Counters Ollama reports on the last ("done") line of a response, and the
+// timings measured on this side. Durations are in nanoseconds, as sent by
+// Ollama.
+public class GenerationStats {
+  public long totalDuration;
+  public long loadDuration; // loading the model, 0 when it was resident
+  public long promptEvalCount;
+  public long promptEvalDuration; // prefill
+  public long evalCount;
+  public long evalDuration; // decode
+
+  // Prompt tokens the client expected, to compare with promptEvalCount
+  public long estimatedPromptTokens;
+  // What was cut to fit the prompt into the context window, null when nothing was
+  public String trimming;
+
+  // Measured by the client from the moment the request is sent
+  public long wallTime;
+  public long timeToFirstByte; // response headers
+  public long timeToFirstToken;
+
+  // Copies a counter of the done line; other fields are ignored
+  void read(String field, long value) {
+    switch (field) {
+      case "total_duration":
+        totalDuration = value;
+        break;
+      case "load_duration":
+        loadDuration = value;
+        break;
+      case "prompt_eval_count":
+        promptEvalCount = value;
+        break;
+      case "prompt_eval_duration":
+        promptEvalDuration = value;
+        break;
+      case "eval_count":
+        evalCount = value;
+        break;
+      case "eval_duration":
+        evalDuration = value;
+        break;
+      default:
+        break;
+    }
+  }
+
+  public double getEvalTokensPerSecond() {
+    return evalDuration == 0 ? 0 : evalCount * 1e9 / evalDuration;
+  }
+
+  public double getPromptTokensPerSecond() {
+    return promptEvalDuration == 0 ? 0 : promptEvalCount * 1e9 / promptEvalDuration;
+  }
+}
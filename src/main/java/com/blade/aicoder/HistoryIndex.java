@@ -0,0 +1,244 @@
+package com.blade.aicoder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+// Inverted index over the ConversationLog: term -> ids of the messages that
+// contain it.
+//
+// Messages are added in id order, so every posting list is sorted and is
+// stored as the varint-encoded gaps between ids, mostly one byte per
+// posting. Terms are lowercase runs of letters and digits. A query matches
+// messages that contain all of its terms; the last term also matches as a
+// prefix while it is still being typed. Not thread-safe.
+public class HistoryIndex {
+  private static final int MAGIC = 0x41494831; // "AIH1"
+  private static final int MIN_TERM_LENGTH = 2;
+  private static final int MAX_TERM_LENGTH = 40;
+  private static final int MAX_PREFIX_TERMS = 64;
+
+  private static class Postings {
+    private byte[] data = new byte[4];
+    private int length = 0;
+    private int count = 0;
+    private int last = -1;
+
+    void add(int id) {
+      if (id <= last)
+        return;
+      if (length + 5 > data.length)
+        data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+      int gap = id - last;
+      while ((gap & ~0x7f) != 0) {
+        data[length++] = (byte) ((gap & 0x7f) | 0x80);
+        gap >>>= 7;
+      }
+      data[length++] = (byte) gap;
+      last = id;
+      count++;
+    }
+
+    int[] decode() {
+      int[] ids = new int[count];
+      int id = -1;
+      int position = 0;
+      for (int i = 0; i < count; i++) {
+        int gap = 0;
+        int shift = 0;
+        byte b;
+        do {
+          b = data[position++];
+          gap |= (b & 0x7f) << shift;
+          shift += 7;
+        } while (b < 0);
+        id += gap;
+        ids[i] = id;
+      }
+      return ids;
+    }
+  }
+
+  private final TreeMap<String, Postings> terms = new TreeMap<>();
+  private int indexed = 0; // messages below this id are in the index
+
+  public void add(int id, String text) {
+    for (String term : new HashSet<>(terms(text))) {
+      terms.computeIfAbsent(term, t -> new Postings()).add(id);
+    }
+    indexed = Math.max(indexed, id + 1);
+  }
+
+  // Number of messages covered, i.e. the id to continue indexing at
+  public int size() {
+    return indexed;
+  }
+
+  public int getTermCount() {
+    return terms.size();
+  }
+
+  // Ids of the newest messages that match, newest first
+  public int[] search(String query, int limit) {
+    List<String> queryTerms = terms(query);
+    if (queryTerms.isEmpty())
+      return new int[0];
+    boolean prefix = !query.isEmpty() && Character.isLetterOrDigit(query.charAt(query.length() - 1));
+
+    List<int[]> lists = new ArrayList<>();
+    for (int i = 0; i < queryTerms.size(); i++) {
+      String term = queryTerms.get(i);
+      int[] ids = prefix && i == queryTerms.size() - 1 ? prefixIds(term) : exactIds(term);
+      if (ids.length == 0)
+        return ids;
+      lists.add(ids);
+    }
+
+    // Shortest list first keeps the intermediate results small
+    lists.sort((a, b) -> Integer.compare(a.length, b.length));
+    int[] result = lists.get(0);
+    for (int i = 1; i < lists.size() && result.length > 0; i++) {
+      result = intersect(result, lists.get(i));
+    }
+
+    int[] newest = new int[Math.min(limit, result.length)];
+    for (int i = 0; i < newest.length; i++) {
+      newest[i] = result[result.length - 1 - i];
+    }
+    return newest;
+  }
+
+  private int[] exactIds(String term) {
+    Postings postings = terms.get(term);
+    return postings == null ? new int[0] : postings.decode();
+  }
+
+  private int[] prefixIds(String prefix) {
+    SortedMap<String, Postings> matching = terms.subMap(prefix, prefix + Character.MAX_VALUE);
+    int[] result = new int[0];
+    int merged = 0;
+    for (Postings postings : matching.values()) {
+      result = union(result, postings.decode());
+      if (++merged == MAX_PREFIX_TERMS)
+        break;
+    }
+    return result;
+  }
+
+  private static int[] intersect(int[] a, int[] b) {
+    int[] result = new int[Math.min(a.length, b.length)];
+    int size = 0;
+    int i = 0;
+    int j = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] < b[j]) {
+        i++;
+      } else if (a[i] > b[j]) {
+        j++;
+      } else {
+        result[size++] = a[i];
+        i++;
+        j++;
+      }
+    }
+    return Arrays.copyOf(result, size);
+  }
+
+  private static int[] union(int[] a, int[] b) {
+    int[] result = new int[a.length + b.length];
+    int size = 0;
+    int i = 0;
+    int j = 0;
+    while (i < a.length || j < b.length) {
+      int next;
+      if (j == b.length || (i < a.length && a[i] < b[j])) {
+        next = a[i++];
+      } else if (i == a.length || b[j] < a[i]) {
+        next = b[j++];
+      } else {
+        next = a[i++];
+        j++;
+      }
+      result[size++] = next;
+    }
+    return Arrays.copyOf(result, size);
+  }
+
+  public static List<String> terms(String text) {
+    List<String> terms = new ArrayList<>();
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      boolean partOfTerm = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+      if (partOfTerm && start < 0) {
+        start = i;
+      } else if (!partOfTerm && start >= 0) {
+        if (i - start >= MIN_TERM_LENGTH && i - start <= MAX_TERM_LENGTH)
+          terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+        start = -1;
+      }
+    }
+    return terms;
+  }
+
+  // Written to a temporary file first, so a crash leaves the old index
+  public void save(File file) throws IOException {
+    File temporary = new File(file.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(indexed);
+      out.writeInt(terms.size());
+      for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+        Postings postings = entry.getValue();
+        out.writeUTF(entry.getKey());
+        out.writeInt(postings.count);
+        out.writeInt(postings.last);
+        out.writeInt(postings.length);
+        out.write(postings.data, 0, postings.length);
+      }
+    }
+    Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  // Returns an empty index when the file is missing or damaged
+  public static HistoryIndex load(File file) {
+    HistoryIndex index = new HistoryIndex();
+    if (!file.isFile())
+      return index;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC)
+        return index;
+      int indexed = in.readInt();
+      int termCount = in.readInt();
+      for (int i = 0; i < termCount; i++) {
+        String term = in.readUTF();
+        Postings postings = new Postings();
+        postings.count = in.readInt();
+        postings.last = in.readInt();
+        postings.length = in.readInt();
+        postings.data = new byte[Math.max(4, postings.length)];
+        in.readFully(postings.data, 0, postings.length);
+        index.terms.put(term, postings);
+      }
+      index.indexed = indexed;
+      return index;
+    } catch (IOException e) {
+      System.err.println("History index unreadable, rebuilding it: " + e.getMessage());
+      return new HistoryIndex();
+    }
+  }
+}
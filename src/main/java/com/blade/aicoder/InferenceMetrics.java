@@ -0,0 +1,179 @@
+package com.blade.aicoder;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+// Timings and token counts of every request sent to Ollama. Splits a slow
+// answer into model loading, prefill (prompt evaluation) and decode, next to
+// what the client saw: wall time, time to the response headers and to the
+// first token.
+//
+// What the user waits for is kept apart per answer mode: single (the main
+// model only) and draft (draft-first, see aicoder.draftModel). firstShown is
+// the time from sending a prompt until its first token is on screen, answer
+// the time until the final answer is.
+//
+// Published over JMX as com.blade.aicoder:type=InferenceMetrics, with one
+// bean per histogram (values in milliseconds, or tokens per second).
+public class InferenceMetrics implements InferenceMetricsMXBean {
+  private static final int WINDOW = 1000; // requests kept for the percentiles
+  private static final InferenceMetrics instance = new InferenceMetrics();
+
+  // Notified on the thread that finished the request
+  public interface Listener {
+    void requestRecorded(GenerationStats stats);
+  }
+
+  private final RollingHistogram wall = new RollingHistogram(WINDOW);
+  private final RollingHistogram timeToFirstByte = new RollingHistogram(WINDOW);
+  private final RollingHistogram timeToFirstToken = new RollingHistogram(WINDOW);
+  private final RollingHistogram load = new RollingHistogram(WINDOW);
+  private final RollingHistogram promptEval = new RollingHistogram(WINDOW);
+  private final RollingHistogram eval = new RollingHistogram(WINDOW);
+  private final RollingHistogram evalRate = new RollingHistogram(WINDOW);
+  private final RollingHistogram promptRate = new RollingHistogram(WINDOW);
+  private final RollingHistogram singleFirstShown = new RollingHistogram(WINDOW);
+  private final RollingHistogram singleAnswer = new RollingHistogram(WINDOW);
+  private final RollingHistogram draftFirstShown = new RollingHistogram(WINDOW);
+  private final RollingHistogram draftAnswer = new RollingHistogram(WINDOW);
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong cancelled = new AtomicLong();
+  private final AtomicLong promptTokens = new AtomicLong();
+  private final AtomicLong evalTokens = new AtomicLong();
+  private final AtomicLong evalNanos = new AtomicLong();
+  private volatile GenerationStats last;
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+  private InferenceMetrics() {
+    register();
+  }
+
+  public static InferenceMetrics getInstance() {
+    return instance;
+  }
+
+  public void record(GenerationStats stats) {
+    requests.incrementAndGet();
+    promptTokens.addAndGet(stats.promptEvalCount);
+    evalTokens.addAndGet(stats.evalCount);
+    evalNanos.addAndGet(stats.evalDuration);
+
+    wall.record(stats.wallTime / 1e6);
+    timeToFirstByte.record(stats.timeToFirstByte / 1e6);
+    if (stats.timeToFirstToken > 0)
+      timeToFirstToken.record(stats.timeToFirstToken / 1e6);
+    load.record(stats.loadDuration / 1e6);
+    promptEval.record(stats.promptEvalDuration / 1e6);
+    eval.record(stats.evalDuration / 1e6);
+    if (stats.evalDuration > 0)
+      evalRate.record(stats.getEvalTokensPerSecond());
+    if (stats.promptEvalDuration > 0)
+      promptRate.record(stats.getPromptTokensPerSecond());
+
+    last = stats;
+    for (Listener listener : listeners) {
+      listener.requestRecorded(stats);
+    }
+  }
+
+  // Latency as the user saw it, for one prompt
+  public void recordAnswer(boolean draftMode, long firstShownNanos, long answerNanos) {
+    (draftMode ? draftFirstShown : singleFirstShown).record(firstShownNanos / 1e6);
+    (draftMode ? draftAnswer : singleAnswer).record(answerNanos / 1e6);
+  }
+
+  public void recordFailure(boolean wasCancelled) {
+    (wasCancelled ? cancelled : failures).incrementAndGet();
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  @Override
+  public long getRequests() {
+    return requests.get();
+  }
+
+  @Override
+  public long getFailures() {
+    return failures.get();
+  }
+
+  @Override
+  public long getCancelled() {
+    return cancelled.get();
+  }
+
+  @Override
+  public long getPromptTokens() {
+    return promptTokens.get();
+  }
+
+  @Override
+  public long getEvalTokens() {
+    return evalTokens.get();
+  }
+
+  @Override
+  public double getEvalTokensPerSecond() {
+    long nanos = evalNanos.get();
+    return nanos == 0 ? 0 : evalTokens.get() * 1e9 / nanos;
+  }
+
+  @Override
+  public String getLastRequest() {
+    GenerationStats stats = last;
+    return stats == null ? "" : statusLine(stats);
+  }
+
+  // e.g. "first token 410 ms · load 0 ms · prefill 812 tok (est. 790) in 95 ms · 38.2 tok/s · p95 6.1 s",
+  // followed by what was cut from the prompt, if anything
+  public String statusLine(GenerationStats stats) {
+    String estimate = stats.estimatedPromptTokens > 0 ? " (est. " + stats.estimatedPromptTokens + ")" : "";
+    String line = String.format(
+        "first token %d ms · load %d ms · prefill %d tok%s in %d ms · %.1f tok/s · p95 %.1f s",
+        stats.timeToFirstToken / 1_000_000, stats.loadDuration / 1_000_000, stats.promptEvalCount, estimate,
+        stats.promptEvalDuration / 1_000_000, stats.getEvalTokensPerSecond(), wall.getP95() / 1000);
+    return stats.trimming == null ? line : line + " · fitted into " + AssistantConfig.getContextTokens()
+        + " tok: " + stats.trimming;
+  }
+
+  private void register() {
+    Map<String, RollingHistogram> histograms = new LinkedHashMap<>();
+    histograms.put("wallMillis", wall);
+    histograms.put("timeToFirstByteMillis", timeToFirstByte);
+    histograms.put("timeToFirstTokenMillis", timeToFirstToken);
+    histograms.put("loadMillis", load);
+    histograms.put("promptEvalMillis", promptEval);
+    histograms.put("evalMillis", eval);
+    histograms.put("evalTokensPerSecond", evalRate);
+    histograms.put("promptTokensPerSecond", promptRate);
+    histograms.put("singleFirstShownMillis", singleFirstShown);
+    histograms.put("singleAnswerMillis", singleAnswer);
+    histograms.put("draftFirstShownMillis", draftFirstShown);
+    histograms.put("draftAnswerMillis", draftAnswer);
+
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(new StandardMBean(this, InferenceMetricsMXBean.class, true),
+          new ObjectName("com.blade.aicoder:type=InferenceMetrics"));
+      for (Map.Entry<String, RollingHistogram> histogram : histograms.entrySet()) {
+        server.registerMBean(new StandardMBean(histogram.getValue(), RollingHistogramMXBean.class, true),
+            new ObjectName("com.blade.aicoder:type=InferenceMetrics,histogram=" + histogram.getKey()));
+      }
+    } catch (Exception e) {
+      // Metrics still work without JMX
+      System.err.println("Could not register metrics MBeans: " + e);
+    }
+  }
+}
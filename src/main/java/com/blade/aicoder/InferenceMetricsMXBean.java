@@ -0,0 +1,19 @@
+package com.blade.aicoder;
+
+// Request counters of InferenceMetrics as read through JMX
+public interface InferenceMetricsMXBean {
+  long getRequests();
+
+  long getFailures();
+
+  long getCancelled();
+
+  long getPromptTokens();
+
+  long getEvalTokens();
+
+  // Decode throughput over all requests
+  double getEvalTokensPerSecond();
+
+  String getLastRequest();
+}
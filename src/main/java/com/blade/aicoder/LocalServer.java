@@ -0,0 +1,383 @@
+package com.blade.aicoder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A small HTTP API on the loopback interface, so editor plugins and scripts
+// use the assistant that is already running instead of each talking to
+// Ollama on their own. Prompts go through the same RequestScheduler as the
+// window's (they show in its queue and wait for the same slots) and the same
+// OllamaClient, so they share its cache, project index and memory.
+//
+//   POST /api/prompt     {"prompt": "...", "session": "name", "stream": true, "cache": true, "profile": "fast"}
+//   DELETE /api/sessions/name
+//   GET /api/status
+//
+// A prompt with a session is the next turn of that conversation. A session
+// answers one prompt at a time, another one meanwhile gets 409. The server
+// keeps the most recently used sessions until they are deleted or idle for
+// too long. Streaming answers are Server-Sent Events: one
+// "data: {"token": ...}" event per token and a final "done" or "error" event.
+// While the prompt waits or runs a keep-alive comment is written every
+// second, so a client that hangs up is noticed by a failed write and its
+// prompt cancelled. A prompt that does not stream runs to the end. Requests
+// that carry an Origin header are refused, so web pages cannot use the API.
+public class LocalServer {
+  public static final int DEFAULT_PORT = 11480;
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final int MAX_BODY_BYTES = 8 * 1024 * 1024;
+  private static final String SESSIONS_PATH = "/api/sessions/";
+  private static final long KEEP_ALIVE_MILLIS = 1000;
+
+  // A conversation of the API and whether it is answering a prompt
+  private static class Session {
+    final ConversationSession conversation = new ConversationSession();
+    final AtomicBoolean answering = new AtomicBoolean();
+    long lastUsed = System.nanoTime();
+  }
+
+  private final OllamaClient client;
+  private final RequestScheduler scheduler;
+  private final HttpServer server;
+  private final Map<String, Session> sessions = new LinkedHashMap<>(16, 0.75f, true); // least recently used first
+  private final int maxSessions = AssistantConfig.getServerMaxSessions();
+  private final long sessionIdleNanos = TimeUnit.MINUTES.toNanos(AssistantConfig.getServerSessionIdleMinutes());
+
+  public LocalServer(OllamaClient client, RequestScheduler scheduler, int port) throws IOException {
+    this.client = client;
+    this.scheduler = scheduler;
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    // Streaming handlers wait for their answer; the scheduler bounds how many
+    // prompts there are, so the pool does not need to
+    AtomicInteger threadNumber = new AtomicInteger(1);
+    server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "local-api-" + threadNumber.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    }));
+    server.createContext("/api/prompt", exchange -> handle(exchange, "POST", this::prompt));
+    server.createContext(SESSIONS_PATH, exchange -> handle(exchange, "DELETE", this::deleteSession));
+    server.createContext("/api/status", exchange -> handle(exchange, "GET", this::status));
+  }
+
+  // Null when no port is configured or the port cannot be opened
+  public static LocalServer fromConfig(OllamaClient client, RequestScheduler scheduler) {
+    int port = AssistantConfig.getServerPort();
+    if (port <= 0)
+      return null;
+    return start(client, scheduler, port);
+  }
+
+  public static LocalServer start(OllamaClient client, RequestScheduler scheduler, int port) {
+    try {
+      LocalServer localServer = new LocalServer(client, scheduler, port);
+      localServer.server.start();
+      return localServer;
+    } catch (IOException e) {
+      System.err.println("Local API not started on port " + port + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  public String getAddress() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  public void stop() {
+    server.stop(0);
+  }
+
+  private interface Handler {
+    void handle(HttpExchange exchange) throws Exception;
+  }
+
+  private void handle(HttpExchange exchange, String method, Handler handler) throws IOException {
+    try {
+      if (exchange.getRequestHeaders().containsKey("Origin")) {
+        sendError(exchange, 403, "Requests from web pages are not accepted");
+      } else if (!exchange.getRequestMethod().equals(method)) {
+        exchange.getResponseHeaders().set("Allow", method);
+        sendError(exchange, 405, "Use " + method);
+      } else {
+        handler.handle(exchange);
+      }
+    } catch (Exception e) {
+      // The response may have started already, then the client sees the
+      // connection end
+      try {
+        sendError(exchange, 500, e.getMessage() == null ? e.toString() : e.getMessage());
+      } catch (IOException | RuntimeException ignored) {
+        // headers were sent or the client is gone
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void prompt(HttpExchange exchange) throws Exception {
+    JsonNode request;
+    try {
+      request = mapper.readTree(readBody(exchange));
+    } catch (IOException e) {
+      sendError(exchange, 400, "Body is not JSON: " + e.getMessage());
+      return;
+    }
+    String prompt = request.path("prompt").asText("").trim();
+    if (prompt.isEmpty()) {
+      sendError(exchange, 400, "\"prompt\" is missing");
+      return;
+    }
+    String sessionName = request.path("session").asText(null);
+    Session session = sessionName == null ? null : session(sessionName);
+    if (session != null && !session.answering.compareAndSet(false, true)) {
+      sendError(exchange, 409, "Session " + sessionName + " is still answering a prompt");
+      return;
+    }
+    try {
+      answer(exchange, request, prompt, session == null ? null : session.conversation);
+    } finally {
+      if (session != null) {
+        synchronized (sessions) {
+          session.lastUsed = System.nanoTime();
+        }
+        session.answering.set(false);
+      }
+    }
+  }
+
+  private void answer(HttpExchange exchange, JsonNode request, String prompt, ConversationSession session)
+      throws Exception {
+    boolean stream = request.path("stream").asBoolean(true);
+    GenerationProfile profile = null;
+    if (request.hasNonNull("profile")) {
+      profile = GenerationProfile.all().get(request.get("profile").asText());
+      if (profile == null) {
+        sendError(exchange, 400, "No profile " + request.get("profile").asText());
+        return;
+      }
+    }
+    GenerationStats[] stats = new GenerationStats[1];
+    RequestOptions options = RequestOptions.defaults()
+        .bypassCache(!request.path("cache").asBoolean(true))
+        .profile(profile)
+        .onStats(completed -> stats[0] = completed);
+
+    EventStream events = stream ? new EventStream(exchange) : null;
+    RequestScheduler.Task<String> task;
+    try {
+      task = scheduler.submit("API: " + prompt, cancellation -> {
+        options.cancellation(cancellation);
+        OllamaClient.TokenListener listener = events == null ? null : token -> events.token(token, cancellation);
+        if (session != null)
+          return client.chat(session, prompt, listener, stream, options);
+        return stream ? client.streamMessage(prompt, listener, options) : client.sendMessage(prompt, options);
+      });
+    } catch (RejectedExecutionException e) {
+      exchange.getResponseHeaders().set("Retry-After", "5");
+      sendError(exchange, 503, "Too many prompts are waiting");
+      return;
+    }
+
+    String response;
+    try {
+      response = await(task, events);
+    } catch (ExecutionException | CancellationException e) {
+      // get() throws CancellationException itself when the task was cancelled
+      Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+      String message = cause instanceof CancellationException ? "Generation stopped"
+          : cause.getMessage() == null ? cause.toString() : cause.getMessage();
+      if (events != null)
+        events.send("error", error(message));
+      else
+        sendError(exchange, 502, message);
+      return;
+    } catch (InterruptedException e) {
+      task.cancel();
+      Thread.currentThread().interrupt();
+      return;
+    }
+
+    ObjectNode done = mapper.createObjectNode();
+    if (events == null)
+      done.put("response", response);
+    if (session != null)
+      done.put("turn", session.getTurns());
+    if (stats[0] == null) {
+      done.put("cached", true);
+    } else {
+      done.put("promptTokens", stats[0].promptEvalCount);
+      done.put("evalTokens", stats[0].evalCount);
+      done.put("wallMillis", stats[0].wallTime / 1_000_000);
+      if (stats[0].trimming != null)
+        done.put("trimmed", stats[0].trimming);
+    }
+    if (events != null)
+      events.send("done", done);
+    else
+      sendJson(exchange, 200, done);
+  }
+
+  // The answer of the task. A stream gets keep-alive comments while it
+  // waits; the task is cancelled when one cannot be written.
+  private static String await(RequestScheduler.Task<String> task, EventStream events) throws Exception {
+    Future<String> result = task.getResult();
+    if (events == null)
+      return result.get();
+    while (true) {
+      try {
+        return result.get(KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        if (!events.keepAlive())
+          task.cancel(); // the client hung up
+      }
+    }
+  }
+
+  // The named session, created when there is none. Sessions idle for too
+  // long go first, then the least recently used ones beyond the limit;
+  // sessions answering a prompt are kept.
+  private Session session(String name) {
+    synchronized (sessions) {
+      long now = System.nanoTime();
+      boolean adding = !sessions.containsKey(name);
+      Iterator<Session> oldestFirst = sessions.values().iterator();
+      while (oldestFirst.hasNext()) {
+        Session session = oldestFirst.next();
+        boolean idle = now - session.lastUsed > sessionIdleNanos;
+        if (!session.answering.get() && (idle || adding && sessions.size() >= maxSessions))
+          oldestFirst.remove();
+      }
+      Session session = sessions.get(name);
+      if (session == null) {
+        session = new Session();
+        sessions.put(name, session);
+      }
+      session.lastUsed = now;
+      return session;
+    }
+  }
+
+  private void deleteSession(HttpExchange exchange) throws IOException {
+    String name = exchange.getRequestURI().getPath().substring(SESSIONS_PATH.length());
+    boolean existed;
+    synchronized (sessions) {
+      existed = sessions.remove(name) != null;
+    }
+    ObjectNode result = mapper.createObjectNode();
+    result.put("deleted", existed);
+    sendJson(exchange, existed ? 200 : 404, result);
+  }
+
+  private void status(HttpExchange exchange) throws IOException {
+    ObjectNode result = mapper.createObjectNode();
+    result.put("running", scheduler.count(RequestScheduler.State.RUNNING));
+    result.put("queued", scheduler.count(RequestScheduler.State.QUEUED));
+    synchronized (sessions) {
+      result.put("sessions", sessions.size());
+    }
+    result.put("endpoints", OllamaClient.getEndpoints().getEndpoints().size());
+    sendJson(exchange, 200, result);
+  }
+
+  // An answer streamed as Server-Sent Events. Tokens are written from the
+  // scheduler's worker, the closing event from the handler thread.
+  private static class EventStream {
+    private final HttpExchange exchange;
+    private OutputStream body;
+    private boolean closed = false;
+
+    EventStream(HttpExchange exchange) {
+      this.exchange = exchange;
+    }
+
+    void token(String token, CancellationToken cancellation) {
+      ObjectNode data = mapper.createObjectNode();
+      data.put("token", token);
+      if (!send(null, data))
+        cancellation.cancel(); // the client hung up
+    }
+
+    boolean send(String event, JsonNode data) {
+      return write((event == null ? "" : "event: " + event + "\n") + "data: " + data + "\n\n");
+    }
+
+    // A comment line, which clients ignore
+    boolean keepAlive() {
+      return write(":\n\n");
+    }
+
+    private synchronized boolean write(String text) {
+      if (closed)
+        return false;
+      try {
+        if (body == null) {
+          exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+          exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+          exchange.sendResponseHeaders(200, 0);
+          body = exchange.getResponseBody();
+        }
+        body.write(text.getBytes(StandardCharsets.UTF_8));
+        body.flush();
+        return true;
+      } catch (IOException e) {
+        closed = true;
+        return false;
+      }
+    }
+  }
+
+  private static byte[] readBody(HttpExchange exchange) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    try (InputStream in = exchange.getRequestBody()) {
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        body.write(buffer, 0, read);
+        if (body.size() > MAX_BODY_BYTES)
+          throw new IOException("request is larger than " + MAX_BODY_BYTES + " bytes");
+      }
+    }
+    return body.toByteArray();
+  }
+
+  private static ObjectNode error(String message) {
+    ObjectNode error = mapper.createObjectNode();
+    error.put("error", message);
+    return error;
+  }
+
+  private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+    sendJson(exchange, status, error(message));
+  }
+
+  private static void sendJson(HttpExchange exchange, int status, JsonNode json) throws IOException {
+    byte[] bytes = mapper.writeValueAsBytes(json);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
@@ -1,60 +1,791 @@
 package com.blade.aicoder;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 
 public class OllamaClient {
-  private static final String OLLAMA_URL = "http://localhost:11434/api/generate";
+  private static final String GENERATE_PATH = "api/generate";
+  private static final String CHAT_PATH = "api/chat";
+  private static final String EMBED_PATH = "api/embed";
   private static final String MODEL_NAME = "deepseek-coder-v2:16b"; // Using latest for better compatibility
   private static final HttpClient httpClient = HttpClient.newBuilder()
       .connectTimeout(Duration.ofSeconds(30))
       .build();
   private static final ObjectMapper mapper = new ObjectMapper();
+  private static final EndpointPool endpoints = EndpointPool.fromConfig();
+  private static final GenerationProfile defaultProfile = GenerationProfile.fromConfig();
 
   private FloatingWindow floatingWindow;
+  private final ResponseCache cache; // null when disabled
+  private final ProjectIndex projectIndex; // null when no project is configured
+  private final ConversationMemory memory; // null when disabled
 
   public OllamaClient(FloatingWindow floatingWindow) {
     this.floatingWindow = floatingWindow;
+    this.cache = AssistantConfig.isCacheEnabled() ? ResponseCache.fromConfig() : null;
+    this.projectIndex = ProjectIndex.fromConfig();
+    this.memory = ConversationMemory.fromConfig();
+  }
+
+  public ResponseCache getCache() {
+    return cache;
+  }
+
+  public static String getModelName() {
+    return MODEL_NAME;
+  }
+
+  public static EndpointPool getEndpoints() {
+    return endpoints;
+  }
+
+  static HttpClient getHttpClient() {
+    return httpClient;
   }
 
   public String sendMessage(String message) throws Exception {
+    return sendMessage(message, RequestOptions.defaults());
+  }
+
+  public String sendMessage(String message, RequestOptions options) throws Exception {
+    // Looked up before the context, a hit costs no embedding or search
+    byte[] cacheKey = cacheKey("generate" + contextTag(), message, options);
+    String cached = cacheKey == null ? null : cache.get(cacheKey);
+    if (cached != null)
+      return cached;
+
+    PromptBuilder.Prompt prompt = buildPrompt(MODEL_NAME, message, Collections.emptyList(),
+        options.getCancellation());
+
     // Prepare the request payload using Jackson
-    String requestBody = mapper.writeValueAsString(new OllamaRequest(MODEL_NAME, message, false));
+    String requestBody = generateRequestBody(MODEL_NAME, prompt.getText(), false, profile(options));
+
+    GenerationStats stats = estimated(prompt);
+    String text = readResponse(MODEL_NAME, GENERATE_PATH, requestBody, null, stats, options.getCancellation());
+    calibrate(MODEL_NAME, prompt, stats);
+    options.reportStats(stats);
+    if (cacheKey != null)
+      cache.put(cacheKey, text);
+    remember(message, text);
+    return text;
+  }
+
+  // Streaming variant: Ollama answers with one JSON object per line (NDJSON),
+  // each carrying the next token delta. Deltas are handed to the listener as
+  // soon as their line arrives; the full response is returned at the end.
+  // A cached answer is delivered as a single token.
+  public String streamMessage(String message, TokenListener listener, RequestOptions options) throws Exception {
+    byte[] cacheKey = cacheKey("generate" + contextTag(), message, options);
+    String cached = cacheKey == null ? null : cache.get(cacheKey);
+    if (cached != null) {
+      listener.onToken(cached);
+      return cached;
+    }
+
+    PromptBuilder.Prompt prompt = buildPrompt(MODEL_NAME, message, Collections.emptyList(),
+        options.getCancellation());
+
+    String requestBody = generateRequestBody(MODEL_NAME, prompt.getText(), true, profile(options));
+    GenerationStats stats = estimated(prompt);
+    String response = readResponse(MODEL_NAME, GENERATE_PATH, requestBody, listener, stats,
+        options.getCancellation());
+    calibrate(MODEL_NAME, prompt, stats);
+    options.reportStats(stats);
+    if (cacheKey != null)
+      cache.put(cacheKey, response);
+    remember(message, response);
+    return response;
+  }
+
+  // The prompt exactly as given, without project code, memory or history,
+  // for prompts that carry their own context such as the parts of an
+  // attached file (see FileMapReduce). Streams when a listener is given;
+  // cached like any other prompt, but not remembered.
+  public String generate(String prompt, TokenListener listener, RequestOptions options) throws Exception {
+    byte[] cacheKey = cacheKey("raw", prompt, options);
+    String cached = cacheKey == null ? null : cache.get(cacheKey);
+    if (cached != null) {
+      if (listener != null)
+        listener.onToken(cached);
+      return cached;
+    }
+
+    String requestBody = generateRequestBody(MODEL_NAME, prompt, listener != null, profile(options));
+    GenerationStats stats = new GenerationStats();
+    stats.estimatedPromptTokens = TokenEstimator.estimate(MODEL_NAME, prompt);
+    String response = readResponse(MODEL_NAME, GENERATE_PATH, requestBody, listener, stats,
+        options.getCancellation());
+    options.reportStats(stats);
+    if (cacheKey != null)
+      cache.put(cacheKey, response);
+    return response;
+  }
+
+  // Sends the next turn of a conversation to /api/chat together with the
+  // earlier turns that fit in the context window. The turn is added to the
+  // session once it completed.
+  public String chat(ConversationSession session, String message, TokenListener listener, boolean stream,
+      RequestOptions options) throws Exception {
+    List<ConversationSession.ChatMessage> history = session.getMessages();
+
+    // The whole conversation so far is the prompt, before any context is
+    // attached to it
+    byte[] cacheKey = null;
+    if (cache != null && !options.isBypassCache()) {
+      StringBuilder conversation = new StringBuilder();
+      for (ConversationSession.ChatMessage chatMessage : history) {
+        conversation.append(chatMessage.role).append(": ").append(chatMessage.content).append('\n');
+      }
+      conversation.append("user: ").append(message).append('\n');
+      cacheKey = cacheKey("chat" + contextTag(), conversation.toString(), options);
+    }
+    String cached = cacheKey == null ? null : cache.get(cacheKey);
+    if (cached != null) {
+      if (listener != null)
+        listener.onToken(cached);
+      session.addTurn(message, cached, new GenerationStats());
+      return cached;
+    }
+
+    // Only this turn carries the attached context, the session keeps the message
+    PromptBuilder.Prompt prompt = buildPrompt(MODEL_NAME, message, history, options.getCancellation());
+    List<ConversationSession.ChatMessage> messages = prompt.messages;
+
+    String requestBody = chatRequestBody(MODEL_NAME, messages, stream, profile(options));
+
+    GenerationStats stats = estimated(prompt);
+    String response = readResponse(MODEL_NAME, CHAT_PATH, requestBody, listener, stats, options.getCancellation());
+    // Only a first turn is evaluated in full, later ones reuse the cache
+    if (messages.size() == 1)
+      calibrate(MODEL_NAME, prompt, stats);
+    session.addTurn(message, response, stats);
+    options.reportStats(stats);
+    if (cacheKey != null)
+      cache.put(cacheKey, response);
+    remember(message, response);
+    return response;
+  }
+
+  // Streams a quick provisional answer from the draft model
+  // (aicoder.draftModel) with the same context as the main model gets.
+  // history is null outside of conversation mode. Nothing is cached or
+  // remembered and no session is changed: the main model's answer, or the
+  // draft if the user keeps it, becomes the turn.
+  public String draft(String message, List<ConversationSession.ChatMessage> history, TokenListener listener,
+      CancellationToken cancellation) throws Exception {
+    String model = AssistantConfig.getDraftModel();
+    PromptBuilder.Prompt prompt = buildPrompt(model, message,
+        history == null ? Collections.emptyList() : history, cancellation);
+    String requestBody = history == null ? generateRequestBody(model, prompt.getText(), true)
+        : chatRequestBody(model, prompt.messages, true);
+    GenerationStats stats = estimated(prompt);
+    String response = readResponse(model, history == null ? GENERATE_PATH : CHAT_PATH, requestBody, listener, stats,
+        cancellation);
+    if (prompt.messages.size() == 1)
+      calibrate(model, prompt, stats);
+    return response;
+  }
+
+  // One streamed generation of the prompt as it is, without context, cache
+  // or memory, to compare generation options (see Autotuner)
+  public static GenerationStats measure(String prompt, GenerationProfile profile, CancellationToken cancellation)
+      throws Exception {
+    GenerationStats stats = new GenerationStats();
+    readResponse(MODEL_NAME, GENERATE_PATH, generateRequestBody(MODEL_NAME, prompt, true, profile), null, stats,
+        cancellation);
+    return stats;
+  }
+
+  // The message with related earlier exchanges and the most relevant code of
+  // the project in front of it, and the earlier turns, fitted into the
+  // context window
+  private PromptBuilder.Prompt buildPrompt(String model, String message,
+      List<ConversationSession.ChatMessage> history, CancellationToken cancellation) {
+    PromptBuilder builder = PromptBuilder.fromConfig(model).history(history).input(message);
+    if (memory != null) {
+      List<String> exchanges = new ArrayList<>();
+      for (String exchange : memory.recall(message, AssistantConfig.getMemoryMatches(),
+          AssistantConfig.getMemoryMinScore(), cancellation)) {
+        exchanges.add(ConversationMemory.formatExchange(exchange));
+      }
+      builder.section(ConversationMemory.CONTEXT_HEADER, exchanges);
+    }
+    if (projectIndex != null) {
+      List<String> snippets = new ArrayList<>();
+      for (ProjectIndex.Snippet snippet : projectIndex.search(message, AssistantConfig.getProjectSnippets(),
+          AssistantConfig.getProjectContextTokens())) {
+        snippets.add(ProjectIndex.formatSnippet(snippet));
+      }
+      builder.section(ProjectIndex.CONTEXT_HEADER, snippets);
+    }
+    return builder.build();
+  }
+
+  private static GenerationStats estimated(PromptBuilder.Prompt prompt) {
+    GenerationStats stats = new GenerationStats();
+    stats.estimatedPromptTokens = prompt.estimatedTokens;
+    stats.trimming = prompt.getTrimming();
+    return stats;
+  }
+
+  private static void calibrate(String model, PromptBuilder.Prompt prompt, GenerationStats stats) {
+    TokenEstimator.calibrate(model, prompt.uncalibratedTokens, stats.promptEvalCount);
+  }
+
+  private void remember(String message, String response) {
+    if (memory != null && !response.isEmpty())
+      memory.remember(message, response);
+  }
+
+  // Embedding vector of the text, from /api/embed
+  public static float[] embed(String model, String text, CancellationToken cancellation) throws Exception {
+    ObjectNode request = mapper.createObjectNode();
+    request.put("model", model);
+    request.put("input", text);
+    request.put("keep_alive", AssistantConfig.getKeepAlive());
+    try (Exchange<InputStream> exchange = send(model, EMBED_PATH, mapper.writeValueAsString(request),
+        HttpResponse.BodyHandlers.ofInputStream(), cancellation)) {
+      try (InputStream body = exchange.response.body()) {
+        if (exchange.response.statusCode() != 200) {
+          String errorBody = new String(body.readAllBytes(), StandardCharsets.UTF_8).trim();
+          throw new RuntimeException("Ollama API error: " + exchange.response.statusCode() + " - " + errorBody);
+        }
+        return readEmbedding(body);
+      }
+    }
+  }
+
+  // The first vector of "embeddings" (or "embedding" of the older
+  // /api/embeddings) without building a tree of the response
+  static float[] readEmbedding(InputStream body) throws IOException {
+    try (JsonParser parser = mapper.getFactory().createParser(body)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT)
+        throw new IOException("Unexpected embedding response");
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if (field.equals("embeddings") && value == JsonToken.START_ARRAY) {
+          if (parser.nextToken() == JsonToken.START_ARRAY)
+            return readFloats(parser);
+        } else if (field.equals("embedding") && value == JsonToken.START_ARRAY) {
+          return readFloats(parser);
+        } else if (field.equals("error")) {
+          throw new RuntimeException("Ollama API error: " + parser.getValueAsString());
+        } else {
+          parser.skipChildren();
+        }
+      }
+    }
+    throw new IOException("No embedding in the response");
+  }
+
+  private static float[] readFloats(JsonParser parser) throws IOException {
+    float[] values = new float[1024];
+    int size = 0;
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      if (size == values.length)
+        values = Arrays.copyOf(values, size * 2);
+      values[size++] = parser.getFloatValue();
+    }
+    return Arrays.copyOf(values, size);
+  }
 
+  // Takes the one-off costs off the first prompt: initializes the HTTP client
+  // and Jackson, checks that the model is available and has Ollama load it
+  // with keep_alive so that it is resident before the user asks anything.
+  // Every endpoint is warmed up at the same time. Returns a readiness message
+  // including the time it took.
+  public static String warmUp() throws Exception {
+    List<EndpointPool.Endpoint> all = endpoints.getEndpoints();
+    if (all.size() == 1)
+      return warmUp(all.get(0));
+
+    List<CompletableFuture<String>> results = new ArrayList<>();
+    for (EndpointPool.Endpoint endpoint : all) {
+      results.add(CompletableFuture.supplyAsync(() -> {
+        try {
+          return endpoint.getBaseUri() + ": " + warmUp(endpoint);
+        } catch (Exception e) {
+          return endpoint.getBaseUri() + ": warm-up failed, " + e.getMessage();
+        }
+      }));
+    }
+    StringBuilder report = new StringBuilder();
+    for (CompletableFuture<String> result : results) {
+      report.append(report.length() == 0 ? "" : "\n").append(result.join());
+    }
+    return report.toString();
+  }
+
+  private static String warmUp(EndpointPool.Endpoint endpoint) throws Exception {
+    long start = System.nanoTime();
+    CancellationToken cancellation = new CancellationToken();
+
+    // /api/ps lists the models that are loaded right now
+    boolean resident;
+    try {
+      resident = listsModel(getJson(endpoint.resolve("api/ps"), cancellation));
+    } catch (ConnectException e) {
+      throw new ConnectException("Cannot connect to Ollama at " + endpoint.getBaseUri());
+    }
+    if (!resident && !listsModel(getJson(endpoint.resolve("api/tags"), cancellation))) {
+      throw new RuntimeException("Model " + MODEL_NAME + " is not installed, run: ollama pull " + MODEL_NAME);
+    }
+
+    // A chat request without messages only loads the model
+    String requestBody = chatRequestBody(new ArrayList<>(), false);
     HttpRequest request = HttpRequest.newBuilder()
-        .uri(URI.create(OLLAMA_URL))
+        .uri(endpoint.resolve(CHAT_PATH))
         .header("Content-Type", "application/json")
         .POST(HttpRequest.BodyPublishers.ofString(requestBody))
         .build();
+    HttpResponse<String> response = execute(request, HttpResponse.BodyHandlers.ofString(), cancellation);
+    if (response.statusCode() != 200) {
+      throw new RuntimeException("Ollama API error: " + response.statusCode() + " - " + response.body());
+    }
 
-    HttpResponse<String> response = httpClient.send(request,
-        HttpResponse.BodyHandlers.ofString());
+    // The draft model has to be resident as well or its first answer is slow
+    String draftModel = AssistantConfig.getDraftModel();
+    String draftNote = "";
+    if (draftModel != null) {
+      HttpRequest draftRequest = HttpRequest.newBuilder()
+          .uri(endpoint.resolve(CHAT_PATH))
+          .header("Content-Type", "application/json")
+          .POST(HttpRequest.BodyPublishers.ofString(chatRequestBody(draftModel, new ArrayList<>(), false)))
+          .build();
+      boolean loaded = execute(draftRequest, HttpResponse.BodyHandlers.ofString(), cancellation).statusCode() == 200;
+      draftNote = loaded ? ", draft model " + draftModel + " loaded" : ", draft model " + draftModel + " not available";
+    }
 
-    if (response.statusCode() != 200) {
-      throw new RuntimeException("Ollama API error: " + response.statusCode() +
-          " - " + response.body());
+    long millis = (System.nanoTime() - start) / 1_000_000;
+    return String.format("%s %s and ready%s (warm-up took %.1f s)", MODEL_NAME,
+        resident ? "was already loaded" : "is loaded", draftNote, millis / 1000.0);
+  }
+
+  // null when the endpoint is not supported by this Ollama version
+  private static JsonNode getJson(URI uri, CancellationToken cancellation) throws Exception {
+    HttpRequest request = HttpRequest.newBuilder()
+        .uri(uri)
+        .GET()
+        .build();
+    HttpResponse<String> response = execute(request, HttpResponse.BodyHandlers.ofString(), cancellation);
+    return response.statusCode() == 200 ? mapper.readTree(response.body()) : null;
+  }
+
+  private static boolean listsModel(JsonNode models) {
+    if (models == null)
+      return false;
+    String name = EndpointPool.modelName(MODEL_NAME);
+    for (JsonNode model : models.path("models")) {
+      for (String field : new String[] { "name", "model" }) {
+        if (model.path(field).isTextual() && name.equals(EndpointPool.modelName(model.path(field).asText())))
+          return true;
+      }
+    }
+    return false;
+  }
+
+  static String generateRequestBody(String prompt, boolean stream) throws IOException {
+    return generateRequestBody(MODEL_NAME, prompt, stream);
+  }
+
+  static String generateRequestBody(String model, String prompt, boolean stream) throws IOException {
+    return generateRequestBody(model, prompt, stream, defaultProfile);
+  }
+
+  static String generateRequestBody(String model, String prompt, boolean stream, GenerationProfile profile)
+      throws IOException {
+    return mapper.writeValueAsString(new OllamaRequest(model, prompt, stream, profile.getKeepAlive(),
+        modelOptions(profile)));
+  }
+
+  static String chatRequestBody(List<ConversationSession.ChatMessage> messages, boolean stream) throws IOException {
+    return chatRequestBody(MODEL_NAME, messages, stream);
+  }
+
+  static String chatRequestBody(String model, List<ConversationSession.ChatMessage> messages, boolean stream)
+      throws IOException {
+    return chatRequestBody(model, messages, stream, defaultProfile);
+  }
+
+  static String chatRequestBody(String model, List<ConversationSession.ChatMessage> messages, boolean stream,
+      GenerationProfile profile) throws IOException {
+    return mapper.writeValueAsString(new ChatRequest(model, messages, stream, profile.getKeepAlive(),
+        modelOptions(profile)));
+  }
+
+  // Every request names the same context window: the prompt budget depends
+  // on it, and Ollama reloads the model when it changes. The profile's
+  // options follow.
+  private static Map<String, Object> modelOptions(GenerationProfile profile) {
+    Map<String, Object> options = new LinkedHashMap<>();
+    options.put("num_ctx", AssistantConfig.getContextTokens());
+    options.putAll(profile.getOptions());
+    return options;
+  }
+
+  private static GenerationProfile profile(RequestOptions options) {
+    return options.getProfile() != null ? options.getProfile() : defaultProfile;
+  }
+
+  // Part of the cache key of prompts that get context: the project code and
+  // the exchanges that could be attached. An answer cached before a project
+  // file or the memory changed is not found again.
+  private String contextTag() {
+    String tag = "";
+    if (projectIndex != null)
+      tag += "|project " + (projectIndex.isReady() ? Long.toHexString(projectIndex.getFingerprint()) : "scanning");
+    if (memory != null)
+      tag += "|memory " + memory.size();
+    return tag;
+  }
+
+  // null when the cache is disabled or bypassed for this request
+  private byte[] cacheKey(String endpoint, String prompt, RequestOptions options) {
+    if (cache == null || options.isBypassCache())
+      return null;
+    return ResponseCache.key(MODEL_NAME, endpoint + profile(options).cacheTag(), prompt);
+  }
+
+  // Reads a /api/generate or /api/chat response. Streaming responses have one
+  // JSON object per line, a non-streaming one is a single object; both end
+  // with "done": true and the counters that are copied into stats.
+  private static String readResponse(String model, String path, String requestBody, TokenListener listener,
+      GenerationStats stats, CancellationToken cancellation) throws Exception {
+    long start = System.nanoTime();
+    TokenListener timedListener = token -> {
+      if (stats.timeToFirstToken == 0)
+        stats.timeToFirstToken = System.nanoTime() - start;
+      if (listener != null)
+        listener.onToken(token);
+    };
+
+    try (Exchange<InputStream> exchange = send(model, path, requestBody, HttpResponse.BodyHandlers.ofInputStream(),
+        cancellation)) {
+      stats.timeToFirstByte = System.nanoTime() - start;
+      String response;
+      try {
+        response = readBody(exchange.response, timedListener, stats, cancellation);
+      } catch (IOException e) {
+        // The endpoint went away mid-stream
+        if (!cancellation.isCancelled())
+          endpoints.failed(exchange.endpoint);
+        throw e;
+      }
+      stats.wallTime = System.nanoTime() - start;
+      exchange.completed(model, stats);
+      InferenceMetrics.getInstance().record(stats);
+      return response;
+    } catch (Exception e) {
+      InferenceMetrics.getInstance().recordFailure(cancellation.isCancelled());
+      throw e;
+    }
+  }
+
+  private static String readBody(HttpResponse<InputStream> response, TokenListener listener, GenerationStats stats,
+      CancellationToken cancellation) throws Exception {
+    // Closing the body mid-stream drops the connection, which makes Ollama
+    // stop generating
+    CancellationToken.Registration hook = cancellation.onCancel(() -> closeBody(response));
+    try (InputStream input = response.body()) {
+      if (response.statusCode() != 200) {
+        String errorBody = new String(input.readAllBytes(), StandardCharsets.UTF_8).trim();
+        throw new RuntimeException("Ollama API error: " + response.statusCode() +
+            " - " + errorBody);
+      }
+
+      return readChunks(input, listener, stats, cancellation);
+    } catch (IOException e) {
+      // Reading fails once the body has been closed by cancel()
+      cancellation.throwIfCancelled();
+      throw e;
+    } finally {
+      hook.close();
+    }
+  }
+
+  // Reads the response objects up to the one with "done": true. Streaming
+  // responses are a sequence of objects, a non-streaming one is a single
+  // object. The streaming parser pulls out only the fields that are used, so
+  // the body is never held as a String and the context array of a
+  // non-streaming answer is skipped without being materialized.
+  static String readChunks(InputStream body, TokenListener listener, GenerationStats stats,
+      CancellationToken cancellation) throws IOException {
+    StringBuilder fullResponse = new StringBuilder();
+    try (JsonParser parser = mapper.getFactory().createParser(body)) {
+      while (parser.nextToken() == JsonToken.START_OBJECT) {
+        cancellation.throwIfCancelled();
+        String token = null;
+        boolean done = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String field = parser.getCurrentName();
+          JsonToken value = parser.nextToken();
+          switch (field) {
+            case "response": // /api/generate
+              token = value == JsonToken.VALUE_STRING ? parser.getText() : null;
+              break;
+            case "message": // /api/chat
+              token = readMessageContent(parser);
+              break;
+            case "done":
+              done = value == JsonToken.VALUE_TRUE;
+              break;
+            case "error":
+              throw new RuntimeException("Ollama API error: " + parser.getValueAsString());
+            default:
+              if (value == JsonToken.VALUE_NUMBER_INT) {
+                stats.read(field, parser.getLongValue());
+              } else {
+                parser.skipChildren(); // context and anything else unused
+              }
+          }
+        }
+
+        if (token != null && !token.isEmpty()) {
+          fullResponse.append(token);
+          if (listener != null)
+            listener.onToken(token);
+        }
+        if (done)
+          break;
+      }
+    }
+    cancellation.throwIfCancelled();
+    return fullResponse.toString();
+  }
+
+  // "content" of a message object, the parser is left on its END_OBJECT
+  private static String readMessageContent(JsonParser parser) throws IOException {
+    if (parser.currentToken() != JsonToken.START_OBJECT) {
+      parser.skipChildren();
+      return null;
     }
+    String content = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      if (field.equals("content") && value == JsonToken.VALUE_STRING) {
+        content = parser.getText();
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return content;
+  }
+
+  // Sends to the least busy endpoint that has the model. Connection failures
+  // and 5xx answers eject the endpoint and the request is tried on the next
+  // one; when there is none left the last answer is returned as it is. The
+  // endpoint counts as busy until the exchange is closed.
+  private static <T> Exchange<T> send(String model, String path, String requestBody,
+      HttpResponse.BodyHandler<T> handler, CancellationToken cancellation) throws Exception {
+    List<EndpointPool.Endpoint> tried = new ArrayList<>();
+    Exception lastError = null;
+    while (true) {
+      EndpointPool.Endpoint endpoint = endpoints.acquire(model, tried);
+      if (endpoint == null) {
+        if (lastError != null)
+          throw lastError;
+        throw new RuntimeException("No Ollama endpoint has the model " + model + ": " + endpoints);
+      }
+      tried.add(endpoint);
+
+      ConcurrencyLimiter limiter = endpoint.getLimiter();
+      long queueStart = System.nanoTime();
+      if (limiter != null) {
+        try {
+          limiter.acquire(cancellation);
+        } catch (RejectedExecutionException e) {
+          endpoints.release(endpoint);
+          if (!endpoints.hasAlternative(model, tried))
+            throw e;
+          lastError = e;
+          continue;
+        } catch (Exception e) {
+          endpoints.release(endpoint);
+          throw e;
+        }
+      }
+      long queuedNanos = System.nanoTime() - queueStart;
+
+      HttpRequest request = HttpRequest.newBuilder()
+          .uri(endpoint.resolve(path))
+          .header("Content-Type", "application/json")
+          .POST(HttpRequest.BodyPublishers.ofString(requestBody))
+          .build();
+
+      long start = System.nanoTime();
+      HttpResponse<T> response;
+      try {
+        response = execute(request, handler, cancellation);
+      } catch (IOException e) {
+        release(endpoint);
+        cancellation.throwIfCancelled();
+        endpoints.failed(endpoint);
+        lastError = e;
+        continue;
+      } catch (Exception e) {
+        release(endpoint);
+        throw e;
+      }
+
+      int status = response.statusCode();
+      if (status == 404) {
+        // Ollama answers 404 for a model it does not have
+        endpoints.modelMissing(endpoint, model);
+      } else if (status >= 500) {
+        // 503 is Ollama's own queue overflowing
+        if (status == 503 && limiter != null)
+          limiter.dropped();
+        endpoints.failed(endpoint);
+      } else {
+        endpoints.succeeded(endpoint, System.nanoTime() - start);
+        return new Exchange<>(response, endpoint, queuedNanos);
+      }
+
+      if (!endpoints.hasAlternative(model, tried))
+        return new Exchange<>(response, endpoint, queuedNanos);
+      if (response.body() instanceof InputStream)
+        ((InputStream) response.body()).close();
+      release(endpoint);
+    }
+  }
+
+  private static void release(EndpointPool.Endpoint endpoint) {
+    if (endpoint.getLimiter() != null)
+      endpoint.getLimiter().release();
+    endpoints.release(endpoint);
+  }
+
+  // sendAsync so that the exchange can be aborted through the token
+  private static <T> HttpResponse<T> execute(HttpRequest request, HttpResponse.BodyHandler<T> handler,
+      CancellationToken cancellation) throws Exception {
+    cancellation.throwIfCancelled();
+    CompletableFuture<HttpResponse<T>> sent = httpClient.sendAsync(request, handler);
+    CompletableFuture<HttpResponse<T>> future = sent.copy();
+    CancellationToken.Registration hook = cancellation.onCancel(() -> abandon(sent, future));
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      cancellation.throwIfCancelled();
+      Throwable cause = e.getCause();
+      throw cause instanceof Exception ? (Exception) cause : e;
+    } catch (InterruptedException e) {
+      abandon(sent, future);
+      Thread.currentThread().interrupt();
+      throw e;
+    } finally {
+      hook.close();
+    }
+  }
+
+  // Cancelling the future does not abort the exchange on Java 11, so a
+  // response that still arrives has its body closed; that drops the
+  // connection and Ollama stops generating
+  private static <T> void abandon(CompletableFuture<HttpResponse<T>> sent, CompletableFuture<HttpResponse<T>> waiting) {
+    waiting.cancel(true);
+    sent.thenAccept(OllamaClient::closeBody);
+  }
+
+  private static void closeBody(HttpResponse<?> response) {
+    if (response.body() instanceof InputStream) {
+      try {
+        ((InputStream) response.body()).close();
+      } catch (IOException e) {
+        // already closed
+      }
+    }
+  }
+
+  // A response and the endpoint that stays busy until it is closed
+  private static class Exchange<T> implements AutoCloseable {
+    final HttpResponse<T> response;
+    final EndpointPool.Endpoint endpoint;
+    final long queuedNanos; // waiting for the endpoint's limiter
+
+    Exchange(HttpResponse<T> response, EndpointPool.Endpoint endpoint, long queuedNanos) {
+      this.response = response;
+      this.endpoint = endpoint;
+      this.queuedNanos = queuedNanos;
+    }
+
+    // Lets the limiter learn from a completed generation
+    void completed(String model, GenerationStats stats) {
+      if (endpoint.getLimiter() != null)
+        endpoint.getLimiter().record(model, stats, queuedNanos);
+    }
+
+    @Override
+    public void close() {
+      release(endpoint);
+    }
+  }
+
+  // Receives token deltas while a streaming response is being read
+  public interface TokenListener {
+    void onToken(String token);
+  }
 
-    // Parse response
-    JsonNode jsonResponse = mapper.readTree(response.body());
-    return jsonResponse.get("response").asText();
+  // POJO for /api/chat requests
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  private static class ChatRequest {
+    public String model;
+    public List<ConversationSession.ChatMessage> messages;
+    public boolean stream;
+    @JsonProperty("keep_alive")
+    public String keepAlive;
+    public Map<String, Object> options;
+
+    public ChatRequest(String model, List<ConversationSession.ChatMessage> messages, boolean stream,
+        String keepAlive, Map<String, Object> options) {
+      this.model = model;
+      this.messages = messages;
+      this.stream = stream;
+      this.keepAlive = keepAlive;
+      this.options = options;
+    }
   }
 
   // Simple POJO for Ollama request
+  @JsonInclude(JsonInclude.Include.NON_NULL)
   private static class OllamaRequest {
     public String model;
     public String prompt;
     public boolean stream;
+    @JsonProperty("keep_alive")
+    public String keepAlive;
+    public Map<String, Object> options;
 
-    public OllamaRequest(String model, String prompt, boolean stream) {
+    public OllamaRequest(String model, String prompt, boolean stream, String keepAlive,
+        Map<String, Object> options) {
       this.model = model;
       this.prompt = prompt;
       this.stream = stream;
+      this.keepAlive = keepAlive;
+      this.options = options;
     }
   }
 }
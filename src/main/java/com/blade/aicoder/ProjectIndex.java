@@ -0,0 +1,659 @@
+package com.blade.aicoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+// BM25 index over the source tree of the project the user works on, used to
+// put the most relevant pieces of code in front of a prompt.
+//
+// The tree is scanned once with fork-join, one task per directory, and then
+// kept current from WatchService events: only created, modified or deleted
+// files are indexed again. To stay small on trees of 100k+ files the index
+// holds no text. Posting lists are per file, varint encoded (file id gap,
+// term frequency), and a changed file gets a new id while the old one is only
+// marked dead until dead ids make up half of the index; then the postings are
+// compacted and the live files renumbered from 0, so ids stay as many as the
+// files. For a prompt the best files are found with BM25 over the
+// postings; only those are read again, split into chunks of CHUNK_LINES lines
+// and ranked with BM25 once more, and the best chunks are attached as long
+// as they fit in the token budget.
+public class ProjectIndex {
+  private static final int CHUNK_LINES = 30;
+  private static final int CANDIDATE_FILES = 20;
+  private static final int MAX_QUERY_TERMS = 32;
+  private static final int MIN_TERM_LENGTH = 2;
+  private static final int MAX_TERM_LENGTH = 40;
+  private static final double K1 = 1.2;
+  private static final double B = 0.75;
+  private static final long DEBOUNCE_MILLIS = 300;
+  private static final Set<String> SKIPPED_DIRECTORIES = new HashSet<>(Arrays.asList("node_modules", "target",
+      "build", "out", "dist", "bin", "obj", "vendor", "__pycache__"));
+
+  // A file as it is in the index
+  private static class FileEntry {
+    final int id;
+    final int length; // terms
+    final long modified;
+    final long size;
+
+    FileEntry(int id, int length, long modified, long size) {
+      this.id = id;
+      this.length = length;
+      this.modified = modified;
+      this.size = size;
+    }
+  }
+
+  // File ids in increasing order, each followed by the term frequency
+  private static class Postings {
+    byte[] data = new byte[6];
+    int length = 0;
+    int count = 0; // including dead files until the next compaction
+    int last = -1;
+
+    void add(int id, int frequency) {
+      if (length + 10 > data.length)
+        data = Arrays.copyOf(data, Math.max(data.length * 2, length + 10));
+      length = writeVarint(data, length, id - last);
+      length = writeVarint(data, length, frequency);
+      last = id;
+      count++;
+    }
+  }
+
+  // A piece of a file that can be attached to a prompt
+  public static class Snippet {
+    public final String path;
+    public final int firstLine; // 1-based
+    public final int lastLine;
+    public final String text;
+    final double score;
+
+    Snippet(String path, int firstLine, int lastLine, String text, double score) {
+      this.path = path;
+      this.firstLine = firstLine;
+      this.lastLine = lastLine;
+      this.text = text;
+      this.score = score;
+    }
+  }
+
+  private final Path root;
+  private final Set<String> extensions;
+  private final long maxFileBytes;
+  private final int maxFiles;
+
+  // Guarded by this
+  private final Map<String, Postings> terms = new HashMap<>();
+  private final Map<Path, FileEntry> files = new HashMap<>();
+  private Path[] paths = new Path[1024]; // by id
+  private final BitSet dead = new BitSet();
+  private int nextId = 0;
+  private long totalLength = 0; // of the live files
+  private long fingerprint = 0; // of the live files' paths, times and sizes
+
+  private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+  private WatchService watcher;
+  private volatile boolean ready = false;
+  private volatile Thread thread;
+
+  public ProjectIndex(Path root, Set<String> extensions, long maxFileBytes, int maxFiles) {
+    this.root = root.toAbsolutePath().normalize();
+    this.extensions = extensions;
+    this.maxFileBytes = maxFileBytes;
+    this.maxFiles = maxFiles;
+  }
+
+  // Null when no project root is configured
+  public static ProjectIndex fromConfig() {
+    String root = AssistantConfig.getProjectRoot();
+    if (root == null)
+      return null;
+    ProjectIndex index = new ProjectIndex(Paths.get(root), AssistantConfig.getProjectExtensions(),
+        AssistantConfig.getProjectMaxFileKB() * 1024L, AssistantConfig.getProjectMaxFiles());
+    index.start();
+    return index;
+  }
+
+  // Scans the tree and then follows changes, on a background thread
+  public synchronized void start() {
+    if (thread != null)
+      return;
+    thread = new Thread(this::run, "project-indexer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public void shutdown() {
+    Thread running = thread;
+    if (running != null)
+      running.interrupt();
+    try {
+      if (watcher != null)
+        watcher.close();
+    } catch (IOException e) {
+      // closing anyway
+    }
+  }
+
+  public boolean isReady() {
+    return ready;
+  }
+
+  public Path getRoot() {
+    return root;
+  }
+
+  public synchronized int getFileCount() {
+    return files.size();
+  }
+
+  public synchronized int getTermCount() {
+    return terms.size();
+  }
+
+  // Changes whenever a file is indexed again, added or removed, also between
+  // runs; the same files as they were give the same value
+  public synchronized long getFingerprint() {
+    return fingerprint;
+  }
+
+  private static long fingerprint(Path file, FileEntry entry) {
+    long hash = file.toString().hashCode() * 0x9E3779B97F4A7C15L;
+    hash ^= entry.modified * 0xC2B2AE3D27D4EB4FL;
+    hash ^= entry.size * 0x165667B19E3779F9L;
+    return hash ^ (hash >>> 29);
+  }
+
+  private void run() {
+    try {
+      watcher = FileSystems.getDefault().newWatchService();
+    } catch (IOException e) {
+      System.err.println("Project changes will not be followed: " + e.getMessage());
+    }
+
+    scan(root);
+    ready = true;
+    if (watcher != null)
+      watch();
+  }
+
+  // Indexes every file under the directory that changed since it was indexed
+  void scan(Path directory) {
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+    try {
+      pool.invoke(new DirectoryTask(this, directory));
+    } finally {
+      pool.shutdown();
+    }
+
+    // Files that disappeared without an event, e.g. after an overflow
+    List<Path> indexed;
+    synchronized (this) {
+      indexed = new ArrayList<>(files.keySet());
+    }
+    for (Path file : indexed) {
+      if (file.startsWith(directory) && !Files.exists(file, LinkOption.NOFOLLOW_LINKS))
+        remove(file);
+    }
+  }
+
+  // Never serialized, RecursiveAction just happens to be Serializable
+  private static class DirectoryTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final transient ProjectIndex index;
+    private final transient Path directory;
+
+    DirectoryTask(ProjectIndex index, Path directory) {
+      this.index = index;
+      this.directory = directory;
+    }
+
+    @Override
+    protected void compute() {
+      index.register(directory);
+      List<DirectoryTask> subdirectories = new ArrayList<>();
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+        for (Path entry : entries) {
+          if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+            if (!index.isSkippedDirectory(entry))
+              subdirectories.add(new DirectoryTask(index, entry));
+          } else {
+            index.update(entry);
+          }
+        }
+      } catch (IOException e) {
+        // unreadable directory
+      }
+      invokeAll(subdirectories);
+    }
+  }
+
+  private void register(Path directory) {
+    if (watcher == null)
+      return;
+    try {
+      WatchKey key = directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+      watchedDirectories.put(key, directory);
+    } catch (IOException e) {
+      // e.g. the inotify watch limit; the directory is still indexed
+    }
+  }
+
+  // Collects events until DEBOUNCE_MILLIS pass without one, so a file that is
+  // saved several times in a row is indexed once
+  private void watch() {
+    Set<Path> changed = new LinkedHashSet<>();
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        WatchKey key = changed.isEmpty() ? watcher.take() : watcher.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+        if (key == null) {
+          for (Path path : changed) {
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+              if (!isSkippedDirectory(path))
+                scan(path);
+            } else {
+              update(path);
+            }
+          }
+          changed.clear();
+          continue;
+        }
+
+        Path directory = watchedDirectories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            changed.add(root); // events were lost, check everything
+          } else if (directory != null) {
+            changed.add(directory.resolve((Path) event.context()));
+          }
+        }
+        if (!key.reset())
+          watchedDirectories.remove(key);
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // shut down
+    }
+  }
+
+  private boolean isSkippedDirectory(Path directory) {
+    String name = directory.getFileName() == null ? "" : directory.getFileName().toString();
+    return name.startsWith(".") || SKIPPED_DIRECTORIES.contains(name);
+  }
+
+  private boolean isIndexed(Path file) {
+    String name = file.getFileName().toString();
+    int dot = name.lastIndexOf('.');
+    return dot > 0 && extensions.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+  }
+
+  // Indexes the file again if it changed, or removes it when it is gone
+  void update(Path file) {
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    } catch (IOException e) {
+      remove(file);
+      return;
+    }
+    if (!attributes.isRegularFile() || !isIndexed(file) || attributes.size() > maxFileBytes) {
+      remove(file);
+      return;
+    }
+
+    long modified = attributes.lastModifiedTime().toMillis();
+    synchronized (this) {
+      FileEntry entry = files.get(file);
+      if (entry != null && entry.modified == modified && entry.size == attributes.size())
+        return;
+      if (entry == null && files.size() >= maxFiles)
+        return;
+    }
+
+    String text = read(file);
+    if (text == null) {
+      remove(file);
+      return;
+    }
+    Map<String, int[]> frequencies = new HashMap<>();
+    int length = 0;
+    for (String term : terms(text)) {
+      frequencies.computeIfAbsent(term, t -> new int[1])[0]++;
+      length++;
+    }
+    add(file, frequencies, length, modified, attributes.size());
+  }
+
+  // null for binary or unreadable files
+  private static String read(Path file) {
+    byte[] bytes;
+    try (InputStream input = Files.newInputStream(file)) {
+      bytes = input.readAllBytes();
+    } catch (IOException e) {
+      return null;
+    }
+    for (int i = 0; i < Math.min(bytes.length, 1024); i++) {
+      if (bytes[i] == 0)
+        return null;
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private synchronized void add(Path file, Map<String, int[]> frequencies, int length, long modified, long size) {
+    removeEntry(file);
+    int id = nextId++;
+    if (id == paths.length)
+      paths = Arrays.copyOf(paths, id * 2);
+    paths[id] = file;
+    FileEntry entry = new FileEntry(id, length, modified, size);
+    files.put(file, entry);
+    fingerprint ^= fingerprint(file, entry);
+    totalLength += length;
+    for (Map.Entry<String, int[]> term : frequencies.entrySet()) {
+      terms.computeIfAbsent(term.getKey(), t -> new Postings()).add(id, term.getValue()[0]);
+    }
+    compactIfNeeded();
+  }
+
+  // Also removes everything below it when the path was a directory
+  synchronized void remove(Path path) {
+    if (!removeEntry(path)) {
+      List<Path> below = new ArrayList<>();
+      for (Path file : files.keySet()) {
+        if (file.startsWith(path))
+          below.add(file);
+      }
+      for (Path file : below) {
+        removeEntry(file);
+      }
+    }
+    compactIfNeeded();
+  }
+
+  private boolean removeEntry(Path file) {
+    FileEntry entry = files.remove(file);
+    if (entry == null)
+      return false;
+    dead.set(entry.id);
+    paths[entry.id] = null;
+    fingerprint ^= fingerprint(file, entry);
+    totalLength -= entry.length;
+    return true;
+  }
+
+  // Drops the postings of dead files once they make up half of the index and
+  // gives the live files the ids 0 to n - 1, in the order they had, so the
+  // postings stay sorted
+  private void compactIfNeeded() {
+    if (dead.cardinality() <= Math.max(1024, files.size()))
+      return;
+    int[] newIds = new int[nextId];
+    Path[] renumbered = new Path[Math.max(1024, Integer.highestOneBit(Math.max(1, files.size())) * 2)];
+    int live = 0;
+    for (int id = 0; id < nextId; id++) {
+      if (dead.get(id) || paths[id] == null) {
+        newIds[id] = -1;
+        continue;
+      }
+      Path file = paths[id];
+      FileEntry entry = files.get(file);
+      files.put(file, new FileEntry(live, entry.length, entry.modified, entry.size));
+      renumbered[live] = file;
+      newIds[id] = live++;
+    }
+
+    Iterator<Map.Entry<String, Postings>> iterator = terms.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, Postings> term = iterator.next();
+      Postings old = term.getValue();
+      Postings compacted = new Postings();
+      int position = 0;
+      int id = -1;
+      for (int i = 0; i < old.count; i++) {
+        long gap = readVarint(old.data, position);
+        position = (int) (gap >>> 32);
+        id += (int) gap;
+        long frequency = readVarint(old.data, position);
+        position = (int) (frequency >>> 32);
+        if (newIds[id] >= 0)
+          compacted.add(newIds[id], (int) frequency);
+      }
+      if (compacted.count == 0) {
+        iterator.remove();
+      } else {
+        compacted.data = Arrays.copyOf(compacted.data, compacted.length);
+        term.setValue(compacted);
+      }
+    }
+    paths = renumbered;
+    nextId = live;
+    dead.clear();
+  }
+
+  // The best chunks for the text, within maxTokens; empty until the first
+  // scan is done
+  public List<Snippet> search(String text, int limit, int maxTokens) {
+    List<String> queryTerms = queryTerms(text);
+    if (!ready || queryTerms.isEmpty() || limit <= 0)
+      return new ArrayList<>();
+
+    Map<String, Double> idf = new HashMap<>();
+    List<Path> candidates = rankFiles(queryTerms, idf);
+
+    // Chunks of the best files, ranked against each other
+    List<Snippet> chunks = new ArrayList<>();
+    for (Path file : candidates) {
+      String content = read(file);
+      if (content != null)
+        chunks.addAll(rankChunks(file, content, idf));
+    }
+    chunks.sort((a, b) -> Double.compare(b.score, a.score));
+
+    List<Snippet> selected = new ArrayList<>();
+    int tokens = 0;
+    for (Snippet chunk : chunks) {
+      int cost = TokenEstimator.estimate(chunk.text) + 16;
+      if (chunk.score <= 0 || tokens + cost > maxTokens)
+        continue;
+      selected.add(chunk);
+      tokens += cost;
+      if (selected.size() == limit)
+        break;
+    }
+    return selected;
+  }
+
+  // BM25 over whole files; fills idf for the query terms
+  private synchronized List<Path> rankFiles(List<String> queryTerms, Map<String, Double> idf) {
+    int documents = files.size();
+    double averageLength = documents == 0 ? 1 : Math.max(1, (double) totalLength / documents);
+    Map<Integer, double[]> scores = new HashMap<>();
+    for (String term : queryTerms) {
+      Postings postings = terms.get(term);
+      if (postings == null)
+        continue;
+      // Only the live files count, dead ones stay in the postings until the
+      // next compaction
+      int[] ids = new int[postings.count];
+      int[] frequencies = new int[postings.count];
+      int frequencyIn = 0;
+      int position = 0;
+      int id = -1;
+      for (int i = 0; i < postings.count; i++) {
+        long gap = readVarint(postings.data, position);
+        position = (int) (gap >>> 32);
+        id += (int) gap;
+        long frequency = readVarint(postings.data, position);
+        position = (int) (frequency >>> 32);
+        if (!dead.get(id)) {
+          ids[frequencyIn] = id;
+          frequencies[frequencyIn++] = (int) frequency;
+        }
+      }
+      if (frequencyIn == 0)
+        continue;
+      double weight = Math.log(1 + (documents - frequencyIn + 0.5) / (frequencyIn + 0.5));
+      idf.put(term, weight);
+
+      for (int i = 0; i < frequencyIn; i++) {
+        int tf = frequencies[i];
+        id = ids[i];
+        FileEntry entry = files.get(paths[id]);
+        double norm = K1 * (1 - B + B * entry.length / averageLength);
+        scores.computeIfAbsent(id, k -> new double[1])[0] += weight * tf * (K1 + 1) / (tf + norm);
+      }
+    }
+
+    PriorityQueue<Map.Entry<Integer, double[]>> best = new PriorityQueue<>(
+        (a, b) -> Double.compare(a.getValue()[0], b.getValue()[0]));
+    for (Map.Entry<Integer, double[]> score : scores.entrySet()) {
+      best.add(score);
+      if (best.size() > CANDIDATE_FILES)
+        best.poll();
+    }
+    List<Path> ranked = new ArrayList<>();
+    while (!best.isEmpty()) {
+      ranked.add(0, paths[best.poll().getKey()]);
+    }
+    return ranked;
+  }
+
+  private List<Snippet> rankChunks(Path file, String content, Map<String, Double> idf) {
+    String[] lines = content.split("\n", -1);
+    List<Snippet> chunks = new ArrayList<>();
+    List<Map<String, int[]>> frequencies = new ArrayList<>();
+    List<Integer> lengths = new ArrayList<>();
+    long total = 0;
+    for (int first = 0; first < lines.length; first += CHUNK_LINES) {
+      int last = Math.min(lines.length, first + CHUNK_LINES);
+      String text = String.join("\n", Arrays.asList(lines).subList(first, last));
+      Map<String, int[]> counts = new HashMap<>();
+      int length = 0;
+      for (String term : terms(text)) {
+        if (idf.containsKey(term))
+          counts.computeIfAbsent(term, t -> new int[1])[0]++;
+        length++;
+      }
+      chunks.add(new Snippet(root.relativize(file).toString(), first + 1, last, text, 0));
+      frequencies.add(counts);
+      lengths.add(length);
+      total += length;
+    }
+
+    double averageLength = Math.max(1, (double) total / Math.max(1, chunks.size()));
+    List<Snippet> scored = new ArrayList<>();
+    for (int i = 0; i < chunks.size(); i++) {
+      double score = 0;
+      for (Map.Entry<String, int[]> term : frequencies.get(i).entrySet()) {
+        int tf = term.getValue()[0];
+        double norm = K1 * (1 - B + B * lengths.get(i) / averageLength);
+        score += idf.get(term.getKey()) * tf * (K1 + 1) / (tf + norm);
+      }
+      Snippet chunk = chunks.get(i);
+      if (score > 0)
+        scored.add(new Snippet(chunk.path, chunk.firstLine, chunk.lastLine, chunk.text, score));
+    }
+    return scored;
+  }
+
+  // Distinct terms of the prompt, rarest (longest) first
+  private static List<String> queryTerms(String text) {
+    Set<String> distinct = new LinkedHashSet<>(terms(text));
+    List<String> query = new ArrayList<>(distinct);
+    query.sort((a, b) -> Integer.compare(b.length(), a.length()));
+    return query.size() > MAX_QUERY_TERMS ? query.subList(0, MAX_QUERY_TERMS) : query;
+  }
+
+  // Lowercase words of letters and digits; camelCase and snake_case
+  // identifiers also yield their parts, so "readChunks" matches "chunks"
+  static List<String> terms(String text) {
+    List<String> terms = new ArrayList<>();
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      boolean partOfTerm = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+      if (partOfTerm && start < 0) {
+        start = i;
+      } else if (!partOfTerm && start >= 0) {
+        addTerm(terms, text, start, i);
+        int partStart = start;
+        for (int j = start + 1; j < i; j++) {
+          if (Character.isUpperCase(text.charAt(j)) && Character.isLowerCase(text.charAt(j - 1))) {
+            addTerm(terms, text, partStart, j);
+            partStart = j;
+          }
+        }
+        if (partStart > start)
+          addTerm(terms, text, partStart, i);
+        start = -1;
+      }
+    }
+    return terms;
+  }
+
+  private static void addTerm(List<String> terms, String text, int start, int end) {
+    if (end - start >= MIN_TERM_LENGTH && end - start <= MAX_TERM_LENGTH)
+      terms.add(text.substring(start, end).toLowerCase(Locale.ROOT));
+  }
+
+  // Text put in front of the prompt, or null when nothing relevant was found
+  public static final String CONTEXT_HEADER = "Relevant code from the project:\n";
+
+  // One snippet of the context that follows CONTEXT_HEADER
+  public static String formatSnippet(Snippet snippet) {
+    return "\n--- " + snippet.path + " (lines " + snippet.firstLine + "-" + snippet.lastLine + ") ---\n"
+        + snippet.text + "\n";
+  }
+
+  private static int writeVarint(byte[] data, int position, int value) {
+    while ((value & ~0x7f) != 0) {
+      data[position++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    data[position++] = (byte) value;
+    return position;
+  }
+
+  // The value in the low 32 bits, the position after it in the high ones
+  private static long readVarint(byte[] data, int position) {
+    int value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = data[position++];
+      value |= (b & 0x7f) << shift;
+      shift += 7;
+    } while (b < 0);
+    return (long) position << 32 | (value & 0xffffffffL);
+  }
+}
@@ -0,0 +1,210 @@
+package com.blade.aicoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Fits a prompt into the model's context window (num_ctx minus the tokens
+// kept free for the answer), so that Ollama never cuts it off silently and
+// prefill stays bounded.
+//
+// The parts are taken in order of importance until the budget is spent:
+// the user's input, the last turn of the conversation, the context sections
+// in the order they were added (each item best first), then older turns,
+// newest first. Input that does not fit on its own loses lines from its
+// middle. Older turns that do not fit are left out in blocks of half as many
+// turns as fit, so the next few turns start with the same messages and Ollama
+// can reuse its cache of them, instead of the conversation shifting by one
+// turn every time.
+public class PromptBuilder {
+  private static final int MESSAGE_OVERHEAD = 6; // role markers of the chat template
+  private static final String QUESTION = "\nQuestion:\n";
+
+  // The messages to send, the last one is the user's turn
+  public static class Prompt {
+    public final List<ConversationSession.ChatMessage> messages;
+    public final int estimatedTokens;
+    final int uncalibratedTokens;
+    private final String trimming;
+
+    Prompt(List<ConversationSession.ChatMessage> messages, int estimatedTokens, int uncalibratedTokens,
+        String trimming) {
+      this.messages = messages;
+      this.estimatedTokens = estimatedTokens;
+      this.uncalibratedTokens = uncalibratedTokens;
+      this.trimming = trimming;
+    }
+
+    // The user's turn with its context, the prompt of /api/generate
+    public String getText() {
+      return messages.get(messages.size() - 1).content;
+    }
+
+    // What was cut to make the prompt fit, null when nothing was
+    public String getTrimming() {
+      return trimming;
+    }
+  }
+
+  private static class Section {
+    final String header;
+    final List<String> items;
+
+    Section(String header, List<String> items) {
+      this.header = header;
+      this.items = items;
+    }
+  }
+
+  private final String model;
+  private final int budget;
+  private final List<Section> sections = new ArrayList<>();
+  private List<ConversationSession.ChatMessage> history = Collections.emptyList();
+  private String input = "";
+
+  public PromptBuilder(String model, int contextTokens, int answerTokens) {
+    this.model = model;
+    this.budget = Math.max(MESSAGE_OVERHEAD * 4, contextTokens - answerTokens);
+  }
+
+  public static PromptBuilder fromConfig(String model) {
+    return new PromptBuilder(model, AssistantConfig.getContextTokens(), AssistantConfig.getAnswerTokens());
+  }
+
+  // Earlier turns as user, assistant pairs, oldest first
+  public PromptBuilder history(List<ConversationSession.ChatMessage> history) {
+    this.history = history;
+    return this;
+  }
+
+  // Context put in front of the input, e.g. project code; items best first
+  public PromptBuilder section(String header, List<String> items) {
+    if (!items.isEmpty())
+      sections.add(new Section(header, items));
+    return this;
+  }
+
+  public PromptBuilder input(String input) {
+    this.input = input;
+    return this;
+  }
+
+  public Prompt build() {
+    List<String> cuts = new ArrayList<>();
+    int free = budget - MESSAGE_OVERHEAD - tokens(QUESTION);
+
+    String inputText = input;
+    int inputTokens = tokens(inputText);
+    if (inputTokens > free) {
+      inputText = cutMiddle(inputText, free);
+      cuts.add("input cut to about " + free + " of " + inputTokens + " tokens");
+      inputTokens = tokens(inputText);
+    }
+    free -= inputTokens;
+
+    int turnCount = history.size() / 2;
+    int keptTurns = 0;
+    if (turnCount > 0 && turnTokens(turnCount - 1) <= free) {
+      free -= turnTokens(turnCount - 1);
+      keptTurns = 1;
+    }
+
+    StringBuilder context = new StringBuilder();
+    int droppedItems = 0;
+    for (Section section : sections) {
+      int headerTokens = tokens(section.header);
+      boolean started = false;
+      for (String item : section.items) {
+        int cost = tokens(item) + (started ? 0 : headerTokens);
+        if (cost > free) {
+          droppedItems++;
+          continue;
+        }
+        if (!started) {
+          if (context.length() > 0)
+            context.append('\n');
+          context.append(section.header);
+          started = true;
+        }
+        context.append(item);
+        free -= cost;
+      }
+    }
+    if (droppedItems > 0)
+      cuts.add(droppedItems + " context item" + (droppedItems == 1 ? "" : "s") + " left out");
+
+    // Older turns, newest first
+    int olderTokens = 0;
+    int olderTurns = 0;
+    for (int turn = turnCount - 1 - keptTurns; turn >= 0; turn--) {
+      if (olderTokens + turnTokens(turn) > free)
+        break;
+      olderTokens += turnTokens(turn);
+      olderTurns++;
+    }
+    if (keptTurns + olderTurns < turnCount) {
+      int firstFitting = turnCount - keptTurns - olderTurns;
+      int step = Math.max(1, (keptTurns + olderTurns) / 2);
+      int first = Math.min(turnCount - keptTurns, (firstFitting + step - 1) / step * step);
+      keptTurns = turnCount - first;
+      cuts.add(first + " earlier turn" + (first == 1 ? "" : "s") + " left out");
+    } else {
+      keptTurns += olderTurns;
+    }
+
+    List<ConversationSession.ChatMessage> messages = new ArrayList<>(
+        history.subList(2 * (turnCount - keptTurns), 2 * turnCount));
+    String text = context.length() == 0 ? inputText : context + QUESTION + inputText;
+    messages.add(new ConversationSession.ChatMessage("user", text));
+
+    int uncalibrated = 0;
+    for (ConversationSession.ChatMessage message : messages) {
+      uncalibrated += TokenEstimator.estimate(message.content) + MESSAGE_OVERHEAD;
+    }
+    int estimated = (int) Math.ceil(uncalibrated * TokenEstimator.factor(model));
+    return new Prompt(messages, estimated, uncalibrated, cuts.isEmpty() ? null : String.join(", ", cuts));
+  }
+
+  private int tokens(String text) {
+    return TokenEstimator.estimate(model, text);
+  }
+
+  private int turnTokens(int turn) {
+    return tokens(history.get(2 * turn).content) + tokens(history.get(2 * turn + 1).content) + 2 * MESSAGE_OVERHEAD;
+  }
+
+  // Keeps the first two thirds and the last third of the budget, in whole
+  // lines where there are any
+  private String cutMiddle(String text, int maxTokens) {
+    String marker = "\n[... left out to fit the context window ...]\n";
+    int available = Math.max(0, maxTokens - tokens(marker));
+    int headEnd = 0;
+    int headTokens = 0;
+    while (headEnd < text.length()) {
+      int lineEnd = text.indexOf('\n', headEnd);
+      lineEnd = lineEnd < 0 ? text.length() : lineEnd + 1;
+      int lineTokens = tokens(text.substring(headEnd, lineEnd));
+      if (headTokens + lineTokens > available * 2 / 3)
+        break;
+      headTokens += lineTokens;
+      headEnd = lineEnd;
+    }
+    int tailStart = text.length();
+    int tailTokens = 0;
+    while (tailStart > headEnd) {
+      int lineStart = text.lastIndexOf('\n', tailStart - 2) + 1;
+      int lineTokens = tokens(text.substring(lineStart, tailStart));
+      if (headTokens + tailTokens + lineTokens > available)
+        break;
+      tailTokens += lineTokens;
+      tailStart = lineStart;
+    }
+    if (headEnd == 0 && tailStart == text.length()) {
+      // One long line: cut by characters instead
+      int keep = (int) ((long) text.length() * available / Math.max(1, tokens(text)));
+      headEnd = keep * 2 / 3;
+      tailStart = text.length() - (keep - headEnd);
+    }
+    return text.substring(0, headEnd) + marker + text.substring(tailStart);
+  }
+}
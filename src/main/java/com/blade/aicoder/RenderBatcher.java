@@ -0,0 +1,227 @@
+package com.blade.aicoder;
+
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.JTextComponent;
+import javax.swing.text.Position;
+import javax.swing.text.StyledDocument;
+import java.util.ArrayList;
+import java.util.List;
+
+// Collects text appended to the chat document from any thread and applies it
+// on the EDT at most once per frame. Adjacent text with the same style that
+// goes to the same region is merged into a single insertString call, and the
+// caret (and with it the scroll position) is moved once per batch.
+public class RenderBatcher {
+  private static final int FRAME_MILLIS = 16;
+
+  // A contiguous part of the document that text is appended to, e.g. one
+  // message. It starts at the end of the document (or at the very start for
+  // prepended regions) when its first text is rendered; later text goes right
+  // after it even if other regions follow.
+  public static class Region {
+    private final boolean prepend;
+    private Position firstChar; // EDT only
+    private Position lastChar; // EDT only
+    private boolean removed; // EDT only
+
+    private Region(boolean prepend) {
+      this.prepend = prepend;
+    }
+  }
+
+  // Told where appended text ended up in the document, on the EDT
+  public interface InsertListener {
+    void inserted(int offset, String text);
+  }
+
+  // Inserts text, or removes a region when text is null: the region alone,
+  // or the document from its start through the region
+  private static class Run {
+    final Region region;
+    final String styleName;
+    final String text;
+    final InsertListener listener; // may be null
+    final boolean fromStart;
+
+    Run(Region region, String styleName, String text, InsertListener listener) {
+      this(region, styleName, text, listener, false);
+    }
+
+    Run(Region region, String styleName, String text, InsertListener listener, boolean fromStart) {
+      this.region = region;
+      this.styleName = styleName;
+      this.text = text;
+      this.listener = listener;
+      this.fromStart = fromStart;
+    }
+  }
+
+  private final StyledDocument doc;
+  private final JTextComponent textComponent;
+  private final Timer timer;
+  private List<Run> pending = new ArrayList<>(); // guarded by this
+  private boolean scheduled = false; // guarded by this
+  private volatile boolean following = true;
+
+  public RenderBatcher(JTextComponent textComponent) {
+    this((StyledDocument) textComponent.getDocument(), textComponent);
+  }
+
+  // textComponent may be null when rendering into a detached document
+  public RenderBatcher(StyledDocument doc, JTextComponent textComponent) {
+    this.doc = doc;
+    this.textComponent = textComponent;
+    this.timer = new Timer(FRAME_MILLIS, e -> flush());
+    this.timer.setRepeats(false);
+  }
+
+  public Region newRegion() {
+    return new Region(false);
+  }
+
+  // Region that is placed before everything currently in the document
+  public Region newRegionAtStart() {
+    return new Region(true);
+  }
+
+  // Can be called from any thread
+  public void append(Region region, String styleName, String text) {
+    append(region, styleName, text, null);
+  }
+
+  public void append(Region region, String styleName, String text, InsertListener listener) {
+    if (text == null || text.isEmpty())
+      return;
+    enqueue(new Run(region, styleName, text, listener));
+  }
+
+  // Removes everything from the start of the document through the region,
+  // used to trim the oldest messages. Can be called from any thread.
+  public void removeThrough(Region region) {
+    enqueue(new Run(region, null, null, null, true));
+  }
+
+  // Removes the text of the region, e.g. a provisional answer that is being
+  // replaced; text appended to it later is dropped. Can be called from any
+  // thread.
+  public void remove(Region region) {
+    enqueue(new Run(region, null, null, null, false));
+  }
+
+  private void enqueue(Run run) {
+    synchronized (this) {
+      pending.add(run);
+      if (scheduled)
+        return;
+      scheduled = true;
+    }
+    timer.restart();
+  }
+
+  // Whether appended text scrolls to the end of the document; off while the
+  // user reads older messages
+  public void setFollowing(boolean following) {
+    this.following = following;
+  }
+
+  // Drops text that has not been rendered yet, must run on the EDT
+  public synchronized void clear() {
+    pending.clear();
+  }
+
+  // Applies all pending text, must run on the EDT (or own the document)
+  public void flush() {
+    List<Run> batch;
+    synchronized (this) {
+      batch = pending;
+      pending = new ArrayList<>();
+      scheduled = false;
+    }
+    if (batch.isEmpty())
+      return;
+
+    boolean appended = false;
+    int prependedEnd = -1;
+    StringBuilder merged = new StringBuilder();
+    int i = 0;
+    while (i < batch.size()) {
+      Run first = batch.get(i);
+      int j = i + 1;
+      try {
+        if (first.text == null) {
+          remove(first.region, first.fromStart);
+        } else {
+          merged.setLength(0);
+          merged.append(first.text);
+          while (j < batch.size() && batch.get(j).region == first.region && batch.get(j).text != null
+              && batch.get(j).styleName.equals(first.styleName)) {
+            merged.append(batch.get(j).text);
+            j++;
+          }
+
+          int offset = insert(first.region, first.styleName, merged.toString());
+          if (offset >= 0) {
+            notifyInserted(batch, i, j, offset);
+            if (first.region.prepend) {
+              prependedEnd = Math.max(prependedEnd, first.region.lastChar.getOffset() + 1);
+            } else {
+              appended = true;
+            }
+          }
+        }
+      } catch (BadLocationException e) {
+        e.printStackTrace();
+      }
+      i = j;
+    }
+
+    // Follow new messages; when only older history was loaded keep the
+    // text the user was looking at in view
+    if (textComponent != null) {
+      if (appended && following) {
+        textComponent.setCaretPosition(doc.getLength());
+      } else if (prependedEnd >= 0) {
+        textComponent.setCaretPosition(Math.min(prependedEnd, doc.getLength()));
+      }
+    }
+  }
+
+  // Runs i until j were inserted together at offset
+  private static void notifyInserted(List<Run> batch, int i, int j, int offset) {
+    for (int k = i; k < j; k++) {
+      Run run = batch.get(k);
+      if (run.listener != null)
+        run.listener.inserted(offset, run.text);
+      offset += run.text.length();
+    }
+  }
+
+  // Returns the offset the text was inserted at, or -1 when the region is gone
+  private int insert(Region region, String styleName, String text) throws BadLocationException {
+    if (region.removed)
+      return -1;
+
+    int offset;
+    if (region.lastChar != null) {
+      offset = Math.min(region.lastChar.getOffset() + 1, doc.getLength());
+    } else {
+      offset = region.prepend ? 0 : doc.getLength();
+    }
+    doc.insertString(offset, text, doc.getStyle(styleName));
+    if (region.firstChar == null)
+      region.firstChar = doc.createPosition(offset);
+    region.lastChar = doc.createPosition(offset + text.length() - 1);
+    return offset;
+  }
+
+  private void remove(Region region, boolean fromStart) throws BadLocationException {
+    if (region.lastChar != null && !region.removed) {
+      int start = fromStart ? 0 : region.firstChar.getOffset();
+      int end = Math.min(region.lastChar.getOffset() + 1, doc.getLength());
+      if (end > start)
+        doc.remove(start, end - start);
+    }
+    region.removed = true;
+  }
+}
@@ -0,0 +1,57 @@
+package com.blade.aicoder;
+
+import java.util.function.Consumer;
+
+// Per-request settings that are not part of the prompt itself
+public class RequestOptions {
+  private boolean bypassCache = false;
+  private CancellationToken cancellation = new CancellationToken();
+  private Consumer<GenerationStats> statsListener;
+  private GenerationProfile profile; // null for the configured one
+
+  public static RequestOptions defaults() {
+    return new RequestOptions();
+  }
+
+  // Always ask the model, and do not store the answer either
+  public RequestOptions bypassCache(boolean bypassCache) {
+    this.bypassCache = bypassCache;
+    return this;
+  }
+
+  public boolean isBypassCache() {
+    return bypassCache;
+  }
+
+  // Cancelling the token aborts the HTTP exchange of this request
+  public RequestOptions cancellation(CancellationToken cancellation) {
+    this.cancellation = cancellation;
+    return this;
+  }
+
+  public CancellationToken getCancellation() {
+    return cancellation;
+  }
+
+  // Generation options of this request, see GenerationProfile
+  public RequestOptions profile(GenerationProfile profile) {
+    this.profile = profile;
+    return this;
+  }
+
+  public GenerationProfile getProfile() {
+    return profile;
+  }
+
+  // Receives the counters Ollama reported once the answer is complete; not
+  // called for answers from the cache
+  public RequestOptions onStats(Consumer<GenerationStats> statsListener) {
+    this.statsListener = statsListener;
+    return this;
+  }
+
+  void reportStats(GenerationStats stats) {
+    if (statsListener != null)
+      statsListener.accept(stats);
+  }
+}
@@ -0,0 +1,179 @@
+package com.blade.aicoder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs prompts against Ollama on a small fixed pool instead of one thread per
+// prompt. Pending prompts wait in a bounded queue that can be inspected, and
+// every task carries a CancellationToken: cancelling a queued task removes it,
+// cancelling a running one aborts its HTTP exchange so Ollama stops
+// generating.
+public class RequestScheduler {
+  public enum State {
+    QUEUED, RUNNING, DONE, FAILED, CANCELLED
+  }
+
+  public interface Job<T> {
+    T run(CancellationToken cancellation) throws Exception;
+  }
+
+  // Notified (on a worker or the submitting thread) whenever tasks change state
+  public interface Listener {
+    void tasksChanged();
+  }
+
+  public class Task<T> {
+    private final long id;
+    private final String label;
+    private final CancellationToken cancellation = new CancellationToken();
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private volatile State state = State.QUEUED;
+    private volatile Future<?> future;
+
+    private Task(long id, String label) {
+      this.id = id;
+      this.label = label;
+    }
+
+    public long getId() {
+      return id;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+
+    public State getState() {
+      return state;
+    }
+
+    public CompletableFuture<T> getResult() {
+      return result;
+    }
+
+    public void cancel() {
+      cancellation.cancel();
+      Future<?> submitted = future;
+      if (state == State.QUEUED && submitted != null && submitted.cancel(false)) {
+        // Never started, take it out of the queue right away
+        executor.purge();
+        finishCancelled();
+      }
+    }
+
+    private void run(Job<T> job) {
+      if (cancellation.isCancelled()) {
+        finishCancelled();
+        return;
+      }
+      state = State.RUNNING;
+      fireChanged();
+      try {
+        T value = job.run(cancellation);
+        finish(State.DONE);
+        result.complete(value);
+      } catch (CancellationException e) {
+        finish(State.CANCELLED);
+        result.completeExceptionally(e);
+      } catch (Exception e) {
+        finish(cancellation.isCancelled() ? State.CANCELLED : State.FAILED);
+        result.completeExceptionally(e);
+      }
+    }
+
+    private void finishCancelled() {
+      finish(State.CANCELLED);
+      result.completeExceptionally(new CancellationException("Request cancelled"));
+    }
+
+    private void finish(State finalState) {
+      state = finalState;
+      if (tasks.remove(this))
+        fireChanged();
+    }
+  }
+
+  private final ThreadPoolExecutor executor;
+  private final List<Task<?>> tasks = new CopyOnWriteArrayList<>(); // queued and running
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+  private final AtomicLong nextId = new AtomicLong(1);
+
+  public RequestScheduler(int threads, int queueCapacity) {
+    AtomicInteger threadNumber = new AtomicInteger(1);
+    executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), runnable -> {
+          Thread thread = new Thread(runnable, "ollama-request-" + threadNumber.getAndIncrement());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  public static RequestScheduler fromConfig() {
+    return new RequestScheduler(AssistantConfig.getRequestThreads(), AssistantConfig.getRequestQueueSize());
+  }
+
+  // Throws RejectedExecutionException when the queue is full
+  public <T> Task<T> submit(String label, Job<T> job) {
+    Task<T> task = new Task<>(nextId.getAndIncrement(), label);
+    tasks.add(task);
+    try {
+      task.future = executor.submit(() -> task.run(job));
+    } catch (RejectedExecutionException e) {
+      tasks.remove(task);
+      throw e;
+    }
+    fireChanged();
+    return task;
+  }
+
+  public List<Task<?>> getTasks() {
+    return new ArrayList<>(tasks);
+  }
+
+  public int count(State state) {
+    int count = 0;
+    for (Task<?> task : tasks) {
+      if (task.getState() == state)
+        count++;
+    }
+    return count;
+  }
+
+  public void cancelRunning() {
+    for (Task<?> task : tasks) {
+      if (task.getState() == State.RUNNING)
+        task.cancel();
+    }
+  }
+
+  public void cancelAll() {
+    for (Task<?> task : tasks) {
+      task.cancel();
+    }
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void shutdown() {
+    cancelAll();
+    executor.shutdownNow();
+  }
+
+  private void fireChanged() {
+    for (Listener listener : listeners) {
+      listener.tasksChanged();
+    }
+  }
+}
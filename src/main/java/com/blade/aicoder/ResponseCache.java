@@ -0,0 +1,187 @@
+package com.blade.aicoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Two-tier cache of model answers in front of OllamaClient: a size-bounded
+// in-memory LRU and a persistent DiskResponseStore that survives restarts.
+// Entries are keyed by a SHA-256 digest of model, generation options and the
+// normalized input as the user gave it, so a hit is found before any context
+// is looked up for the prompt; the options part also tells which project
+// files and remembered exchanges the context would come from. When another
+// process has the disk tier open, this one only caches in memory.
+public class ResponseCache {
+  private final long maxMemoryChars;
+  private final DiskResponseStore disk; // null when the disk tier is unavailable
+
+  // Guarded by this
+  private final LinkedHashMap<String, String> memory = new LinkedHashMap<>(64, 0.75f, true);
+  private long memoryChars = 0;
+
+  private final AtomicLong memoryHits = new AtomicLong();
+  private final AtomicLong diskHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public ResponseCache(long maxMemoryChars, File diskDirectory, long maxDiskBytes) {
+    this.maxMemoryChars = maxMemoryChars;
+
+    DiskResponseStore store = null;
+    if (diskDirectory != null) {
+      try {
+        store = new DiskResponseStore(diskDirectory, maxDiskBytes);
+      } catch (IOException e) {
+        System.err.println("Response cache disk tier disabled: " + e.getMessage());
+      }
+    }
+    this.disk = store;
+    if (store != null)
+      Runtime.getRuntime().addShutdownHook(new Thread(this::close, "cache-close"));
+  }
+
+  public static ResponseCache fromConfig() {
+    File directory = new File(AssistantConfig.getDataDirectory(), "cache");
+    return new ResponseCache(AssistantConfig.getCacheMemoryChars(), directory,
+        AssistantConfig.getCacheDiskBytes());
+  }
+
+  public static byte[] key(String model, String options, String prompt) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(model.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+      digest.update(options.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+      digest.update(normalize(prompt).getBytes(StandardCharsets.UTF_8));
+      return digest.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // Line endings and whitespace around lines do not change the question
+  static String normalize(String prompt) {
+    StringBuilder normalized = new StringBuilder(prompt.length());
+    for (String line : prompt.trim().split("\r?\n")) {
+      if (normalized.length() > 0)
+        normalized.append('\n');
+      int end = line.length();
+      while (end > 0 && line.charAt(end - 1) <= ' ')
+        end--;
+      normalized.append(line, 0, end);
+    }
+    return normalized.toString();
+  }
+
+  public String get(byte[] key) {
+    String id = toHex(key);
+    synchronized (this) {
+      String value = memory.get(id);
+      if (value != null) {
+        memoryHits.incrementAndGet();
+        return value;
+      }
+    }
+
+    if (disk != null) {
+      try {
+        String value = disk.get(key);
+        if (value != null) {
+          diskHits.incrementAndGet();
+          putInMemory(id, value);
+          return value;
+        }
+      } catch (IOException e) {
+        System.err.println("Response cache read failed: " + e.getMessage());
+      }
+    }
+
+    misses.incrementAndGet();
+    return null;
+  }
+
+  public void put(byte[] key, String value) {
+    if (value == null || value.isEmpty())
+      return;
+
+    putInMemory(toHex(key), value);
+    if (disk != null) {
+      try {
+        evictions.addAndGet(disk.put(key, value));
+      } catch (IOException e) {
+        System.err.println("Response cache write failed: " + e.getMessage());
+      }
+    }
+  }
+
+  private synchronized void putInMemory(String id, String value) {
+    if (value.length() > maxMemoryChars)
+      return;
+
+    String previous = memory.put(id, value);
+    memoryChars += value.length() - (previous == null ? 0 : previous.length());
+
+    Iterator<Map.Entry<String, String>> eldest = memory.entrySet().iterator();
+    while (memoryChars > maxMemoryChars && eldest.hasNext()) {
+      memoryChars -= eldest.next().getValue().length();
+      eldest.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  // Writes the index out and lets other processes open the disk tier
+  public void close() {
+    if (disk == null)
+      return;
+    try {
+      disk.close();
+    } catch (IOException e) {
+      System.err.println("Could not close the response cache: " + e.getMessage());
+    }
+  }
+
+  public long getMemoryHits() {
+    return memoryHits.get();
+  }
+
+  public long getDiskHits() {
+    return diskHits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public synchronized int getMemoryEntries() {
+    return memory.size();
+  }
+
+  public int getDiskEntries() {
+    return disk == null ? 0 : disk.size();
+  }
+
+  @Override
+  public String toString() {
+    return "hits " + (getMemoryHits() + getDiskHits()) + " (memory " + getMemoryHits() + ", disk "
+        + getDiskHits() + "), misses " + getMisses() + ", evictions " + getEvictions();
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,78 @@
+package com.blade.aicoder;
+
+import java.util.Arrays;
+
+// Percentiles over the most recent samples. Samples go into a ring buffer, so
+// old values age out as new requests come in; percentiles are computed by
+// sorting a copy when they are read, which is cheap for a few thousand
+// values and only happens when someone looks.
+public class RollingHistogram implements RollingHistogramMXBean {
+  private final double[] samples;
+  private int size = 0;
+  private int next = 0;
+  private long count = 0;
+
+  public RollingHistogram(int capacity) {
+    samples = new double[Math.max(1, capacity)];
+  }
+
+  public synchronized void record(double value) {
+    samples[next] = value;
+    next = (next + 1) % samples.length;
+    size = Math.min(size + 1, samples.length);
+    count++;
+  }
+
+  // All samples ever recorded, not only the ones in the window
+  @Override
+  public synchronized long getCount() {
+    return count;
+  }
+
+  @Override
+  public synchronized double getMean() {
+    double sum = 0;
+    for (int i = 0; i < size; i++) {
+      sum += samples[i];
+    }
+    return size == 0 ? 0 : sum / size;
+  }
+
+  @Override
+  public double getP50() {
+    return percentile(50);
+  }
+
+  @Override
+  public double getP95() {
+    return percentile(95);
+  }
+
+  @Override
+  public double getP99() {
+    return percentile(99);
+  }
+
+  @Override
+  public double getMax() {
+    return percentile(100);
+  }
+
+  // Nearest rank
+  public double percentile(double percent) {
+    double[] sorted;
+    synchronized (this) {
+      if (size == 0)
+        return 0;
+      sorted = Arrays.copyOf(samples, size);
+    }
+    Arrays.sort(sorted);
+    int rank = (int) Math.ceil(percent / 100 * sorted.length);
+    return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+  }
+
+  @Override
+  public String toString() {
+    return String.format("p50 %.0f, p95 %.0f, p99 %.0f (%d samples)", getP50(), getP95(), getP99(), getCount());
+  }
+}
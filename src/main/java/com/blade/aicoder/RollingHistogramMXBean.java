@@ -0,0 +1,17 @@
+package com.blade.aicoder;
+
+// Percentiles of a RollingHistogram as read through JMX, in the unit of the
+// histogram
+public interface RollingHistogramMXBean {
+  long getCount();
+
+  double getMean();
+
+  double getP50();
+
+  double getP95();
+
+  double getP99();
+
+  double getMax();
+}
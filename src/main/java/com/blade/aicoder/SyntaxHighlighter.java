@@ -0,0 +1,311 @@
+package com.blade.aicoder;
+
+import java.awt.Color;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import javax.swing.SwingUtilities;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Position;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyledDocument;
+
+// Colors code blocks in the chat document without lexing on the EDT.
+//
+// The text of a block reaches the highlighter as RenderBatcher inserts it.
+// A background thread tokenizes it line by line with the CodeLexer for the
+// block's language. Per block it keeps the lexer state at the end of the last
+// complete line and the token spans of the incomplete line after it, so when
+// more text of a streaming block arrives only that line and the new ones are
+// tokenized again, and spans that were already applied are not applied
+// twice. Spans are applied on the EDT with setCharacterAttributes, a line at
+// a time and at most APPLY_BUDGET_NANOS per event, so a large answer is
+// colored over several events instead of blocking the UI.
+public class SyntaxHighlighter {
+  private static final long APPLY_BUDGET_NANOS = 2_000_000;
+
+  private static final Color CODE_TEXT = new Color(230, 230, 240);
+  private static final Color[] TOKEN_COLORS = {
+      new Color(198, 146, 234), // keyword
+      new Color(152, 195, 121), // string
+      new Color(128, 133, 150), // comment
+      new Color(229, 165, 108), // number
+  };
+
+  // Spans of one line, to be applied on the EDT
+  private static class LineUpdate {
+    final Block block;
+    final int lineStart; // in the block
+    final int length;
+    final int[] spans; // start, end, type triples relative to lineStart
+    int from; // first span not applied yet
+    boolean reset; // colors applied before are wrong and get cleared first
+
+    LineUpdate(Block block, int lineStart, int length, int[] spans, int from, boolean reset) {
+      this.block = block;
+      this.lineStart = lineStart;
+      this.length = length;
+      this.spans = spans;
+      this.from = from;
+      this.reset = reset;
+    }
+  }
+
+  // One code block. Receives its text from RenderBatcher on the EDT.
+  public class Block implements RenderBatcher.InsertListener {
+    private final CodeLexer lexer;
+    private final int generation;
+    private Position start; // EDT only
+
+    // Worker thread only
+    private final StringBuilder text = new StringBuilder();
+    private int stableEnd = 0; // where the incomplete last line starts
+    private int stableState = CodeLexer.NORMAL;
+    private int[] tailSpans; // spans of the incomplete last line, once colored
+
+    private Block(CodeLexer lexer, int generation) {
+      this.lexer = lexer;
+      this.generation = generation;
+    }
+
+    @Override
+    public void inserted(int offset, String inserted) {
+      if (start == null) {
+        try {
+          start = doc.createPosition(offset);
+        } catch (BadLocationException e) {
+          return;
+        }
+      }
+      worker.execute(() -> tokenize(inserted));
+    }
+
+    // Tokenizes from the last stable line onward
+    private void tokenize(String inserted) {
+      text.append(inserted);
+      List<LineUpdate> updates = new ArrayList<>();
+      int lineStart = stableEnd;
+      int state = stableState;
+      while (lineStart < text.length()) {
+        int newline = text.indexOf("\n", lineStart);
+        int lineEnd = newline < 0 ? text.length() : newline;
+
+        SpanCollector collector = new SpanCollector(lineStart);
+        int endState = lexer.tokenizeLine(text, lineStart, lineEnd, state, collector);
+        int[] spans = collector.toArray();
+
+        int from = 0;
+        boolean reset = false;
+        if (lineStart == stableEnd && tailSpans != null) {
+          from = unchangedPrefix(tailSpans, spans);
+          reset = from < 0;
+          from = Math.max(from, 0);
+        }
+        updates.add(new LineUpdate(this, lineStart, lineEnd - lineStart, spans, from, reset));
+
+        if (newline < 0) {
+          tailSpans = spans;
+          break;
+        }
+        tailSpans = null;
+        stableEnd = newline + 1;
+        stableState = endState;
+        lineStart = newline + 1;
+        state = endState;
+      }
+      enqueue(updates);
+    }
+  }
+
+  // Index of the first span that still has to be applied when the spans
+  // colored before are a prefix of the new ones (the last of them may have
+  // grown), otherwise -1
+  private static int unchangedPrefix(int[] old, int[] spans) {
+    if (old.length > spans.length)
+      return -1;
+    for (int i = 0; i < old.length; i += 3) {
+      if (old[i] != spans[i] || old[i + 2] != spans[i + 2])
+        return -1;
+      if (old[i + 1] != spans[i + 1])
+        return i + 3 == old.length && spans[i + 1] > old[i + 1] ? i : -1;
+    }
+    return old.length;
+  }
+
+  // Collects token spans relative to the line, merging tokens of the same
+  // type that are only separated by blanks into one call
+  private static class SpanCollector implements CodeLexer.TokenSink {
+    private final int lineStart;
+    private int[] spans = new int[24];
+    private int size = 0;
+
+    SpanCollector(int lineStart) {
+      this.lineStart = lineStart;
+    }
+
+    @Override
+    public void token(int start, int end, int type) {
+      int relativeStart = start - lineStart;
+      int relativeEnd = end - lineStart;
+      if (size > 0 && spans[size - 1] == type && relativeStart - spans[size - 2] <= 1) {
+        spans[size - 2] = relativeEnd; // adjacent or one blank apart
+        return;
+      }
+      if (size + 3 > spans.length)
+        spans = Arrays.copyOf(spans, spans.length * 2);
+      spans[size++] = relativeStart;
+      spans[size++] = relativeEnd;
+      spans[size++] = type;
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(spans, size);
+    }
+  }
+
+  private final StyledDocument doc;
+  private final Executor worker;
+  private final Executor edt;
+  private final AttributeSet plain;
+  private final AttributeSet[] tokenAttributes = new AttributeSet[TOKEN_COLORS.length];
+  private final Deque<LineUpdate> pending = new ArrayDeque<>(); // guarded by this
+  private boolean applyScheduled = false; // guarded by this
+  private volatile int generation = 0;
+
+  // EDT time spent applying spans
+  private volatile long applyNanos = 0;
+  private volatile long appliedLines = 0;
+
+  public SyntaxHighlighter(StyledDocument doc) {
+    this(doc, Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "syntax-highlighter");
+      thread.setDaemon(true);
+      return thread;
+    }), SwingUtilities::invokeLater);
+  }
+
+  // The worker must run tasks one at a time, in order
+  SyntaxHighlighter(StyledDocument doc, Executor worker, Executor edt) {
+    this.doc = doc;
+    this.worker = worker;
+    this.edt = edt;
+
+    SimpleAttributeSet plainText = new SimpleAttributeSet();
+    StyleConstants.setForeground(plainText, CODE_TEXT);
+    StyleConstants.setItalic(plainText, false);
+    plain = plainText;
+    for (int type = 0; type < TOKEN_COLORS.length; type++) {
+      SimpleAttributeSet attributes = new SimpleAttributeSet();
+      StyleConstants.setForeground(attributes, TOKEN_COLORS[type]);
+      StyleConstants.setItalic(attributes, type == CodeLexer.COMMENT);
+      tokenAttributes[type] = attributes;
+    }
+  }
+
+  // Can be called from any thread
+  public Block newBlock(String language) {
+    return new Block(CodeLexer.forLanguage(language), generation);
+  }
+
+  // Forgets all blocks, e.g. when the document is cleared; must run on the EDT
+  public void clear() {
+    generation++;
+    synchronized (this) {
+      pending.clear();
+    }
+  }
+
+  private void enqueue(List<LineUpdate> updates) {
+    synchronized (this) {
+      for (LineUpdate update : updates) {
+        // A streaming line that was not applied yet is replaced by its newer version
+        LineUpdate last = pending.peekLast();
+        if (last != null && last.block == update.block && last.lineStart == update.lineStart) {
+          pending.pollLast();
+          update.from = Math.min(update.from, last.from);
+          update.reset |= last.reset;
+        }
+        pending.addLast(update);
+      }
+      if (applyScheduled || pending.isEmpty())
+        return;
+      applyScheduled = true;
+    }
+    edt.execute(this::applyPending);
+  }
+
+  // Applies queued lines until the time budget is used up, then yields the
+  // EDT and continues with the next event
+  private void applyPending() {
+    long start = System.nanoTime();
+    long deadline = start + APPLY_BUDGET_NANOS;
+    long lines = 0;
+    try {
+      while (true) {
+        LineUpdate update;
+        synchronized (this) {
+          update = pending.pollFirst();
+          if (update == null) {
+            applyScheduled = false;
+            return;
+          }
+        }
+        apply(update);
+        lines++;
+        if (System.nanoTime() > deadline) {
+          edt.execute(this::applyPending);
+          return;
+        }
+      }
+    } finally {
+      applyNanos += System.nanoTime() - start;
+      appliedLines += lines;
+    }
+  }
+
+  // Applies everything that is queued, regardless of the budget
+  void drain() {
+    LineUpdate update;
+    while (true) {
+      synchronized (this) {
+        update = pending.pollFirst();
+        if (update == null) {
+          applyScheduled = false;
+          return;
+        }
+      }
+      apply(update);
+    }
+  }
+
+  private void apply(LineUpdate update) {
+    Block block = update.block;
+    if (block.generation != generation || block.start == null)
+      return;
+    int blockStart = block.start.getOffset();
+    if (blockStart == 0)
+      return; // trimmed away together with the start of the document
+    int lineStart = blockStart + update.lineStart;
+    if (lineStart + update.length > doc.getLength())
+      return;
+
+    if (update.reset)
+      doc.setCharacterAttributes(lineStart, update.length, plain, false);
+    int[] spans = update.spans;
+    for (int i = update.reset ? 0 : update.from; i < spans.length; i += 3) {
+      doc.setCharacterAttributes(lineStart + spans[i], spans[i + 1] - spans[i], tokenAttributes[spans[i + 2]], false);
+    }
+  }
+
+  // EDT time per highlighted line
+  public double getMicrosPerLine() {
+    long lines = appliedLines;
+    return lines == 0 ? 0 : applyNanos / 1000.0 / lines;
+  }
+}
@@ -0,0 +1,147 @@
+package com.blade.aicoder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Token count of a text for budgeting prompts, without the model's
+// tokenizer.
+//
+// One pass over the characters approximates what a BPE tokenizer does with
+// English and code: a word is one token up to WORD_PIECE letters and a
+// camelCase part starts a new one, digits go in threes, every symbol and
+// line break is a token, a single space joins the word after it and longer
+// runs of spaces (indentation) are one token. Characters outside ASCII are
+// a token each.
+//
+// The estimate is then scaled per model by a calibration factor learned from
+// the prompt_eval_count Ollama reports, kept in dataDir across restarts.
+public final class TokenEstimator {
+  private static final int WORD_PIECE = 6;
+  private static final int DIGIT_PIECE = 3;
+  private static final double LEARNING_RATE = 0.2;
+  private static final double MIN_FACTOR = 0.4;
+  private static final double MAX_FACTOR = 2.5;
+  private static final int MIN_CALIBRATION_TOKENS = 32;
+  private static final Map<String, Double> factors = new ConcurrentHashMap<>();
+  private static volatile boolean loaded = false;
+
+  private TokenEstimator() {
+  }
+
+  public static int estimate(CharSequence text) {
+    int tokens = 0;
+    int length = text.length();
+    int i = 0;
+    while (i < length) {
+      char c = text.charAt(i);
+      int start = i;
+      if (isLetter(c)) {
+        // A word, split where a lower case letter is followed by upper case
+        int pieceStart = i;
+        i++;
+        while (i < length && isLetter(text.charAt(i))) {
+          if (Character.isUpperCase(text.charAt(i)) && Character.isLowerCase(text.charAt(i - 1))) {
+            tokens += pieces(i - pieceStart, WORD_PIECE);
+            pieceStart = i;
+          }
+          i++;
+        }
+        tokens += pieces(i - pieceStart, WORD_PIECE);
+      } else if (c >= '0' && c <= '9') {
+        while (i < length && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+          i++;
+        }
+        tokens += pieces(i - start, DIGIT_PIECE);
+      } else if (c == ' ' || c == '\t') {
+        while (i < length && (text.charAt(i) == ' ' || text.charAt(i) == '\t')) {
+          i++;
+        }
+        // " word" is one token; a longer run is one more
+        if (i - start > 1 || i == length || !isLetter(text.charAt(i)))
+          tokens++;
+      } else {
+        tokens++;
+        i++;
+      }
+    }
+    return tokens;
+  }
+
+  // The estimate scaled by what was learned about the model's tokenizer
+  public static int estimate(String model, CharSequence text) {
+    return (int) Math.ceil(estimate(text) * factor(model));
+  }
+
+  public static double factor(String model) {
+    loadFactors();
+    return factors.getOrDefault(model, 1.0);
+  }
+
+  // Moves the model's factor towards actual / estimated. Samples far off the
+  // current factor are ignored: they come from prompts whose prefix Ollama
+  // had cached and did not evaluate again.
+  public static void calibrate(String model, int estimated, long actual) {
+    if (estimated < MIN_CALIBRATION_TOKENS || actual <= 0)
+      return;
+    double ratio = (double) actual / estimated;
+    double current = factor(model);
+    if (ratio < MIN_FACTOR || ratio > MAX_FACTOR || ratio < current / 2 || ratio > current * 2)
+      return;
+    factors.put(model, current + (ratio - current) * LEARNING_RATE);
+    saveFactors();
+  }
+
+  private static int pieces(int length, int pieceLength) {
+    return (length + pieceLength - 1) / pieceLength;
+  }
+
+  private static boolean isLetter(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+  }
+
+  private static File factorsFile() {
+    return new File(AssistantConfig.getDataDirectory(), "token-calibration.properties");
+  }
+
+  private static synchronized void loadFactors() {
+    if (loaded)
+      return;
+    loaded = true;
+    File file = factorsFile();
+    if (!file.isFile())
+      return;
+    Properties properties = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      properties.load(in);
+      for (String model : properties.stringPropertyNames()) {
+        double factor = Double.parseDouble(properties.getProperty(model));
+        if (factor >= MIN_FACTOR && factor <= MAX_FACTOR)
+          factors.put(model, factor);
+      }
+    } catch (IOException | NumberFormatException e) {
+      System.err.println("Could not read token calibration: " + e.getMessage());
+    }
+  }
+
+  private static synchronized void saveFactors() {
+    Properties properties = new Properties();
+    for (Map.Entry<String, Double> entry : factors.entrySet()) {
+      properties.setProperty(entry.getKey(), String.format(Locale.ROOT, "%.4f", entry.getValue()));
+    }
+    File file = factorsFile();
+    file.getParentFile().mkdirs();
+    try (OutputStream out = new FileOutputStream(file)) {
+      properties.store(out, "Measured prompt tokens per estimated token, per model");
+    } catch (IOException e) {
+      System.err.println("Could not save token calibration: " + e.getMessage());
+    }
+  }
+}
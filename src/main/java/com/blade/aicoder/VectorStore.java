@@ -0,0 +1,475 @@
+package com.blade.aicoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+// Nearest-neighbour store for embedding vectors, kept off the heap.
+//
+// Vectors are normalized and written to memory-mapped segment files, so
+// similarity is a dot product and millions of vectors cost page cache rather
+// than heap. Up to BRUTE_FORCE_LIMIT vectors a query is an exact scan over
+// the mapped floats. Beyond that it goes through an HNSW graph: layer 0,
+// which has an entry for every vector, is mapped as well (M0 neighbour ids
+// per vector); the upper layers hold about one vector in M and stay on the
+// heap. They are not stored but rebuilt from the mapped vectors and levels
+// when the store is opened.
+//
+// The scan loop keeps four independent sums so the JIT can unroll and
+// vectorize it; Java 11 has no explicit vector API.
+public class VectorStore {
+  private static final int MAGIC = 0x41494356; // "AICV"
+  private static final int HEADER_BYTES = 16; // magic, dimensions, count, unused
+  private static final int BRUTE_FORCE_LIMIT = 5_000;
+  private static final int M = 16;
+  private static final int M0 = 2 * M;
+  private static final int EF_CONSTRUCTION = 100;
+  private static final int EF_SEARCH = 64;
+  private static final int MAX_LEVEL = 16;
+  private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+
+  // A stored vector and how similar it is to the query, -1 to 1
+  public static class Match {
+    public final int id;
+    public final float score;
+
+    Match(int id, float score) {
+      this.id = id;
+      this.score = score;
+    }
+  }
+
+  private final File directory;
+  private final int dimensions;
+  private final int vectorsPerSegment;
+  private final MappedByteBuffer header;
+  private final List<FloatBuffer> vectorSegments = new ArrayList<>();
+  private final List<IntBuffer> linkSegments = new ArrayList<>();
+  private final List<MappedByteBuffer> levelSegments = new ArrayList<>();
+  private final Map<Integer, int[][]> upperLinks = new HashMap<>(); // id -> level - 1 -> neighbours
+  private final Random random = new Random(42);
+  private int count;
+  private int entryPoint = -1;
+  private int topLevel = -1;
+
+  // Opens the store in the directory, or creates it for vectors of the given
+  // size. A store of another size is started over.
+  public VectorStore(File directory, int dimensions) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create vector directory " + directory);
+    }
+    this.directory = directory;
+    this.dimensions = dimensions;
+    this.vectorsPerSegment = (int) Math.min(SEGMENT_BYTES / (dimensions * 4L), SEGMENT_BYTES / (M0 * 4L));
+
+    header = map(new File(directory, "header.bin"), HEADER_BYTES);
+    if (header.getInt(0) != MAGIC || header.getInt(4) != dimensions) {
+      header.putInt(0, MAGIC);
+      header.putInt(4, dimensions);
+      header.putInt(8, 0);
+    }
+    count = header.getInt(8);
+    rebuildUpperLayers();
+  }
+
+  // Size of the vectors in the store in the directory, 0 when there is none
+  public static int storedDimensions(File directory) {
+    File file = new File(directory, "header.bin");
+    if (file.length() < HEADER_BYTES)
+      return 0;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      return raf.readInt() == MAGIC ? raf.readInt() : 0;
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  public int getDimensions() {
+    return dimensions;
+  }
+
+  public synchronized int size() {
+    return count;
+  }
+
+  // Stores a vector and returns its id, which is the number of vectors stored
+  // before it
+  public synchronized int add(float[] vector) {
+    if (vector.length != dimensions)
+      throw new IllegalArgumentException("Expected " + dimensions + " dimensions, got " + vector.length);
+    int id = count;
+    FloatBuffer vectors = vectorSegment(id);
+    int base = (id % vectorsPerSegment) * dimensions;
+    float norm = (float) Math.sqrt(dot(vector, vector));
+    for (int i = 0; i < dimensions; i++) {
+      vectors.put(base + i, norm == 0 ? 0 : vector[i] / norm);
+    }
+
+    int level = randomLevel();
+    levelSegment(id).put(id % vectorsPerSegment, (byte) level);
+    IntBuffer links = linkSegment(id);
+    int linkBase = (id % vectorsPerSegment) * M0;
+    for (int i = 0; i < M0; i++) {
+      links.put(linkBase + i, -1);
+    }
+    insert(id, level, 0);
+
+    count = id + 1;
+    header.putInt(8, count);
+    return id;
+  }
+
+  // The stored vectors most similar to the query, best first
+  public synchronized List<Match> search(float[] query, int limit) {
+    List<Match> matches = new ArrayList<>();
+    if (count == 0 || limit <= 0)
+      return matches;
+    float[] normalized = normalize(query);
+
+    PriorityQueue<Match> best = new PriorityQueue<>((a, b) -> Float.compare(a.score, b.score));
+    if (count <= BRUTE_FORCE_LIMIT) {
+      for (int id = 0; id < count; id++) {
+        offer(best, new Match(id, similarity(normalized, id)), limit);
+      }
+    } else {
+      int current = greedyDescent(normalized, 1);
+      for (Match match : searchLayer(normalized, current, Math.max(EF_SEARCH, limit), 0)) {
+        offer(best, match, limit);
+      }
+    }
+    while (!best.isEmpty()) {
+      matches.add(0, best.poll());
+    }
+    return matches;
+  }
+
+  // HNSW insertion of id into the layers from its level down to minLevel
+  private void insert(int id, int level, int minLevel) {
+    float[] vector = vector(id);
+    if (entryPoint < 0) {
+      entryPoint = id;
+      topLevel = level;
+      ensureUpper(id, level);
+      return;
+    }
+
+    int current = entryPoint;
+    for (int layer = topLevel; layer > level; layer--) {
+      current = greedy(vector, current, layer);
+    }
+    ensureUpper(id, level);
+    for (int layer = Math.min(level, topLevel); layer >= minLevel; layer--) {
+      List<Match> candidates = searchLayer(vector, current, EF_CONSTRUCTION, layer);
+      candidates.removeIf(candidate -> candidate.id == id);
+      List<Match> selected = selectNeighbours(candidates, layer == 0 ? M0 : M);
+      for (Match neighbour : selected) {
+        addLink(id, neighbour.id, layer);
+        addLink(neighbour.id, id, layer);
+      }
+      current = candidates.isEmpty() ? current : candidates.get(0).id;
+    }
+    if (level > topLevel) {
+      topLevel = level;
+      entryPoint = id;
+    }
+  }
+
+  // Walks down the upper layers to the closest node on the given layer
+  private int greedyDescent(float[] vector, int downTo) {
+    int current = entryPoint;
+    for (int layer = topLevel; layer >= downTo; layer--) {
+      current = greedy(vector, current, layer);
+    }
+    return current;
+  }
+
+  private int greedy(float[] vector, int start, int layer) {
+    int current = start;
+    float currentScore = similarity(vector, current);
+    boolean improved = true;
+    while (improved) {
+      improved = false;
+      for (int neighbour : neighbours(current, layer)) {
+        float score = similarity(vector, neighbour);
+        if (score > currentScore) {
+          current = neighbour;
+          currentScore = score;
+          improved = true;
+        }
+      }
+    }
+    return current;
+  }
+
+  // Best first search on one layer, returns up to ef nodes, best first
+  private List<Match> searchLayer(float[] vector, int start, int ef, int layer) {
+    Set<Integer> visited = new HashSet<>();
+    PriorityQueue<Match> candidates = new PriorityQueue<>((a, b) -> Float.compare(b.score, a.score));
+    PriorityQueue<Match> results = new PriorityQueue<>((a, b) -> Float.compare(a.score, b.score));
+    Match first = new Match(start, similarity(vector, start));
+    visited.add(start);
+    candidates.add(first);
+    results.add(first);
+
+    while (!candidates.isEmpty()) {
+      Match closest = candidates.poll();
+      if (results.size() >= ef && closest.score < results.peek().score)
+        break;
+      for (int neighbour : neighbours(closest.id, layer)) {
+        if (!visited.add(neighbour))
+          continue;
+        float score = similarity(vector, neighbour);
+        if (results.size() < ef || score > results.peek().score) {
+          Match match = new Match(neighbour, score);
+          candidates.add(match);
+          results.add(match);
+          if (results.size() > ef)
+            results.poll();
+        }
+      }
+    }
+
+    List<Match> ordered = new ArrayList<>();
+    while (!results.isEmpty()) {
+      ordered.add(0, results.poll());
+    }
+    return ordered;
+  }
+
+  // Keeps a candidate, best first, only if it is more similar to the node
+  // than to every candidate kept before it. Without this the links of a
+  // cluster all point into the cluster and the graph falls apart into
+  // islands that a search cannot cross.
+  private List<Match> selectNeighbours(List<Match> candidates, int max) {
+    List<Match> selected = new ArrayList<>();
+    for (Match candidate : candidates) {
+      if (selected.size() == max)
+        break;
+      float[] vector = vector(candidate.id);
+      boolean diverse = true;
+      for (Match kept : selected) {
+        if (similarity(vector, kept.id) > candidate.score) {
+          diverse = false;
+          break;
+        }
+      }
+      if (diverse)
+        selected.add(candidate);
+    }
+    return selected;
+  }
+
+  // Adds a link; a full list is chosen again from its links and the new one
+  private void addLink(int from, int to, int layer) {
+    int max = layer == 0 ? M0 : M;
+    int[] links = links(from, layer);
+    int size = 0;
+    for (; size < max && links[size] >= 0; size++) {
+      if (links[size] == to)
+        return;
+    }
+    if (size < max) {
+      setLink(from, layer, size, to);
+      return;
+    }
+
+    float[] vector = vector(from);
+    List<Match> candidates = new ArrayList<>();
+    for (int link : links) {
+      candidates.add(new Match(link, similarity(vector, link)));
+    }
+    candidates.add(new Match(to, similarity(vector, to)));
+    candidates.sort((a, b) -> Float.compare(b.score, a.score));
+    List<Match> selected = selectNeighbours(candidates, max);
+    for (int i = 0; i < max; i++) {
+      setLink(from, layer, i, i < selected.size() ? selected.get(i).id : -1);
+    }
+  }
+
+  // All link slots of the node on the layer, -1 for unused ones
+  private int[] links(int id, int layer) {
+    if (layer > 0)
+      return upperLinks.get(id)[layer - 1].clone();
+    IntBuffer segment = linkSegment(id);
+    int base = (id % vectorsPerSegment) * M0;
+    int[] links = new int[M0];
+    for (int i = 0; i < M0; i++) {
+      links[i] = segment.get(base + i);
+    }
+    return links;
+  }
+
+  private void setLink(int id, int layer, int slot, int link) {
+    if (layer > 0) {
+      upperLinks.get(id)[layer - 1][slot] = link;
+    } else {
+      linkSegment(id).put((id % vectorsPerSegment) * M0 + slot, link);
+    }
+  }
+
+  private int[] neighbours(int id, int layer) {
+    if (layer > 0) {
+      int[][] upper = upperLinks.get(id);
+      if (upper == null || upper.length < layer)
+        return new int[0];
+    }
+    int[] links = links(id, layer);
+    int size = 0;
+    while (size < links.length && links[size] >= 0) {
+      size++;
+    }
+    return size == links.length ? links : Arrays.copyOf(links, size);
+  }
+
+  private void ensureUpper(int id, int level) {
+    if (level == 0)
+      return;
+    int[][] layers = new int[level][M];
+    for (int[] layer : layers) {
+      Arrays.fill(layer, -1);
+    }
+    upperLinks.put(id, layers);
+  }
+
+  // Layer 0 is in the mapped files; the upper layers are inserted again
+  private void rebuildUpperLayers() {
+    entryPoint = -1;
+    topLevel = -1;
+    for (int id = 0; id < count; id++) {
+      int level = levelSegment(id).get(id % vectorsPerSegment);
+      if (id == 0 || level > 0)
+        insertUpper(id, level);
+    }
+    if (count > 0 && entryPoint < 0)
+      entryPoint = 0;
+  }
+
+  private void insertUpper(int id, int level) {
+    if (entryPoint < 0) {
+      entryPoint = id;
+      topLevel = level;
+      ensureUpper(id, level);
+      return;
+    }
+    if (level > 0)
+      insert(id, level, 1);
+  }
+
+  private int randomLevel() {
+    double level = -Math.log(1 - random.nextDouble()) / Math.log(M);
+    return (int) Math.min(MAX_LEVEL, level);
+  }
+
+  private float similarity(float[] vector, int id) {
+    FloatBuffer vectors = vectorSegment(id);
+    int base = (id % vectorsPerSegment) * dimensions;
+    float sum0 = 0;
+    float sum1 = 0;
+    float sum2 = 0;
+    float sum3 = 0;
+    int i = 0;
+    for (; i + 3 < dimensions; i += 4) {
+      sum0 += vector[i] * vectors.get(base + i);
+      sum1 += vector[i + 1] * vectors.get(base + i + 1);
+      sum2 += vector[i + 2] * vectors.get(base + i + 2);
+      sum3 += vector[i + 3] * vectors.get(base + i + 3);
+    }
+    for (; i < dimensions; i++) {
+      sum0 += vector[i] * vectors.get(base + i);
+    }
+    return sum0 + sum1 + sum2 + sum3;
+  }
+
+  private float[] vector(int id) {
+    FloatBuffer vectors = vectorSegment(id);
+    int base = (id % vectorsPerSegment) * dimensions;
+    float[] vector = new float[dimensions];
+    for (int i = 0; i < dimensions; i++) {
+      vector[i] = vectors.get(base + i);
+    }
+    return vector;
+  }
+
+  private static float dot(float[] a, float[] b) {
+    float sum = 0;
+    for (int i = 0; i < a.length; i++) {
+      sum += a[i] * b[i];
+    }
+    return sum;
+  }
+
+  private static float[] normalize(float[] vector) {
+    float norm = (float) Math.sqrt(dot(vector, vector));
+    float[] normalized = new float[vector.length];
+    for (int i = 0; i < vector.length; i++) {
+      normalized[i] = norm == 0 ? 0 : vector[i] / norm;
+    }
+    return normalized;
+  }
+
+  private static void offer(PriorityQueue<Match> best, Match match, int limit) {
+    if (best.size() < limit) {
+      best.add(match);
+    } else if (match.score > best.peek().score) {
+      best.poll();
+      best.add(match);
+    }
+  }
+
+  private FloatBuffer vectorSegment(int id) {
+    int segment = id / vectorsPerSegment;
+    while (vectorSegments.size() <= segment) {
+      vectorSegments.add(mapSegment("vectors", vectorSegments.size(), (long) vectorsPerSegment * dimensions * 4)
+          .asFloatBuffer());
+    }
+    return vectorSegments.get(segment);
+  }
+
+  private IntBuffer linkSegment(int id) {
+    int segment = id / vectorsPerSegment;
+    while (linkSegments.size() <= segment) {
+      linkSegments.add(mapSegment("links", linkSegments.size(), (long) vectorsPerSegment * M0 * 4).asIntBuffer());
+    }
+    return linkSegments.get(segment);
+  }
+
+  private MappedByteBuffer levelSegment(int id) {
+    int segment = id / vectorsPerSegment;
+    while (levelSegments.size() <= segment) {
+      levelSegments.add(mapSegment("levels", levelSegments.size(), vectorsPerSegment));
+    }
+    return levelSegments.get(segment);
+  }
+
+  // Segment files are sparse until written
+  private MappedByteBuffer mapSegment(String name, int segment, long bytes) {
+    try {
+      MappedByteBuffer mapped = map(new File(directory, String.format("%s-%04d.bin", name, segment)), bytes);
+      mapped.order(ByteOrder.nativeOrder());
+      return mapped;
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot map vector segment: " + e.getMessage(), e);
+    }
+  }
+
+  private static MappedByteBuffer map(File file, long size) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      // The mapping stays valid after the channel is closed
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package com.blade.aicoder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.jupiter.api.Test;
+
+// Tuning against a stub that replays a recorded /api/generate stream and
+// makes one num_batch and one num_thread faster than all others
+class AutotunerTest {
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final int FASTEST_BATCH = 512;
+  private static final int FASTEST_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+  @Test
+  void picksTheFastestCandidateAndWarmsUpWithAPromptOutsideTheSet() throws Exception {
+    String[] recorded = fixture("generate-stream.jsonl").split("\n");
+    Map<String, Integer> sent = new ConcurrentHashMap<>();
+    try (StubOllama host = new StubOllama("deepseek-coder-v2:16b")) {
+      host.on("api/generate", request -> {
+        JsonNode body = mapper.readTree(request);
+        sent.merge(body.path("prompt").asText(), 1, Integer::sum);
+        JsonNode options = body.path("options");
+        // Slower by a quarter for each option that is not the fastest
+        double factor = 1;
+        if (options.path("num_batch").asInt(0) != FASTEST_BATCH)
+          factor += 0.25;
+        if (options.path("num_thread").asInt(0) != FASTEST_THREADS)
+          factor += 0.25;
+        ObjectNode done = (ObjectNode) mapper.readTree(recorded[recorded.length - 1]);
+        done.put("prompt_eval_duration", (long) (done.path("prompt_eval_duration").asLong() * factor));
+        done.put("eval_duration", (long) (done.path("eval_duration").asLong() * factor));
+        StringBuilder stream = new StringBuilder();
+        for (int i = 0; i < recorded.length - 1; i++) {
+          stream.append(recorded[i]).append('\n');
+        }
+        return stream.append(done).append('\n').toString();
+      });
+      System.setProperty("aicoder.endpoints", host.url());
+
+      List<String> prompts = Arrays.asList("Explain volatile.", "Write a bubble sort.");
+      GenerationProfile base = new GenerationProfile(GenerationProfile.DEFAULT, Collections.emptyMap(), null);
+      GenerationProfile tuned = new Autotuner(prompts).tune(base);
+
+      assertNotNull(tuned);
+      assertEquals(Autotuner.PROFILE, tuned.getName());
+      assertEquals(FASTEST_BATCH, tuned.getOptions().get("num_batch"));
+      assertEquals(FASTEST_THREADS, tuned.getOptions().get("num_thread"));
+      assertFalse(tuned.getOptions().containsKey("num_predict"));
+
+      // Every candidate warms up once and then sends each prompt of the set once
+      int candidates = sent.get(Autotuner.WARM_UP_PROMPT);
+      assertFalse(prompts.contains(Autotuner.WARM_UP_PROMPT));
+      for (String prompt : prompts) {
+        assertEquals(candidates, sent.get(prompt));
+      }
+    }
+  }
+
+  private static String fixture(String name) throws IOException {
+    try (InputStream in = AutotunerTest.class.getResourceAsStream(name)) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+}
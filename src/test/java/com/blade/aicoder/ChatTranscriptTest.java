@@ -0,0 +1,65 @@
+package com.blade.aicoder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import javax.swing.text.DefaultStyledDocument;
+import org.junit.jupiter.api.Test;
+
+// Trimming the chat document and loading older messages back, on a detached
+// document
+class ChatTranscriptTest {
+  private static final int MAX_MESSAGES = 5;
+
+  private final DefaultStyledDocument doc = new DefaultStyledDocument();
+  private final RenderBatcher renderer = new RenderBatcher(doc, null);
+  private final ChatTranscript transcript = new ChatTranscript(renderer, MAX_MESSAGES, 1_000_000);
+
+  @Test
+  void restoredMessagesStayUntilUnpinned() throws Exception {
+    for (int i = 0; i < 12; i++) {
+      add("message " + i);
+    }
+    assertEquals("message 7|message 8|message 9|message 10|message 11|", text());
+    assertTrue(transcript.hasOlder());
+
+    transcript.restoreOlder(3, entry -> {
+      RenderBatcher.Region region = renderer.newRegionAtStart();
+      renderer.append(region, "default", entry.text + "|");
+      return region;
+    });
+    renderer.flush();
+    assertEquals("message 4|message 5|message 6|message 7|message 8|message 9|message 10|message 11|", text());
+
+    // The next answer does not take away the page being read
+    add("message 12");
+    assertTrue(text().startsWith("message 4|message 5|message 6|"));
+    assertTrue(text().endsWith("message 11|message 12|"));
+
+    transcript.unpin();
+    renderer.flush();
+    assertEquals("message 8|message 9|message 10|message 11|message 12|", text());
+    assertFalse(transcript.isPinned());
+
+    // Unpinned pages can be loaded again
+    transcript.restoreOlder(1, entry -> {
+      RenderBatcher.Region region = renderer.newRegionAtStart();
+      renderer.append(region, "default", entry.text + "|");
+      return region;
+    });
+    renderer.flush();
+    assertTrue(text().startsWith("message 7|message 8|"));
+  }
+
+  private void add(String text) {
+    RenderBatcher.Region region = renderer.newRegion();
+    renderer.append(region, "default", text + "|");
+    transcript.add(new ChatTranscript.Entry("[00:00]", "AI", text), region, true);
+    renderer.flush();
+  }
+
+  private String text() throws Exception {
+    return doc.getText(0, doc.getLength());
+  }
+}
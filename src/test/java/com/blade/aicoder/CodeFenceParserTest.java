@@ -0,0 +1,202 @@
+package com.blade.aicoder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+// CodeFenceParser has to render exactly what the split/trim code it replaced
+// rendered, whichever way the message is cut into chunks
+class CodeFenceParserTest {
+  private static final String[] PIECES = { "`", "``", "```", "\n", "\n\n", " ", "  ", "\t", "\r", "java", "x y",
+      "int x = 1;", "PYTHON", "a-very-long-language-name", "}", "  indented", "```java\n", "\n```\n" };
+
+  @Test
+  void plainTextIsTrimmedAndLosesBlankLines() {
+    assertEquals(runs("regular", "first\nsecond  \n  third"), parse("\n  first\n\n\nsecond  \n\n  third \n\n"));
+  }
+
+  @Test
+  void codeBlockWithLanguageGetsAHeaderAndIndent() {
+    assertEquals(runs("regular", "Look:", "regular", "\n", "codeHeader", "▸ JAVA CODE\n", "code",
+        "\n    int x;\n    \n    \n    x++;\n", "regular", "\ndone"),
+        parse("Look:\n```java\nint x;\n\n  \nx++;\n```\ndone"));
+  }
+
+  @Test
+  void singleLineBlockIsNeverALanguageTag() {
+    assertEquals(runs("code", "\n    java\n"), parse("```java```"));
+  }
+
+  @Test
+  void firstLineWithASpaceIsCode() {
+    assertEquals(runs("code", "\n    x y\n    z\n"), parse("```x y\nz```"));
+  }
+
+  @Test
+  void unclosedFenceRendersTheRestAsCode() {
+    assertEquals(runs("regular", "a", "code", "\n    b\n"), parse("a```\nb\n"));
+  }
+
+  @Test
+  void matchesSplitRenderingOnRandomMessages() {
+    Random random = new Random(42);
+    for (int i = 0; i < 20_000; i++) {
+      StringBuilder message = new StringBuilder();
+      int pieces = random.nextInt(30);
+      for (int j = 0; j < pieces; j++) {
+        message.append(PIECES[random.nextInt(PIECES.length)]);
+      }
+      String text = message.toString();
+      assertEquals(splitRendering(text), parse(text), () -> "whole message " + escape(text));
+      List<String[]> chunked = parseChunked(text, random);
+      assertEquals(splitRendering(text), chunked, () -> "chunked message " + escape(text));
+    }
+  }
+
+  @Test
+  void codeOfUndoesTheIndent() {
+    assertEquals("int x;\n\nx++;", CodeFenceParser.codeOf("\n    int x;\n    \n    x++;\n"));
+  }
+
+  static List<String[]> parse(String text) {
+    Recorder recorder = new Recorder();
+    CodeFenceParser parser = new CodeFenceParser(recorder::append);
+    parser.feed(text);
+    parser.finish();
+    return recorder.runs;
+  }
+
+  // Fed in random chunks, down to a character at a time
+  static List<String[]> parseChunked(String text, Random random) {
+    Recorder recorder = new Recorder();
+    CodeFenceParser parser = new CodeFenceParser(recorder::append);
+    int position = 0;
+    while (position < text.length()) {
+      int end = Math.min(text.length(), position + 1 + random.nextInt(6));
+      parser.feed(text.substring(position, end));
+      position = end;
+    }
+    parser.finish();
+    return recorder.runs;
+  }
+
+  // Style runs, merged where neighbours have the same style
+  static class Recorder {
+    final List<String[]> runs = new ArrayList<String[]>() {
+      @Override
+      public boolean equals(Object other) {
+        return other instanceof List && toString().equals(other.toString());
+      }
+
+      @Override
+      public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (String[] run : this) {
+          text.append(run[0]).append('[').append(escape(run[1])).append(']');
+        }
+        return text.toString();
+      }
+    };
+
+    void append(String style, String text) {
+      if (text.isEmpty())
+        return;
+      String[] last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+      if (last != null && last[0].equals(style))
+        last[1] += text;
+      else
+        runs.add(new String[] { style, text });
+    }
+  }
+
+  static List<String[]> runs(String... styleAndText) {
+    Recorder recorder = new Recorder();
+    for (int i = 0; i < styleAndText.length; i += 2) {
+      recorder.append(styleAndText[i], styleAndText[i + 1]);
+    }
+    return recorder.runs;
+  }
+
+  static String escape(String text) {
+    return text.replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t");
+  }
+
+  // FloatingWindow.processMessageContent and addFormattedText as they were
+  // before the parser, writing to a recorder instead of the document
+  static List<String[]> splitRendering(String message) {
+    Recorder doc = new Recorder();
+    if (message == null || message.trim().isEmpty())
+      return doc.runs;
+
+    if (message.contains("```")) {
+      String[] parts = message.split("```", -1);
+
+      for (int i = 0; i < parts.length; i++) {
+        if (i % 2 == 0) {
+          addFormattedText(doc, parts[i].trim(), "regular", i > 0);
+        } else {
+          String codeContent = parts[i].trim();
+          String language = "";
+          String actualCode = codeContent;
+
+          int firstNewline = codeContent.indexOf("\n");
+          if (firstNewline != -1) {
+            String firstLine = codeContent.substring(0, firstNewline).trim();
+            if (firstLine.length() > 0 && firstLine.length() < 20 && !firstLine.contains(" ")) {
+              language = firstLine;
+              actualCode = codeContent.substring(firstNewline + 1).trim();
+            }
+          }
+
+          if (!language.isEmpty()) {
+            doc.append("regular", "\n");
+            doc.append("codeHeader", "▸ " + language.toUpperCase() + " CODE\n");
+          }
+
+          addFormattedText(doc, actualCode, "code", true);
+        }
+      }
+    } else {
+      addFormattedText(doc, message.trim(), "regular", false);
+    }
+    return doc.runs;
+  }
+
+  private static void addFormattedText(Recorder doc, String text, String style, boolean addNewline) {
+    if (text.isEmpty())
+      return;
+
+    if (addNewline) {
+      doc.append(style, "\n");
+    }
+
+    if ("code".equals(style)) {
+      String[] lines = text.split("\n");
+      for (int i = 0; i < lines.length; i++) {
+        String line = lines[i];
+        if (!line.trim().isEmpty()) {
+          doc.append(style, "    " + line);
+        } else {
+          doc.append(style, "    ");
+        }
+        if (i < lines.length - 1) {
+          doc.append(style, "\n");
+        }
+      }
+      doc.append(style, "\n");
+    } else {
+      String[] lines = text.split("\n");
+      for (int i = 0; i < lines.length; i++) {
+        if (!lines[i].trim().isEmpty()) {
+          doc.append(style, lines[i]);
+          if (i < lines.length - 1) {
+            doc.append(style, "\n");
+          }
+        }
+      }
+    }
+  }
+}
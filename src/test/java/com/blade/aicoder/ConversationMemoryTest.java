@@ -0,0 +1,94 @@
+package com.blade.aicoder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Remembering and recalling through a stub embedding server that embeds a
+// text as its letter counts
+class ConversationMemoryTest {
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static StubOllama host;
+
+  @TempDir
+  File directory;
+
+  @BeforeAll
+  static void startHost() throws Exception {
+    host = new StubOllama("nomic-embed-text:latest");
+    host.on("api/embed", request -> {
+      String text = mapper.readTree(request).path("input").asText().toLowerCase();
+      float[] counts = new float[26];
+      for (char c : text.toCharArray()) {
+        if (c >= 'a' && c <= 'z')
+          counts[c - 'a']++;
+      }
+      StringBuilder json = new StringBuilder("{\"embeddings\":[[");
+      for (int i = 0; i < counts.length; i++) {
+        json.append(i == 0 ? "" : ",").append(counts[i]);
+      }
+      return json.append("]]}").toString();
+    });
+    System.setProperty("aicoder.endpoints", host.url());
+  }
+
+  @AfterAll
+  static void stopHost() {
+    host.close();
+  }
+
+  @Test
+  void recallsTheClosestExchangeWithTheUntaggedDefaultModel() throws Exception {
+    ConversationMemory memory = new ConversationMemory(directory, "nomic-embed-text");
+    try {
+      memory.remember("zzz zzz", "zzz");
+      memory.remember("aaa bbb", "aaa");
+      List<String> recalled = awaitRecall(memory, "aaab");
+      assertEquals(Collections.singletonList("Q: aaa bbb\nA: aaa"), recalled);
+    } finally {
+      memory.close();
+    }
+  }
+
+  @Test
+  void aSecondMemoryOnTheSameDirectoryIsDisabled() throws Exception {
+    ConversationMemory first = new ConversationMemory(directory, "nomic-embed-text");
+    first.remember("aaa bbb", "aaa");
+    awaitRecall(first, "aaab");
+
+    ConversationMemory second = new ConversationMemory(directory, "nomic-embed-text");
+    second.remember("zzz zzz", "zzz");
+    second.close();
+    assertTrue(second.recall("aaab", 1, 0.5f, new CancellationToken()).isEmpty());
+    assertEquals(1, awaitRecall(first, "aaab").size());
+    first.close();
+
+    // The lock is released on close and nothing of the second memory was kept
+    ConversationMemory third = new ConversationMemory(directory, "nomic-embed-text");
+    try {
+      assertEquals(Collections.singletonList("Q: aaa bbb\nA: aaa"), awaitRecall(third, "aaab"));
+      assertTrue(third.recall("zzzz", 1, 0.5f, new CancellationToken()).isEmpty());
+    } finally {
+      third.close();
+    }
+  }
+
+  // Recalls the best match once the background thread has embedded something
+  private static List<String> awaitRecall(ConversationMemory memory, String prompt) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    List<String> recalled = memory.recall(prompt, 1, 0.5f, new CancellationToken());
+    while (recalled.isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+      recalled = memory.recall(prompt, 1, 0.5f, new CancellationToken());
+    }
+    return recalled;
+  }
+}
@@ -0,0 +1,68 @@
+package com.blade.aicoder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Compaction of the persistent cache tier at its size limit
+class DiskResponseStoreTest {
+  private static final long MAX_LOG_BYTES = 10_000;
+  private static final String VALUE = String.join("", Collections.nCopies(100, "x"));
+
+  @TempDir
+  File directory;
+
+  @Test
+  void aFullLogEvictsTheOldestEntriesAndKeepsTheNewest() throws Exception {
+    DiskResponseStore store = new DiskResponseStore(directory, MAX_LOG_BYTES);
+    int evicted = 0;
+    for (int i = 0; i < 500; i++) {
+      evicted += store.put(key(i), VALUE + i);
+      assertTrue(new File(directory, "values.log").length() <= MAX_LOG_BYTES);
+    }
+    assertEquals(500, evicted + store.size());
+    assertEquals(VALUE + 499, store.get(key(499)));
+    assertNull(store.get(key(0)));
+    store.close();
+
+    DiskResponseStore reopened = new DiskResponseStore(directory, MAX_LOG_BYTES);
+    assertEquals(500 - evicted, reopened.size());
+    assertEquals(VALUE + 499, reopened.get(key(499)));
+    reopened.close();
+  }
+
+  @Test
+  void overwrittenRecordsAreDroppedWithoutCountingAsEvictions() throws Exception {
+    DiskResponseStore store = new DiskResponseStore(directory, MAX_LOG_BYTES);
+    int evicted = 0;
+    for (int i = 0; i < 500; i++) {
+      evicted += store.put(key(i % 3), VALUE + i);
+    }
+    assertEquals(0, evicted);
+    assertEquals(3, store.size());
+    assertEquals(VALUE + 499, store.get(key(499 % 3)));
+    store.close();
+  }
+
+  @Test
+  void aValueLargerThanTheLogIsNotStored() throws Exception {
+    DiskResponseStore store = new DiskResponseStore(directory, MAX_LOG_BYTES);
+    store.put(key(1), VALUE);
+    char[] large = new char[(int) MAX_LOG_BYTES];
+    Arrays.fill(large, 'y');
+    assertEquals(0, store.put(key(2), new String(large)));
+    assertNull(store.get(key(2)));
+    assertEquals(VALUE, store.get(key(1)));
+    store.close();
+  }
+
+  private static byte[] key(int i) {
+    return ResponseCache.key("model", "", "prompt " + i);
+  }
+}
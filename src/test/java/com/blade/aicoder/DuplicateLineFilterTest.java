@@ -0,0 +1,68 @@
+package com.blade.aicoder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+// The streaming filter has to keep the same lines as cleanDuplicateContent,
+// whichever way the text is cut into chunks
+class DuplicateLineFilterTest {
+  private static final String[] PIECES = { "\n", "\n\n", " ", "  ", "\t", "\r", "a", "ab", "a b", "b", "}",
+      "  a", "a  ", "```" };
+
+  @Test
+  void dropsRepeatedLinesIgnoringSurroundingWhitespace() {
+    assertEquals("one\ntwo\none", filter("one\n  one  \ntwo\ntwo\none\n"));
+  }
+
+  @Test
+  void passesDifferentLinesThroughBeforeTheyEnd() {
+    StringBuilder output = new StringBuilder();
+    DuplicateLineFilter filter = new DuplicateLineFilter(output::append);
+    filter.feed("abc\nab");
+    assertEquals("abc\n", output.toString());
+    filter.feed("x");
+    assertEquals("abc\nabx", output.toString());
+  }
+
+  @Test
+  void matchesCleanDuplicateContentOnRandomText() {
+    Random random = new Random(7);
+    for (int i = 0; i < 20_000; i++) {
+      StringBuilder message = new StringBuilder();
+      int pieces = random.nextInt(30);
+      for (int j = 0; j < pieces; j++) {
+        message.append(PIECES[random.nextInt(PIECES.length)]);
+      }
+      String text = message.toString();
+      String expected = text.isEmpty() ? "" : FloatingWindow.cleanDuplicateContent(text);
+      assertEquals(expected, filter(text), () -> "whole text " + CodeFenceParserTest.escape(text));
+      assertEquals(expected, filterChunked(text, random),
+          () -> "chunked text " + CodeFenceParserTest.escape(text));
+    }
+  }
+
+  // cleanDuplicateContent trims its result, the parser after the filter
+  // trims what it renders
+  private static String filter(String text) {
+    StringBuilder output = new StringBuilder();
+    DuplicateLineFilter filter = new DuplicateLineFilter(output::append);
+    filter.feed(text);
+    filter.finish();
+    return output.toString().trim();
+  }
+
+  private static String filterChunked(String text, Random random) {
+    StringBuilder output = new StringBuilder();
+    DuplicateLineFilter filter = new DuplicateLineFilter(output::append);
+    int position = 0;
+    while (position < text.length()) {
+      int end = Math.min(text.length(), position + 1 + random.nextInt(6));
+      filter.feed(text.substring(position, end));
+      position = end;
+    }
+    filter.finish();
+    return output.toString().trim();
+  }
+}
@@ -0,0 +1,148 @@
+package com.blade.aicoder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+// Routing over several stub Ollama hosts
+class EndpointPoolTest {
+  // The host of OllamaClient's own pool, without health checks, so only what
+  // the requests tell about its models is known
+  private static StubOllama clientHost;
+
+  @BeforeAll
+  static void startClientHost() throws Exception {
+    clientHost = new StubOllama("deepseek-coder-v2:16b");
+    clientHost.notFound("api/embed");
+    clientHost.on("api/generate", request -> "{\"response\":\"ok\",\"done\":true}\n");
+    System.setProperty("aicoder.endpoints", clientHost.url());
+    System.setProperty("aicoder.endpoints.healthCheckSeconds", "0");
+  }
+
+  @AfterAll
+  static void stopClientHost() {
+    clientHost.close();
+  }
+
+  @Test
+  void untaggedModelsMatchTheirLatestTag() throws Exception {
+    try (StubOllama host = new StubOllama("nomic-embed-text:latest", "deepseek-coder-v2:16b")) {
+      EndpointPool pool = new EndpointPool(Collections.singletonList(host.url()));
+      pool.checkAll();
+      EndpointPool.Endpoint endpoint = pool.getEndpoints().get(0);
+      assertTrue(endpoint.hasModel("nomic-embed-text"));
+      assertTrue(endpoint.hasModel("nomic-embed-text:latest"));
+      assertTrue(endpoint.hasModel("deepseek-coder-v2:16b"));
+      assertFalse(endpoint.hasModel("deepseek-coder-v2"));
+      assertSame(endpoint, pool.acquire("nomic-embed-text", Collections.emptyList()));
+    }
+  }
+
+  @Test
+  void modelNamesGetTheLatestTagOnlyWhenTheyHaveNone() {
+    assertEquals("llama3:latest", EndpointPool.modelName("llama3"));
+    assertEquals("llama3:8b", EndpointPool.modelName("llama3:8b"));
+    assertEquals("registry:5000/team/llama3:latest", EndpointPool.modelName("registry:5000/team/llama3"));
+  }
+
+  @Test
+  void pinnedModelsAreNormalizedToo() throws Exception {
+    EndpointPool pool = new EndpointPool(Collections.singletonList("http://127.0.0.1:1=qwen2.5-coder | llama3:8b"));
+    EndpointPool.Endpoint endpoint = pool.getEndpoints().get(0);
+    assertTrue(endpoint.hasModel("qwen2.5-coder:latest"));
+    assertTrue(endpoint.hasModel("llama3:8b"));
+    assertFalse(endpoint.hasModel("nomic-embed-text"));
+  }
+
+  @Test
+  void requestsGoOnlyToHostsWithTheModel() throws Exception {
+    try (StubOllama small = new StubOllama("qwen2.5-coder:1.5b"); StubOllama large = new StubOllama("llama3:70b")) {
+      EndpointPool pool = new EndpointPool(Arrays.asList(small.url(), large.url()));
+      pool.checkAll();
+      List<EndpointPool.Endpoint> tried = new ArrayList<>();
+      EndpointPool.Endpoint endpoint = pool.acquire("llama3:70b", tried);
+      assertEquals(large.url() + "/", endpoint.getBaseUri().toString());
+      tried.add(endpoint);
+      assertNull(pool.acquire("llama3:70b", tried));
+      assertFalse(pool.hasAlternative("llama3:70b", tried));
+    }
+  }
+
+  @Test
+  void spreadsRequestsByRequestsInFlight() throws Exception {
+    try (StubOllama first = new StubOllama("m:latest"); StubOllama second = new StubOllama("m:latest")) {
+      EndpointPool pool = new EndpointPool(Arrays.asList(first.url(), second.url()));
+      pool.checkAll();
+      EndpointPool.Endpoint one = pool.acquire("m", Collections.emptyList());
+      EndpointPool.Endpoint two = pool.acquire("m", Collections.emptyList());
+      assertFalse(one == two);
+      pool.release(one);
+      assertSame(one, pool.acquire("m", Collections.emptyList()));
+    }
+  }
+
+  @Test
+  void failingHostIsEjectedUntilItAnswersAgain() throws Exception {
+    try (StubOllama healthy = new StubOllama("m:latest"); StubOllama failing = new StubOllama("m:latest")) {
+      EndpointPool pool = new EndpointPool(Arrays.asList(failing.url(), healthy.url()));
+      EndpointPool.Endpoint bad = pool.getEndpoints().get(0);
+      failing.status = 500;
+      pool.checkAll();
+      assertTrue(bad.isEjected());
+      EndpointPool.Endpoint picked = pool.acquire("m", Collections.emptyList());
+      assertSame(pool.getEndpoints().get(1), picked);
+      pool.release(picked);
+
+      // With every other host tried the ejected one is still used
+      assertSame(bad, pool.acquire("m", Collections.singletonList(picked)));
+      pool.release(bad);
+
+      failing.status = 200;
+      pool.checkAll();
+      assertFalse(bad.isEjected());
+    }
+  }
+
+  @Test
+  void modelMissingRemovesItFromTheHost() throws Exception {
+    try (StubOllama host = new StubOllama("m:latest")) {
+      EndpointPool pool = new EndpointPool(Collections.singletonList(host.url()));
+      pool.checkAll();
+      EndpointPool.Endpoint endpoint = pool.getEndpoints().get(0);
+      pool.modelMissing(endpoint, "m");
+      assertFalse(endpoint.hasModel("m:latest"));
+      pool.checkAll();
+      assertTrue(endpoint.hasModel("m"));
+    }
+  }
+
+  @Test
+  void modelMissingBeforeAnyCheckLeavesOtherModelsAvailable() {
+    EndpointPool pool = new EndpointPool(Collections.singletonList("http://127.0.0.1:1"));
+    EndpointPool.Endpoint endpoint = pool.getEndpoints().get(0);
+    pool.modelMissing(endpoint, "nomic-embed-text");
+    assertFalse(endpoint.hasModel("nomic-embed-text:latest"));
+    assertTrue(endpoint.hasModel("deepseek-coder-v2:16b"));
+  }
+
+  @Test
+  void anEmbedding404DoesNotMakeTheMainModelUnreachable() throws Exception {
+    assertThrows(RuntimeException.class, () -> OllamaClient.embed("nomic-embed-text", "text", new CancellationToken()));
+    GenerationStats stats = OllamaClient.measure("prompt", GenerationProfile.all().get(GenerationProfile.DEFAULT),
+        new CancellationToken());
+    assertNotNull(stats);
+    assertEquals(2, clientHost.requests.get());
+  }
+}
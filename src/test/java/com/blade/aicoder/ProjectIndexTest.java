@@ -0,0 +1,61 @@
+package com.blade.aicoder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Searching a small tree while one file keeps changing
+class ProjectIndexTest {
+  @TempDir
+  Path root;
+
+  @Test
+  void rewrittenFilesAreFoundByTheirLatestContentAfterCompaction() throws Exception {
+    for (int i = 0; i < 20; i++) {
+      write("Other" + i + ".java", "class Other" + i + " { void unrelated" + i + "() {} }", i);
+    }
+    Path changing = write("Parser.java", "class Parser { void version0() {} }", 0);
+    ProjectIndex index = new ProjectIndex(root, Collections.singleton("java"), 100_000, 1000);
+    index.start();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!index.isReady() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(index.isReady());
+
+    // Enough changes for several compactions
+    for (int version = 1; version <= 5000; version++) {
+      write("Parser.java", "class Parser { void version" + version + "() { tokenizer(); } }", version);
+      index.update(changing);
+    }
+    index.update(root.resolve("Other3.java"));
+    assertEquals(21, index.getFileCount());
+
+    List<ProjectIndex.Snippet> found = search(index, "tokenizer version5000");
+    assertEquals(1, found.size());
+    assertEquals("Parser.java", found.get(0).path);
+    assertTrue(found.get(0).text.contains("version5000"));
+    assertTrue(search(index, "version4999").isEmpty());
+    assertEquals("Other7.java", search(index, "unrelated7").get(0).path);
+    index.shutdown();
+  }
+
+  private Path write(String name, String text, long second) throws Exception {
+    Path file = root.resolve(name);
+    Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(file, FileTime.fromMillis(1_000_000_000_000L + second * 1000));
+    return file;
+  }
+
+  private static List<ProjectIndex.Snippet> search(ProjectIndex index, String text) {
+    return index.search(text, 5, 10_000);
+  }
+}
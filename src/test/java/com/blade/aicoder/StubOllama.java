@@ -0,0 +1,79 @@
+package com.blade.aicoder;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A local stand-in for an Ollama server on a free loopback port. /api/tags
+// lists the models it was given; other paths answer with a handler.
+class StubOllama implements AutoCloseable {
+  interface Handler {
+    // The JSON response body for the request body
+    String handle(String request) throws IOException;
+  }
+
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  final AtomicInteger requests = new AtomicInteger(); // other than /api/tags
+  volatile String[] models;
+  volatile int status = 200;
+
+  StubOllama(String... models) throws IOException {
+    this.models = models;
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.setExecutor(executor);
+    on("api/tags", request -> {
+      StringBuilder list = new StringBuilder("{\"models\":[");
+      for (String model : this.models) {
+        list.append(list.charAt(list.length() - 1) == '[' ? "" : ",")
+            .append("{\"name\":\"").append(model).append("\",\"model\":\"").append(model).append("\"}");
+      }
+      return list.append("]}").toString();
+    });
+    server.start();
+  }
+
+  void on(String path, Handler handler) {
+    on(path, 200, handler);
+  }
+
+  // Answers the path the way Ollama answers a request for a model it has not pulled
+  void notFound(String path) {
+    on(path, 404, request -> "{\"error\":\"model not found, try pulling it first\"}");
+  }
+
+  private void on(String path, int pathStatus, Handler handler) {
+    server.createContext("/" + path, exchange -> {
+      try (InputStream in = exchange.getRequestBody(); OutputStream out = exchange.getResponseBody()) {
+        String request = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        if (!path.equals("api/tags"))
+          requests.incrementAndGet();
+        int answer = status == 200 ? pathStatus : status;
+        byte[] body = (status == 200 ? handler.handle(request) : "{\"error\":\"unavailable\"}")
+            .getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(answer, body.length);
+        out.write(body);
+      } finally {
+        exchange.close();
+      }
+    });
+  }
+
+  String url() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+}